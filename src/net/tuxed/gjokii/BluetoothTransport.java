@@ -0,0 +1,96 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.regex.Pattern;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+
+/**
+ * Connects to the phone over a Bluetooth serial port (RFCOMM) channel using
+ * the JSR-82 API, for example provided by BlueCove.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class BluetoothTransport implements Transport {
+	private String phoneURL;
+	private int timeout = 0;
+	private StreamConnection con;
+	private InputStream is;
+	private OutputStream os;
+
+	/**
+	 * Construct the transport
+	 *
+	 * @param deviceAddress
+	 *            the Bluetooth hardware address to connect to (e.g.:
+	 *            001122334455)
+	 * @param channel
+	 *            the channel on the phone to connect to (e.g.: 15)
+	 * @throws GjokiiException
+	 *             if the Bluetooth hardware address or channel is invalid
+	 */
+	public BluetoothTransport(String deviceAddress, int channel)
+			throws GjokiiException {
+		if (deviceAddress == null
+				|| !Pattern.matches("[0-9a-fA-F]{12}", deviceAddress))
+			throw new GjokiiException("invalid bluetooth hardware address");
+		if (channel < 0)
+			throw new GjokiiException("no or wrong channel specified");
+		phoneURL = "btspp://" + deviceAddress + ":" + channel;
+	}
+
+	public void close() throws GjokiiException {
+		if (con == null)
+			return;
+		try {
+			con.close();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to close connection: "
+					+ e.getMessage());
+		}
+	}
+
+	public InputStream getInputStream() {
+		return is;
+	}
+
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	public void open() throws GjokiiException {
+		try {
+			con = (StreamConnection) Connector.open(phoneURL,
+					Connector.READ_WRITE, timeout != 0);
+			/* JSR-82 has no read timeout */
+			is = new TimeoutInputStream(con.openInputStream(), timeout);
+			os = con.openOutputStream();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to connect");
+		}
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+}
@@ -0,0 +1,449 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Keeps copies of files fetched from phones on the local file system.
+ *
+ * Files are stored under the SHA-1 hash of the phone IMEI and the path of the
+ * file on the phone. A cached copy is only used when the size and time stamp
+ * reported by the phone still match the ones of the copy, so checking the
+ * cache costs one file information request instead of a full transfer. When
+ * the cache grows beyond its maximum size the least recently used files are
+ * removed, except for files that are being read.
+ *
+ * Using a cached copy only updates the index in memory, the index is written
+ * after a number of uses and by close(). Before the index is written it is
+ * merged with the index on disk, so several processes can share the cache.
+ * Within a process there should be one FileCache per directory.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class FileCache {
+	private static final String INDEX_FILE = "index.properties";
+	private static final String LOCK_FILE = "index.lock";
+	/* the number of uses of cached copies after which the index is written */
+	private static final int STORE_INTERVAL = 16;
+
+	private File cacheDir;
+	private long maxSize;
+	/* key -> size,timestamp,lastUsed */
+	private Properties index = new Properties();
+	/* the keys removed since the index was written */
+	private Set<String> removedKeys = new HashSet<String>();
+	/* key -> number of readers, these files are not evicted */
+	private Map<String, Integer> pinned = new HashMap<String, Integer>();
+	private int unstoredUses = 0;
+
+	/**
+	 * Open (or create) the cache
+	 *
+	 * @param cacheDir
+	 *            the directory to store the files in
+	 * @param maxSize
+	 *            the maximum total size of the cached files in bytes
+	 * @throws GjokiiException
+	 *             if the directory cannot be created or the index cannot be
+	 *             read
+	 */
+	public FileCache(File cacheDir, long maxSize) throws GjokiiException {
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+			throw new GjokiiException("unable to create cache directory "
+					+ cacheDir.getAbsolutePath());
+		index = loadIndex();
+	}
+
+	/**
+	 * Write the index if cached copies were used since it was last written.
+	 * The cache can still be used afterwards.
+	 *
+	 * @throws GjokiiException
+	 *             if writing the index fails
+	 */
+	public synchronized void close() throws GjokiiException {
+		if (unstoredUses != 0)
+			storeIndex();
+	}
+
+	/**
+	 * Get a file from the phone, or from the cache if the phone still has the
+	 * same version of the file.
+	 *
+	 * @param g
+	 *            the (open) Gjokii connection to the phone
+	 * @param filePathName
+	 *            the file with full path to get
+	 * @param targetFile
+	 *            the file to write the copy to
+	 * @throws GjokiiException
+	 *             if the file does not exist, fetching it fails or writing the
+	 *             copy fails
+	 */
+	public void getFile(Gjokii g, String filePathName, File targetFile)
+			throws GjokiiException {
+		String key = fetch(g, filePathName);
+		try {
+			Utils.copyFile(new File(cacheDir, key), targetFile);
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write to file "
+					+ targetFile.getAbsolutePath());
+		} finally {
+			unpin(key);
+		}
+	}
+
+	/**
+	 * Remove a file from the cache, for example after it was changed on the
+	 * phone.
+	 *
+	 * @param g
+	 *            the (open) Gjokii connection to the phone
+	 * @param filePathName
+	 *            the file with full path to remove
+	 * @throws GjokiiException
+	 *             if the index cannot be written
+	 */
+	public void invalidate(Gjokii g, String filePathName)
+			throws GjokiiException {
+		String key = getKey(g.getIMEI(), filePathName);
+		synchronized (this) {
+			if (index.remove(key) != null) {
+				removedKeys.add(key);
+				new File(cacheDir, key).delete();
+				storeIndex();
+			}
+		}
+	}
+
+	/**
+	 * Open a file from the phone, or from the cache if the phone still has the
+	 * same version of the file.
+	 *
+	 * The cached copy is not evicted while the stream is open.
+	 *
+	 * @param g
+	 *            the (open) Gjokii connection to the phone
+	 * @param filePathName
+	 *            the file with full path to open
+	 * @return the stream, its available method returns the length of the file
+	 * @throws GjokiiException
+	 *             if the file does not exist or fetching it fails
+	 */
+	public InputStream openInputStream(Gjokii g, String filePathName)
+			throws GjokiiException {
+		final String key = fetch(g, filePathName);
+		try {
+			return new FilterInputStream(new FileInputStream(new File(
+					cacheDir, key))) {
+				private boolean closed = false;
+
+				public void close() throws IOException {
+					if (closed)
+						return;
+					closed = true;
+					try {
+						super.close();
+					} finally {
+						unpin(key);
+					}
+				}
+			};
+		} catch (IOException e) {
+			unpin(key);
+			throw new GjokiiException("unable to read " + filePathName
+					+ " from cache");
+		}
+	}
+
+	/**
+	 * Remove the least recently used files until the cache fits its maximum
+	 * size again. Files that are being read are never removed.
+	 */
+	private void evict() {
+		long totalSize = 0;
+		for (Object k : index.keySet())
+			totalSize += getField((String) k, 0);
+
+		while (totalSize > maxSize) {
+			String oldestKey = null;
+			long oldest = Long.MAX_VALUE;
+			for (Object k : index.keySet()) {
+				long lastUsed = getField((String) k, 2);
+				if (!pinned.containsKey(k) && lastUsed < oldest) {
+					oldest = lastUsed;
+					oldestKey = (String) k;
+				}
+			}
+			if (oldestKey == null)
+				break;
+			totalSize -= getField(oldestKey, 0);
+			index.remove(oldestKey);
+			removedKeys.add(oldestKey);
+			new File(cacheDir, oldestKey).delete();
+		}
+	}
+
+	/**
+	 * Make sure the cache has the current version of a file and pin it, the
+	 * caller should unpin it when done.
+	 *
+	 * @param g
+	 *            the (open) Gjokii connection to the phone
+	 * @param filePathName
+	 *            the file with full path to get
+	 * @return the key of the cached copy
+	 * @throws GjokiiException
+	 *             if the file does not exist or fetching it fails
+	 */
+	private String fetch(Gjokii g, String filePathName) throws GjokiiException {
+		DirectoryEntryInfo fi = g.getEntryInfo(filePathName);
+		if (!fi.isFile())
+			throw new GjokiiException("file does not exist");
+		String key = getKey(g.getIMEI(), filePathName);
+		File cachedFile = new File(cacheDir, key);
+		String version = fi.getEntrySize() + "," + fi.getEntryTimeStamp();
+
+		synchronized (this) {
+			String entry = index.getProperty(key);
+			if (entry != null && entry.startsWith(version + ",")
+					&& cachedFile.length() == fi.getEntrySize()) {
+				index.setProperty(key, version + ","
+						+ System.currentTimeMillis());
+				pin(key);
+				if (++unstoredUses >= STORE_INTERVAL) {
+					try {
+						storeIndex();
+					} catch (GjokiiException e) {
+						unpin(key);
+						throw e;
+					}
+				}
+				return key;
+			}
+		}
+
+		/* download outside the lock, other phones can use the cache meanwhile */
+		File partFile;
+		try {
+			partFile = File.createTempFile(key, ".part", cacheDir);
+		} catch (IOException e) {
+			throw new GjokiiException("unable to create file in cache");
+		}
+		try {
+			g.getFile(filePathName, partFile);
+		} catch (GjokiiException e) {
+			partFile.delete();
+			throw e;
+		}
+
+		synchronized (this) {
+			cachedFile.delete();
+			if (!partFile.renameTo(cachedFile)) {
+				partFile.delete();
+				throw new GjokiiException("unable to store file in cache");
+			}
+			index.setProperty(key, version + "," + System.currentTimeMillis());
+			removedKeys.remove(key);
+			pin(key);
+			try {
+				storeIndex();
+			} catch (GjokiiException e) {
+				unpin(key);
+				throw e;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Get a field of an index entry
+	 *
+	 * @param key
+	 *            the key of the entry
+	 * @param field
+	 *            the field (0 = size, 1 = timestamp, 2 = last used)
+	 * @return the value of the field, or 0 if the entry is broken
+	 */
+	private long getField(String key, int field) {
+		return getField(index, key, field);
+	}
+
+	private static long getField(Properties p, String key, int field) {
+		String[] fields = p.getProperty(key).split(",");
+		try {
+			return Long.parseLong(fields[field]);
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Determine the name of the file in the cache
+	 *
+	 * @param imei
+	 *            the IMEI of the phone
+	 * @param filePathName
+	 *            the file with full path on the phone
+	 * @return the hexadecimal SHA-1 hash of IMEI and path
+	 * @throws GjokiiException
+	 *             if SHA-1 is not available
+	 */
+	private static String getKey(String imei, String filePathName)
+			throws GjokiiException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] hash = md.digest((imei + ":" + filePathName)
+					.getBytes("UTF-8"));
+			return Utils.byteArrayToString(hash);
+		} catch (NoSuchAlgorithmException e) {
+			throw new GjokiiException("SHA-1 not available");
+		} catch (IOException e) {
+			throw new GjokiiException("UTF-8 not available");
+		}
+	}
+
+	/**
+	 * Read the index from the cache directory
+	 *
+	 * @return the index, empty if there is no index yet
+	 * @throws GjokiiException
+	 *             if reading the index fails
+	 */
+	private Properties loadIndex() throws GjokiiException {
+		Properties p = new Properties();
+		File indexFile = new File(cacheDir, INDEX_FILE);
+		if (indexFile.exists()) {
+			try {
+				FileInputStream fis = new FileInputStream(indexFile);
+				try {
+					p.load(fis);
+				} finally {
+					fis.close();
+				}
+			} catch (IOException e) {
+				throw new GjokiiException("unable to read cache index");
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Merge the index with the one on disk, which may have been changed by
+	 * another process
+	 *
+	 * For entries in both indexes the one used most recently is kept. Entries
+	 * that were removed by this cache are not taken from disk.
+	 *
+	 * @throws GjokiiException
+	 *             if reading the index fails
+	 */
+	private void mergeIndex() throws GjokiiException {
+		Properties onDisk = loadIndex();
+		for (Object k : onDisk.keySet()) {
+			String key = (String) k;
+			if (removedKeys.contains(key))
+				continue;
+			if (!index.containsKey(key)
+					|| getField(onDisk, key, 2) > getField(key, 2))
+				index.setProperty(key, onDisk.getProperty(key));
+		}
+		removedKeys.clear();
+	}
+
+	private synchronized void pin(String key) {
+		Integer readers = pinned.get(key);
+		pinned.put(key, (readers == null) ? 1 : readers + 1);
+	}
+
+	/**
+	 * Write the index to the cache directory
+	 *
+	 * The index is merged with the one on disk and evicted while holding a
+	 * lock on the cache directory, and written to a temporary file that then
+	 * replaces the index.
+	 *
+	 * @throws GjokiiException
+	 *             if writing the index fails
+	 */
+	private void storeIndex() throws GjokiiException {
+		try {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(
+					cacheDir, LOCK_FILE), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					mergeIndex();
+					evict();
+					File indexFile = new File(cacheDir, INDEX_FILE);
+					File tempFile = File.createTempFile(INDEX_FILE, ".tmp",
+							cacheDir);
+					FileOutputStream fos = new FileOutputStream(tempFile);
+					try {
+						index.store(fos, "Gjokii file cache");
+					} finally {
+						fos.close();
+					}
+					/* renameTo does not replace existing files on Windows */
+					if (!tempFile.renameTo(indexFile)
+							&& !(indexFile.delete() && tempFile
+									.renameTo(indexFile))) {
+						tempFile.delete();
+						throw new GjokiiException("unable to write cache index");
+					}
+					unstoredUses = 0;
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write cache index");
+		}
+	}
+
+	private synchronized void unpin(String key) {
+		Integer readers = pinned.get(key);
+		if (readers == null)
+			return;
+		if (readers == 1)
+			pinned.remove(key);
+		else
+			pinned.put(key, readers - 1);
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Dumps the file system of the phone with the listing of directories separated
+ * from the downloading of files.
+ *
+ * The first connection walks the directory tree and puts every file it finds
+ * in a queue. All other connections, for example to other RFCOMM channels of
+ * the same phone, start downloading from the queue right away. When the
+ * listing is done the first connection helps draining the queue. With only one
+ * connection the listing simply completes before the downloads start.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class FileSystemCrawler {
+	/**
+	 * A file to download
+	 */
+	private static class Task {
+		private String phoneFilePathName;
+		private File hostFile;
+		private int size;
+
+		private Task(String phoneFilePathName, File hostFile, int size) {
+			this.phoneFilePathName = phoneFilePathName;
+			this.hostFile = hostFile;
+			this.size = size;
+		}
+	}
+
+	/* tells a download worker that the listing is done */
+	private static final Task END_OF_LISTING = new Task(null, null, 0);
+
+	private List<Gjokii> connections;
+	private LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<Task>();
+	private volatile GjokiiException failure;
+
+	private int directories;
+	private int files;
+	private long bytes;
+	private long listingTime;
+	private long downloadTime;
+	private long totalTime;
+
+	/**
+	 * Construct the crawler
+	 *
+	 * @param connections
+	 *            the (open) connections to the phone, the first one is used
+	 *            for listing the directories. Every connection is used by one
+	 *            thread only while crawling.
+	 */
+	public FileSystemCrawler(List<Gjokii> connections) {
+		if (connections.isEmpty())
+			throw new IllegalArgumentException("no connections");
+		this.connections = connections;
+	}
+
+	/**
+	 * Dump the file system of the phone starting from a certain directory.
+	 *
+	 * @param phoneDirPathName
+	 *            the directory to start from (should end with "/")
+	 * @param hostDir
+	 *            the file system directory to write the dump to
+	 * @param recursive
+	 *            whether or not to recursively get the files and directories
+	 *            below the provided directory
+	 * @throws GjokiiException
+	 *             if the path is invalid or a transfer fails
+	 */
+	public void crawl(String phoneDirPathName, File hostDir, boolean recursive)
+			throws GjokiiException {
+		directories = 0;
+		files = 0;
+		bytes = 0;
+		failure = null;
+		queue.clear();
+		long start = System.currentTimeMillis();
+
+		/* the other connections download while the first one lists */
+		List<Thread> workers = new ArrayList<Thread>();
+		final long[] downloadStart = { Long.MAX_VALUE };
+		for (int i = 1; i < connections.size(); i++) {
+			final Gjokii g = connections.get(i);
+			Thread t = new Thread("crawler-" + i) {
+				public void run() {
+					download(g, downloadStart);
+				}
+			};
+			workers.add(t);
+			t.start();
+		}
+
+		hostDir.mkdirs();
+		List<Object[]> dirTimes = new ArrayList<Object[]>();
+		try {
+			list(connections.get(0), phoneDirPathName, hostDir, recursive,
+					dirTimes);
+		} catch (GjokiiException e) {
+			failure = e;
+		}
+		listingTime = System.currentTimeMillis() - start;
+		for (int i = 0; i < connections.size(); i++)
+			queue.add(END_OF_LISTING);
+
+		download(connections.get(0), downloadStart);
+		for (Thread t : workers) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				failure = new GjokiiException("interrupted");
+			}
+		}
+		long end = System.currentTimeMillis();
+		totalTime = end - start;
+		synchronized (downloadStart) {
+			downloadTime = (downloadStart[0] == Long.MAX_VALUE) ? 0 : end
+					- downloadStart[0];
+		}
+		if (failure != null)
+			throw failure;
+
+		/* writing the files changed the directory times, restore them */
+		for (int i = dirTimes.size() - 1; i >= 0; i--) {
+			Object[] dirTime = dirTimes.get(i);
+			((File) dirTime[0]).setLastModified((Long) dirTime[1]);
+		}
+	}
+
+	/**
+	 * Download files from the queue until the listing is done and the queue is
+	 * empty, or until a transfer fails on any of the connections.
+	 *
+	 * @param g
+	 *            the connection to download with
+	 * @param downloadStart
+	 *            holds the time the first download started
+	 */
+	private void download(Gjokii g, long[] downloadStart) {
+		while (true) {
+			Task task;
+			try {
+				task = queue.take();
+			} catch (InterruptedException e) {
+				failure = new GjokiiException("interrupted");
+				return;
+			}
+			if (task == END_OF_LISTING)
+				return;
+			if (failure != null)
+				continue;
+			synchronized (downloadStart) {
+				if (downloadStart[0] == Long.MAX_VALUE)
+					downloadStart[0] = System.currentTimeMillis();
+			}
+			try {
+				g.getFile(task.phoneFilePathName, task.hostFile);
+				synchronized (this) {
+					files++;
+					bytes += task.size;
+				}
+			} catch (GjokiiException e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of bytes downloaded by the last crawl
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the throughput of the last crawl, from the start of the listing
+	 * until the last download completed
+	 *
+	 * @return the throughput in bytes per second
+	 */
+	public long getBytesPerSecond() {
+		return (totalTime == 0) ? 0 : bytes * 1000 / totalTime;
+	}
+
+	/**
+	 * Get the number of directories listed by the last crawl
+	 *
+	 * @return the number of directories
+	 */
+	public int getDirectories() {
+		return directories;
+	}
+
+	/**
+	 * Get the time spent downloading in the last crawl, from the start of the
+	 * first download until the last download completed
+	 *
+	 * @return the time in ms
+	 */
+	public long getDownloadTime() {
+		return downloadTime;
+	}
+
+	/**
+	 * Get the number of files downloaded by the last crawl
+	 *
+	 * @return the number of files
+	 */
+	public int getFiles() {
+		return files;
+	}
+
+	/**
+	 * Get the time spent listing directories in the last crawl
+	 *
+	 * @return the time in ms
+	 */
+	public long getListingTime() {
+		return listingTime;
+	}
+
+	/**
+	 * Get the total time of the last crawl
+	 *
+	 * @return the time in ms
+	 */
+	public long getTotalTime() {
+		return totalTime;
+	}
+
+	/**
+	 * Walk the directory tree breadth first and queue all files
+	 *
+	 * @param g
+	 *            the connection to list with
+	 * @param phoneDirPathName
+	 *            the directory to start from
+	 * @param hostDir
+	 *            the file system directory belonging to it
+	 * @param recursive
+	 *            whether or not to list the directories below it
+	 * @param dirTimes
+	 *            collects the directories created with their time stamp
+	 * @throws GjokiiException
+	 *             if listing a directory fails
+	 */
+	private void list(Gjokii g, String phoneDirPathName, File hostDir,
+			boolean recursive, List<Object[]> dirTimes) throws GjokiiException {
+		LinkedList<Object[]> pendingDirs = new LinkedList<Object[]>();
+		pendingDirs.add(new Object[] { phoneDirPathName, hostDir });
+		while (!pendingDirs.isEmpty() && failure == null) {
+			Object[] dir = pendingDirs.removeFirst();
+			String phoneDir = (String) dir[0];
+			File localDir = (File) dir[1];
+			directories++;
+			for (DirectoryEntryInfo d : g.getDirectoryList(phoneDir)) {
+				if (!d.isDirectory() && !d.isFile()) {
+					/* probably empty directory, ignore */
+					continue;
+				}
+				File localFile = new File(localDir, d.getEntryName());
+				if (d.isDirectory()) {
+					if (recursive) {
+						localFile.mkdir();
+						dirTimes.add(new Object[] { localFile,
+								d.getEntryTimeStamp() });
+						pendingDirs.add(new Object[] {
+								phoneDir + d.getEntryName() + "/", localFile });
+					}
+				} else {
+					queue.add(new Task(phoneDir + d.getEntryName(),
+							localFile, d.getEntrySize()));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Keeps a directory on the local file system in sync with a directory on the
+ * phone.
+ *
+ * A manifest in the local directory records the size and time stamp of every
+ * file that was copied from the phone. Only files that are new or whose size or
+ * time stamp changed on the phone are transferred. Files are transferred
+ * resumably and the manifest is written every MANIFEST_INTERVAL files, every
+ * MANIFEST_TIME ms and when the sync ends, also when it fails. An interrupted
+ * sync continues where it stopped when it is run again, at worst the files
+ * transferred since the manifest was last written are checked and fetched
+ * again. Files that disappeared from the phone are either reported or
+ * deleted locally.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class FileSystemMirror {
+	/**
+	 * The name of the manifest file in the local directory
+	 */
+	public static final String MANIFEST_FILE = ".gjokii-manifest";
+
+	/**
+	 * The number of transferred files after which the manifest is written
+	 */
+	private static final int MANIFEST_INTERVAL = 64;
+
+	/**
+	 * The time in ms after which the manifest is written when files were
+	 * transferred
+	 */
+	private static final long MANIFEST_TIME = 5000;
+
+	private Gjokii g;
+	private File hostDir;
+	private boolean deleteVanished = false;
+	/* relative path -> size,timestamp */
+	private Properties manifest = new Properties();
+	/* the number of changes not in the manifest file yet */
+	private int unsaved;
+	private long lastStored;
+
+	private int transferred;
+	private long bytesTransferred;
+	private int unchanged;
+	private List<String> vanished = new ArrayList<String>();
+
+	/**
+	 * Construct the mirror
+	 *
+	 * @param g
+	 *            the (open) Gjokii connection to the phone
+	 * @param hostDir
+	 *            the local directory to keep in sync
+	 */
+	public FileSystemMirror(Gjokii g, File hostDir) {
+		this.g = g;
+		this.hostDir = hostDir;
+	}
+
+	/**
+	 * Get the number of bytes transferred by the last sync
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesTransferred() {
+		return bytesTransferred;
+	}
+
+	/**
+	 * Get the number of files transferred by the last sync
+	 *
+	 * @return the number of files
+	 */
+	public int getTransferred() {
+		return transferred;
+	}
+
+	/**
+	 * Get the number of files that did not change since the previous sync
+	 *
+	 * @return the number of files
+	 */
+	public int getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * Get the files that are no longer on the phone. When deleting is enabled
+	 * these files are deleted locally.
+	 *
+	 * @return the paths relative to the local directory
+	 */
+	public List<String> getVanished() {
+		return vanished;
+	}
+
+	/**
+	 * Whether or not to delete local files that were removed from the phone.
+	 *
+	 * @param deleteVanished
+	 *            true to delete them, false to only report them
+	 */
+	public void setDeleteVanished(boolean deleteVanished) {
+		this.deleteVanished = deleteVanished;
+	}
+
+	/**
+	 * Bring the local directory in sync with a directory on the phone.
+	 *
+	 * @param phoneDirPathName
+	 *            the directory on the phone (should end with "/")
+	 * @param recursive
+	 *            whether or not to include the directories below the provided
+	 *            directory
+	 * @throws GjokiiException
+	 *             if the path is invalid, a transfer fails or the manifest
+	 *             cannot be read or written
+	 */
+	public void sync(String phoneDirPathName, boolean recursive)
+			throws GjokiiException {
+		transferred = 0;
+		bytesTransferred = 0;
+		unchanged = 0;
+		vanished.clear();
+
+		if (!hostDir.isDirectory() && !hostDir.mkdirs())
+			throw new GjokiiException("unable to create directory "
+					+ hostDir.getAbsolutePath());
+		loadManifest();
+
+		boolean complete = false;
+		try {
+			HashSet<String> seen = new HashSet<String>();
+			sync(phoneDirPathName, "", recursive, seen);
+
+			/* only reached when the whole tree was walked */
+			for (Object k : new ArrayList<Object>(manifest.keySet())) {
+				String relativePathName = (String) k;
+				if (seen.contains(relativePathName))
+					continue;
+				/* not part of this sync when not recursive */
+				if (!recursive && relativePathName.indexOf('/') != -1)
+					continue;
+				vanished.add(relativePathName);
+				if (deleteVanished) {
+					getLocalFile(relativePathName).delete();
+					manifest.remove(relativePathName);
+					unsaved++;
+				}
+			}
+			complete = true;
+		} finally {
+			if (unsaved != 0) {
+				try {
+					storeManifest();
+				} catch (GjokiiException e) {
+					/* do not hide the error that stopped the sync */
+					if (complete)
+						throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sync one directory.
+	 *
+	 * @param phoneDirPathName
+	 *            the directory on the phone
+	 * @param relativeDirPathName
+	 *            the same directory relative to the local directory, "" or
+	 *            ending with "/"
+	 * @param recursive
+	 *            whether or not to include the directories below this one
+	 * @param seen
+	 *            collects the relative paths of all files found on the phone
+	 * @throws GjokiiException
+	 */
+	private void sync(String phoneDirPathName, String relativeDirPathName,
+			boolean recursive, HashSet<String> seen) throws GjokiiException {
+		ArrayList<DirectoryEntryInfo> fileList = g
+				.getDirectoryList(phoneDirPathName);
+		for (DirectoryEntryInfo d : fileList) {
+			String relativePathName = relativeDirPathName + d.getEntryName();
+			if (d.isDirectory()) {
+				if (recursive) {
+					File localDir = getLocalFile(relativePathName);
+					localDir.mkdir();
+					sync(phoneDirPathName + d.getEntryName() + "/",
+							relativePathName + "/", recursive, seen);
+					localDir.setLastModified(d.getEntryTimeStamp());
+				}
+			} else if (d.isFile()) {
+				seen.add(relativePathName);
+				String version = d.getEntrySize() + ","
+						+ d.getEntryTimeStamp();
+				File localFile = getLocalFile(relativePathName);
+				if (version.equals(manifest.getProperty(relativePathName))
+						&& localFile.length() == d.getEntrySize()) {
+					unchanged++;
+					continue;
+				}
+				/*
+				 * never leave a half written file under the real name, an
+				 * interrupted transfer continues on the next sync
+				 */
+				g.getFile(phoneDirPathName + d.getEntryName(), localFile, true);
+				manifest.setProperty(relativePathName, version);
+				unsaved++;
+				if (unsaved >= MANIFEST_INTERVAL
+						|| System.currentTimeMillis() - lastStored >= MANIFEST_TIME)
+					storeManifest();
+				transferred++;
+				bytesTransferred += d.getEntrySize();
+			} else {
+				/* probably empty directory, ignore */
+			}
+		}
+	}
+
+	/**
+	 * Convert a path relative to the local directory to a file
+	 *
+	 * @param relativePathName
+	 *            the path, using "/" as separator
+	 * @return the file
+	 */
+	private File getLocalFile(String relativePathName) {
+		return new File(hostDir, relativePathName.replace('/',
+				File.separatorChar));
+	}
+
+	/**
+	 * Read the manifest from the local directory, if there is one
+	 *
+	 * @throws GjokiiException
+	 *             if reading the manifest fails
+	 */
+	private void loadManifest() throws GjokiiException {
+		manifest.clear();
+		unsaved = 0;
+		lastStored = System.currentTimeMillis();
+		File manifestFile = new File(hostDir, MANIFEST_FILE);
+		if (!manifestFile.exists()) {
+			/* interrupted while replacing the manifest */
+			manifestFile = new File(hostDir, MANIFEST_FILE + ".tmp");
+			if (!manifestFile.exists())
+				return;
+		}
+		try {
+			FileInputStream fis = new FileInputStream(manifestFile);
+			try {
+				manifest.load(fis);
+			} finally {
+				fis.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read manifest");
+		}
+	}
+
+	/**
+	 * Write the manifest to the local directory
+	 *
+	 * @throws GjokiiException
+	 *             if writing the manifest fails
+	 */
+	private void storeManifest() throws GjokiiException {
+		File manifestFile = new File(hostDir, MANIFEST_FILE);
+		File tmpFile = new File(hostDir, MANIFEST_FILE + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmpFile);
+			try {
+				manifest.store(fos, "Gjokii mirror manifest");
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write manifest");
+		}
+		/* replace the old manifest only when the new one is complete */
+		manifestFile.delete();
+		if (!tmpFile.renameTo(manifestFile))
+			throw new GjokiiException("unable to write manifest");
+		unsaved = 0;
+		lastStored = System.currentTimeMillis();
+	}
+}
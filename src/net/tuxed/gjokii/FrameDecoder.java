@@ -0,0 +1,105 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the byte stream coming from the phone into frames.
+ *
+ * Every frame starts with the header
+ *
+ * <pre>
+ * 0x19 0x10 0x00 (type [1]) (size [2])
+ * </pre>
+ *
+ * followed by exactly size bytes of data. The decoder reads the header, then
+ * blocks until the announced number of bytes has arrived, no matter how the
+ * underlying stream chops up the data.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class FrameDecoder {
+	/**
+	 * The length of the frame header
+	 */
+	public static final int HEADER_SIZE = 6;
+
+	private InputStream is;
+	private byte[] header = new byte[HEADER_SIZE];
+
+	/**
+	 * Construct the decoder
+	 *
+	 * @param is
+	 *            the stream to read the frames from
+	 */
+	public FrameDecoder(InputStream is) {
+		this.is = is;
+	}
+
+	/**
+	 * Read exactly one frame from the stream.
+	 *
+	 * @return the complete frame, including the header
+	 * @throws GjokiiException
+	 *             if the stream ends before the frame is complete or the
+	 *             header is not a valid receive header
+	 */
+	public byte[] readFrame() throws GjokiiException {
+		readFully(header, 0, HEADER_SIZE);
+		if (header[0] != (byte) 0x19 || header[1] != (byte) 0x10
+				|| header[2] != (byte) 0x00)
+			throw new GjokiiException("unexpected frame header");
+		/* the size is an unsigned big endian short */
+		int size = ((header[4] & 0xff) << 8) | (header[5] & 0xff);
+		byte[] frame = new byte[HEADER_SIZE + size];
+		System.arraycopy(header, 0, frame, 0, HEADER_SIZE);
+		readFully(frame, HEADER_SIZE, size);
+		return frame;
+	}
+
+	/**
+	 * Block until the requested number of bytes is read from the stream.
+	 *
+	 * @param b
+	 *            the buffer to read into
+	 * @param offset
+	 *            the offset in the buffer to start writing at
+	 * @param length
+	 *            the number of bytes to read
+	 * @throws GjokiiException
+	 *             if the stream ends or reading fails
+	 */
+	private void readFully(byte[] b, int offset, int length)
+			throws GjokiiException {
+		try {
+			while (length > 0) {
+				int bytesRead = is.read(b, offset, length);
+				if (bytesRead == -1)
+					throw new GjokiiException("end of stream reached");
+				offset += bytesRead;
+				length -= bytesRead;
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("problem receiving data: "
+					+ e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.tuxed.misc.ByteArrayBuilder;
+
+/**
+ * Builds frames for the phone in one reusable buffer.
+ *
+ * Every frame sent to the phone starts with the header
+ *
+ * <pre>
+ * 0x19 0x00 0x10 (type [1]) (size [2])
+ * </pre>
+ *
+ * followed by size bytes of data. A frame is started with begin, after which
+ * the request data is added and patched in place. The size field of the header
+ * is filled in when the frame is written, so the whole frame goes out with a
+ * single write. The buffer only grows when a larger frame than before is
+ * built, so sending a stream of blocks allocates nothing.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class FrameEncoder {
+	private ByteArrayBuilder frame;
+
+	/**
+	 * Construct the encoder
+	 *
+	 * @param capacity
+	 *            the initial size of the buffer
+	 */
+	public FrameEncoder(int capacity) {
+		frame = new ByteArrayBuilder(Math.max(capacity,
+				FrameDecoder.HEADER_SIZE));
+	}
+
+	/**
+	 * Start a new frame
+	 *
+	 * @param msgType
+	 *            the message type
+	 */
+	public void begin(byte msgType) {
+		frame.clear();
+		frame.putByte(0x19).putByte(0x00).putByte(0x10).putByte(msgType);
+		frame.putZeros(2); /* size, filled in by writeTo */
+	}
+
+	/**
+	 * Add data to the frame
+	 *
+	 * @param data
+	 *            the data to add
+	 */
+	public void put(byte[] data) {
+		put(data, 0, data.length);
+	}
+
+	/**
+	 * Add (part of) a byte array to the frame
+	 *
+	 * @param data
+	 *            the byte array
+	 * @param offset
+	 *            the offset in the byte array to start from
+	 * @param len
+	 *            the number of bytes to add
+	 */
+	public void put(byte[] data, int offset, int len) {
+		frame.put(data, offset, len);
+	}
+
+	/**
+	 * Overwrite a byte in the data already added to the frame
+	 *
+	 * @param position
+	 *            the position relative to the start of the data
+	 * @param v
+	 *            the value
+	 */
+	public void putByte(int position, int v) {
+		frame.setByte(FrameDecoder.HEADER_SIZE + position, v);
+	}
+
+	/**
+	 * Overwrite a big endian short in the data already added to the frame
+	 *
+	 * @param position
+	 *            the position relative to the start of the data
+	 * @param v
+	 *            the value
+	 */
+	public void putShort(int position, int v) {
+		frame.setShort(FrameDecoder.HEADER_SIZE + position, v);
+	}
+
+	/**
+	 * Overwrite a big endian integer in the data already added to the frame
+	 *
+	 * @param position
+	 *            the position relative to the start of the data
+	 * @param v
+	 *            the value
+	 */
+	public void putInt(int position, int v) {
+		frame.setInt(FrameDecoder.HEADER_SIZE + position, v);
+	}
+
+	/**
+	 * Add data read from a stream to the frame
+	 *
+	 * @param is
+	 *            the stream to read from
+	 * @param len
+	 *            the maximum number of bytes to read
+	 * @return the number of bytes added, or -1 if the end of the stream was
+	 *         reached
+	 * @throws IOException
+	 *             if reading from the stream fails
+	 */
+	public int readFrom(InputStream is, int len) throws IOException {
+		return frame.readFrom(is, len);
+	}
+
+	/**
+	 * Write the frame to a stream
+	 *
+	 * @param os
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing to the stream fails
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		putShort(-2, frame.length() - FrameDecoder.HEADER_SIZE);
+		frame.writeTo(os);
+		os.flush();
+	}
+
+	/**
+	 * Get the buffer holding the frame
+	 *
+	 * @return the buffer, only the first getLength() bytes belong to the frame
+	 */
+	public byte[] getBuffer() {
+		return frame.getBuffer();
+	}
+
+	/**
+	 * Get the length of the frame including the header
+	 *
+	 * @return the length
+	 */
+	public int getLength() {
+		return frame.length();
+	}
+}
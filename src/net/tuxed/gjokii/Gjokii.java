@@ -29,39 +29,25 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.regex.Pattern;
-
-import javax.microedition.io.Connector;
-import javax.microedition.io.StreamConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.tuxed.misc.Utils;
 
 /**
  * Low level class to access Nokia S40 functionality.
  * 
+ * One Gjokii object handles one phone connection and should be used by one
+ * thread at a time. The request templates below are shared by all objects and
+ * are never modified, every request is built in the encoder owned by the
+ * connection, so any number of connections can be used in parallel.
+ * 
  * @author F. Kooman <fkooman@tuxed.net>
  * 
  */
 public class Gjokii {
-	/**
-	 * The header for sending data over Bluetooth looks like this:
-	 * 
-	 * <pre>
-	 * 0x19 0x00 0x10 (type [1]) (size [2]) (data [size])
-	 * </pre>
-	 * 
-	 * The header for receiving data over Bluetooth looks like this:
-	 * 
-	 * <pre>
-	 * 0x19 0x10 0x00 (type [1]) (size [2]) (data [size])
-	 * </pre>
-	 * 
-	 * 0xff is replaced with the message type, 0xee 0xee is replaced with the
-	 * total length of the message following the header
-	 */
-	private static final byte[] BT_HEADER = { (byte) 0x19, (byte) 0x00,
-			(byte) 0x10, (byte) 0xff, (byte) 0xee, (byte) 0xee };
-
 	private static final byte[] PHONE_INIT = { (byte) 0x04 };
 
 	private static final byte[] PHONE_INFO = { (byte) 0x00, (byte) 0x01,
@@ -93,14 +79,16 @@ public class Gjokii {
 	 * 
 	 * 0xff 0xff is replaced with the file descriptor (fileDesc)
 	 * 
-	 * 0xee 0xee is replaced with the number of bytes to request for this block.
-	 * The idea implemented by Gnokii is that blocks of size 256 (0x01 0x00) are
-	 * requested until the last block which can be less than 256 bytes.
+	 * 0x00 0x00 0xee 0xee is replaced with the number of bytes to request for
+	 * this block. The idea implemented by Gnokii is that blocks of size 256
+	 * (0x01 0x00) are requested until the last block which can be less than 256
+	 * bytes.
 	 * 
-	 * 0xdd 0xdd is replaced with the current block number starting from 0x00
-	 * 0x00, at every request this is increased by 1. This would thus result in
-	 * a maximum file size of 16MB. It should be investigated whether or not
-	 * these fields can contain integer values instead of just shorts.
+	 * 0x00 0xdd 0xdd 0x00 is replaced with the offset in the file of the
+	 * requested block. With blocks of 256 bytes 0xdd 0xdd is just the block
+	 * number, but the field is a big endian integer which allows for other
+	 * block sizes. The phone echoes the offset at the same position in its
+	 * reply.
 	 */
 	private static final byte[] GET_FILE = { (byte) 0x00, (byte) 0x01,
 			(byte) 0x00, (byte) 0x5e, (byte) 0x00, (byte) 0x00, (byte) 0x00,
@@ -145,18 +133,85 @@ public class Gjokii {
 			(byte) 0x00, (byte) 0x62, (byte) 0x00, (byte) 0xff };
 
 	/**
-	 * The block size used for getting and putting files
+	 * The block size used for getting files until a larger block size is
+	 * negotiated with the phone
+	 */
+	private static final int DEFAULT_BLOCK_SIZE = 256;
+
+	/**
+	 * The block size used for putting files. Only GET_FILE requests are used
+	 * to negotiate the block size, writing larger blocks was never tried on a
+	 * phone.
+	 */
+	private static final int PUT_BLOCK_SIZE = 256;
+
+	/**
+	 * The largest block size that is tried when negotiating
+	 */
+	private static final int MAX_BLOCK_SIZE = 16384;
+
+	/**
+	 * The value of the status byte of a directory list entry when another
+	 * entry follows
+	 */
+	private static final byte LIST_MORE_ENTRIES = (byte) 0x0d;
+
+	/**
+	 * The offset of the status byte in a directory list entry
 	 */
-	private static final short BLOCK_SIZE = 256;
-	private StreamConnection con;
+	private static final int LIST_STATUS = 10;
+
+	/**
+	 * The maximum number of block requests in flight while getting a file
+	 */
+	private static final int MAX_WINDOW_SIZE = 64;
+
+	/**
+	 * The number of bytes after which the checkpoint of a resumable transfer
+	 * is written
+	 */
+	private static final int CHECKPOINT_INTERVAL = 64 * 1024;
+	private Transport transport;
 
 	private InputStream is;
+	private FrameDecoder decoder;
+	private FrameEncoder encoder = new FrameEncoder(1024);
 	private OutputStream os;
 	private boolean verbose;
+	private ProtocolTrace trace;
+	private WireCapture capture;
+	private GjokiiMetrics metrics = new GjokiiMetrics(GjokiiMetrics.getGlobal());
+	/*
+	 * the operation and send time of the requests waiting for a reply, a ring
+	 * buffer starting at inFlightHead. There are never more requests in flight
+	 * than the largest window. After an error the replies to them may never
+	 * arrive, so the requests are forgotten.
+	 */
+	private int[] inFlightOperations = new int[MAX_WINDOW_SIZE];
+	private long[] inFlightTimes = new long[MAX_WINDOW_SIZE];
+	private int inFlightHead = 0;
+	private int inFlightCount = 0;
+	/* the operation of the last reply, for replies of multiple frames */
+	private int lastOperation = GjokiiMetrics.INIT;
+	private int windowSize = 1;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private boolean blockSizeNegotiated = false;
+	/*
+	 * the negotiated block sizes per phone model, only used by this
+	 * connection unless they are shared with setBlockSizes
+	 */
+	private Map<String, Integer> blockSizes = new ConcurrentHashMap<String, Integer>();
 
 	private String firmwareVersion;
 	private String firmwareDate;
 	private String phoneModel;
+	private String imei;
+
+	/**
+	 * The entries seen in directory listings and file information requests on
+	 * this connection, indexed by their full path
+	 */
+	private HashMap<String, DirectoryEntryInfo> entries = new HashMap<String, DirectoryEntryInfo>();
 
 	/**
 	 * Open the phone connection and initialize it
@@ -173,21 +228,124 @@ public class Gjokii {
 	 */
 	public Gjokii(String deviceAddress, int channel, boolean d)
 			throws GjokiiException {
+		this(deviceAddress, channel, d, null);
+	}
+
+	/**
+	 * Open the phone connection and initialize it, recording all frames
+	 * 
+	 * @param deviceAddress
+	 *            the Bluetooth hardware address to connect to (e.g.:
+	 *            001122334455)
+	 * @param channel
+	 *            the channel on the phone to connect to (e.g.: 15)
+	 * @param d
+	 *            whether or not to print debugging information
+	 * @param capture
+	 *            the capture to record the frames of this connection in, or
+	 *            null
+	 * @throws GjokiiException
+	 *             if the Bluetooth hardware address is invalid
+	 */
+	public Gjokii(String deviceAddress, int channel, boolean d,
+			WireCapture capture) throws GjokiiException {
+		this(new BluetoothTransport(deviceAddress, channel), d, capture);
+	}
+
+	/**
+	 * Initialize the phone over an already opened connection, for example a
+	 * serial over IP bridge or a simulated phone.
+	 * 
+	 * @param is
+	 *            the stream to receive data from the phone
+	 * @param os
+	 *            the stream to send data to the phone
+	 * @param d
+	 *            whether or not to print debugging information
+	 * @throws GjokiiException
+	 *             if the phone does not respond to the initialization
+	 */
+	public Gjokii(InputStream is, OutputStream os, boolean d)
+			throws GjokiiException {
+		this(is, os, d, null);
+	}
+
+	/**
+	 * Initialize the phone over an already opened connection, recording all
+	 * frames
+	 * 
+	 * @param is
+	 *            the stream to receive data from the phone
+	 * @param os
+	 *            the stream to send data to the phone
+	 * @param d
+	 *            whether or not to print debugging information
+	 * @param capture
+	 *            the capture to record the frames of this connection in, or
+	 *            null
+	 * @throws GjokiiException
+	 *             if the phone does not respond to the initialization
+	 */
+	public Gjokii(InputStream is, OutputStream os, boolean d,
+			WireCapture capture) throws GjokiiException {
+		this(new StreamTransport(is, os), d, capture);
+	}
+
+	/**
+	 * Open the phone connection over a transport and initialize it
+	 * 
+	 * @param transport
+	 *            the (not yet opened) transport to the phone
+	 * @param d
+	 *            whether or not to print debugging information
+	 * @throws GjokiiException
+	 *             if the phone cannot be reached or does not respond to the
+	 *             initialization
+	 */
+	public Gjokii(Transport transport, boolean d) throws GjokiiException {
+		this(transport, d, null);
+	}
+
+	/**
+	 * Open the phone connection over a transport and initialize it, recording
+	 * all frames
+	 * 
+	 * @param transport
+	 *            the (not yet opened) transport to the phone
+	 * @param d
+	 *            whether or not to print debugging information
+	 * @param capture
+	 *            the capture to record the frames of this connection in, or
+	 *            null
+	 * @throws GjokiiException
+	 *             if the phone cannot be reached or does not respond to the
+	 *             initialization
+	 */
+	public Gjokii(Transport transport, boolean d, WireCapture capture)
+			throws GjokiiException {
 		verbose = d;
-		if (!Pattern.matches("[0-9a-fA-F]{12}", deviceAddress))
-			throw new GjokiiException("invalid bluetooth hardware address");
-		if (channel < 0)
-			throw new GjokiiException("no or wrong channel specified");
-		String phoneURL = "btspp://" + deviceAddress + ":" + channel;
+		this.capture = capture;
+		this.transport = transport;
+		transport.open();
+		is = transport.getInputStream();
+		os = transport.getOutputStream();
+		init();
+	}
 
-		try {
-			con = (StreamConnection) Connector.open(phoneURL);
-			is = con.openInputStream();
-			os = con.openOutputStream();
-			phoneInit();
-		} catch (IOException e) {
-			throw new GjokiiException("unable to connect");
-		}
+	/**
+	 * Get the number of bytes in a block of a file.
+	 * 
+	 * @param fileSize
+	 *            the number of bytes to transfer
+	 * @param numberOfBlocks
+	 *            the number of blocks making up these bytes
+	 * @param block
+	 *            the block number
+	 * @return the number of bytes in the block
+	 */
+	private int blockLength(int fileSize, int numberOfBlocks, int block) {
+		return (block < numberOfBlocks - 1) ? blockSize : fileSize - block
+				* blockSize;
 	}
 
 	/**
@@ -197,11 +355,43 @@ public class Gjokii {
 	 *             if closing the connection fails
 	 */
 	public void close() throws GjokiiException {
+		forgetInFlight();
+		transport.close();
+	}
+
+	/**
+	 * Close an open file on the phone
+	 * 
+	 * @param fileId
+	 *            the file descriptor of the open file
+	 * @throws GjokiiException
+	 *             if there was a problem sending or receiving the data
+	 */
+	private void closeFile(short fileId) throws GjokiiException {
+		encoder.begin((byte) 0x6d);
+		encoder.put(CLOSE_FILE);
+		encoder.putShort(8, fileId);
+		sendFrame(GjokiiMetrics.CLOSE_FILE);
+		receive();
+	}
+
+	/**
+	 * Close an open file on the phone after a transfer failed. A problem
+	 * closing the file is only shown in verbose mode, it should not hide the
+	 * reason the transfer failed.
+	 * 
+	 * @param fileId
+	 *            the file descriptor of the open file
+	 */
+	private void closeFileAfterFailure(short fileId) {
 		try {
-			con.close();
-		} catch (IOException e) {
-			throw new GjokiiException("unable to close connection: "
-					+ e.getMessage());
+			/* the replies to the requests still in flight arrive first */
+			while (inFlightCount != 0)
+				receive();
+			closeFile(fileId);
+		} catch (GjokiiException e) {
+			if (verbose)
+				System.out.println("CLOSING FILE FAILED: " + e.getMessage());
 		}
 	}
 
@@ -212,13 +402,16 @@ public class Gjokii {
 	 *            the file to delete
 	 */
 	public void deleteFile(String pathFileName) throws GjokiiException {
-		DirectoryEntryInfo d = getEntryInfo(pathFileName);
+		DirectoryEntryInfo d = getCachedEntryInfo(pathFileName);
 		if (!d.isFile())
 			throw new GjokiiException("not a file or does not exist");
+		entries.remove(pathFileName);
 		byte[] fileNameBytes = Utils.stringToBytes(pathFileName, true);
-		byte[] deleteFile = Utils.appendToByteArray(DELETE_FILE, fileNameBytes);
-		deleteFile[5] = (byte) fileNameBytes.length;
-		send((byte) 0x6d, deleteFile);
+		encoder.begin((byte) 0x6d);
+		encoder.put(DELETE_FILE);
+		encoder.putByte(5, fileNameBytes.length);
+		encoder.put(fileNameBytes);
+		sendFrame(GjokiiMetrics.DELETE_FILE);
 		/* we assume that if the file exists, deleting succeeds */
 		receive();
 	}
@@ -236,9 +429,26 @@ public class Gjokii {
 	 */
 	public void dumpFileSystem(String directoryPath, boolean recursive)
 			throws GjokiiException {
-		File outputDir = new File("output");
-		outputDir.mkdir();
-		dumpFileSystem("output", directoryPath, recursive);
+		dumpFileSystem(new File("output"), directoryPath, recursive);
+	}
+
+	/**
+	 * Dump the file system of the phone starting from a certain directory.
+	 * 
+	 * @param outputDir
+	 *            the file system directory to write the dump to
+	 * @param directoryPath
+	 *            the directory to start from
+	 * @param recursive
+	 *            whether or not to recursively get the files and directories
+	 *            below the provided directory
+	 * @throws GjokiiException
+	 *             if the path is invalid
+	 */
+	public void dumpFileSystem(File outputDir, String directoryPath,
+			boolean recursive) throws GjokiiException {
+		outputDir.mkdirs();
+		dumpFileSystem(outputDir.getPath(), directoryPath, recursive);
 	}
 
 	/**
@@ -287,6 +497,60 @@ public class Gjokii {
 		}
 	}
 
+	/**
+	 * Forget the negotiated block size after the phone did not return a whole
+	 * block, the next transfer negotiates again
+	 */
+	private void forgetBlockSize() {
+		if (blockSize == DEFAULT_BLOCK_SIZE)
+			return;
+		if (phoneModel != null)
+			blockSizes.remove(phoneModel);
+		blockSize = DEFAULT_BLOCK_SIZE;
+		blockSizeNegotiated = false;
+	}
+
+	/**
+	 * Forget the requests in flight, their replies are not expected anymore
+	 */
+	private void forgetInFlight() {
+		inFlightHead = 0;
+		inFlightCount = 0;
+	}
+
+	/**
+	 * Get the block size used for getting files.
+	 * 
+	 * @return the block size in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Get the negotiated block sizes per phone model used by this connection
+	 * 
+	 * @return the block sizes, to share them with other connections
+	 */
+	public Map<String, Integer> getBlockSizes() {
+		return blockSizes;
+	}
+
+	/**
+	 * Get information about a directory entry, from the entries seen earlier
+	 * on this connection if possible.
+	 * 
+	 * @param filePathName
+	 *            the entry to get information about
+	 * @return the object containing information about the entry
+	 * @throws GjokiiException
+	 */
+	private DirectoryEntryInfo getCachedEntryInfo(String filePathName)
+			throws GjokiiException {
+		DirectoryEntryInfo d = entries.get(filePathName);
+		return (d != null) ? d : getEntryInfo(filePathName);
+	}
+
 	/**
 	 * Get a directory list.
 	 * 
@@ -299,56 +563,68 @@ public class Gjokii {
 	public ArrayList<DirectoryEntryInfo> getDirectoryList(String directoryPath)
 			throws GjokiiException {
 
+		/* the entries are in the directory, also when it ends with a "*" */
+		String parentPath = directoryPath;
+		while (parentPath.endsWith("*"))
+			parentPath = parentPath.substring(0, parentPath.length() - 1);
+
 		/* make sure the directory exists */
-		if (!directoryPath.equals("/")) {
-			DirectoryEntryInfo d = getEntryInfo(directoryPath.substring(0,
-					directoryPath.length() - 1));
+		if (!parentPath.equals("/")) {
+			DirectoryEntryInfo d = getCachedEntryInfo(parentPath.substring(0,
+					parentPath.length() - 1));
 			if (!d.isDirectory())
 				throw new GjokiiException("not a directory or does not exist");
 		}
 		directoryPath += "*";
-		byte[] fileList = FILE_LIST;
 		byte[] filePathBytes = Utils.stringToBytes(directoryPath, true);
 
 		ArrayList<DirectoryEntryInfo> directoryListing = new ArrayList<DirectoryEntryInfo>();
 
+		encoder.begin((byte) 0x6d);
+		encoder.put(FILE_LIST);
 		/* the length of the path in bytes should be set in the request */
-		fileList[5] = (byte) filePathBytes.length;
+		encoder.putByte(5, filePathBytes.length);
+		encoder.put(filePathBytes);
+		sendFrame(GjokiiMetrics.FILE_LIST);
 
-		fileList = Utils.appendToByteArray(fileList, filePathBytes);
-		send((byte) 0x6d, fileList);
-
-		byte[] result = receive();
 		/*
-		 * we receive the whole file list in one data block, we need to parse
-		 * this file in order to retrieve all the entries in there
+		 * we receive the file list as one frame per entry, the status byte of
+		 * every entry tells whether another one follows
 		 */
-		int offset = 0;
-		while (offset < result.length) {
-			/* the short at offset 4 contains the length of the current block */
-			short length = Utils.byteArrayToShort(result, offset + 4);
-			byte[] entryData = new byte[length + 6];
-			System.arraycopy(result, offset, entryData, 0, length + 6);
-			directoryListing.add(new DirectoryEntryInfo(entryData));
-			offset += length + 6;
-		}
+		byte[] entryData;
+		do {
+			entryData = receive();
+			DirectoryEntryInfo d = new DirectoryEntryInfo(entryData);
+			directoryListing.add(d);
+			/* remember the entry, transfers need no FILE_INFO for it */
+			if (d.isFile() || d.isDirectory())
+				entries.put(parentPath + d.getEntryName(), d);
+		} while (entryData.length > LIST_STATUS
+				&& entryData[LIST_STATUS] == LIST_MORE_ENTRIES);
 		return directoryListing;
 	}
 
 	/**
-	 * Get information about a directory entry.
+	 * Get information about a directory entry. The information is always
+	 * requested from the phone.
 	 * 
 	 * @param filePathName
 	 *            the entry to get information about
 	 * @return the object containing information about the entry
 	 * @throws GjokiiException
 	 */
-	private DirectoryEntryInfo getEntryInfo(String filePathName)
+	public DirectoryEntryInfo getEntryInfo(String filePathName)
 			throws GjokiiException {
-		byte[] fileNameBytes = Utils.stringToBytes(filePathName, true);
-		byte[] getFileInfo = Utils.appendToByteArray(FILE_INFO, fileNameBytes);
-		send((byte) 0x6d, getFileInfo);
-		return new DirectoryEntryInfo(receive());
+		encoder.begin((byte) 0x6d);
+		encoder.put(FILE_INFO);
+		encoder.put(Utils.stringToBytes(filePathName, true));
+		sendFrame(GjokiiMetrics.FILE_INFO);
+		DirectoryEntryInfo d = new DirectoryEntryInfo(receive());
+		if (d.isFile() || d.isDirectory())
+			entries.put(filePathName, d);
+		else
+			entries.remove(filePathName);
+		return d;
 	}
 
 	/**
@@ -385,12 +661,38 @@ public class Gjokii {
 	 */
 	public void getFile(String fileName, File targetFile)
 			throws GjokiiException {
+		getFile(fileName, targetFile, false);
+	}
+
+	/**
+	 * Gets a file from the phone located at the specified path.
+	 * 
+	 * The file is written to name (and path) specified by targetFileName. When
+	 * resuming, the data is first written to targetFileName.part and the
+	 * progress is recorded in targetFileName.checkpoint. If a transfer of the
+	 * same file was interrupted before it continues where it stopped, provided
+	 * the file did not change on the phone in the meantime. The file is renamed
+	 * to targetFileName when it is complete.
+	 * 
+	 * @param fileName
+	 *            the file with full path to get
+	 * @param targetFile
+	 *            the file to write to
+	 * @param resume
+	 *            whether or not to continue an interrupted transfer
+	 * @throws GjokiiException
+	 *             if no file was specified, if a directory was specified, if a
+	 *             non existing file was specified, or if writing the file to
+	 *             the local file system failed.
+	 */
+	public void getFile(String fileName, File targetFile, boolean resume)
+			throws GjokiiException {
 		if (fileName == null)
 			throw new GjokiiException("no file name to get specified");
 		if (fileName.endsWith("/"))
 			throw new GjokiiException("cannot fetch a directory");
 
-		DirectoryEntryInfo fi = getEntryInfo(fileName);
+		DirectoryEntryInfo fi = getCachedEntryInfo(fileName);
 
 		if (fi.isDirectory())
 			throw new GjokiiException("cannot fetch a directory");
@@ -400,53 +702,143 @@ public class Gjokii {
 		if (verbose)
 			System.out.println(fi);
 		int fileSize = fi.getEntrySize();
-		int numberOfBlocks = (fileSize % BLOCK_SIZE != 0) ? fileSize
-				/ BLOCK_SIZE + 1 : fileSize / BLOCK_SIZE;
+
+		File dataFile = targetFile;
+		TransferCheckpoint checkpoint = null;
+		int startOffset = 0;
+		if (resume) {
+			dataFile = new File(targetFile.getPath() + ".part");
+			checkpoint = new TransferCheckpoint(new File(targetFile.getPath()
+					+ ".checkpoint"), fileName, fi);
+			startOffset = checkpoint.restore(dataFile);
+			if (verbose && startOffset != 0)
+				System.out.println("RESUMING AT " + startOffset + " bytes");
+		}
+
 		short fileDesc = getFileDescriptor(fileName);
-		byte[] getFile = GET_FILE;
-		/* add the fileId to the request byte array */
-		getFile[8] = Utils.shortToByteArray(fileDesc)[0];
-		getFile[9] = Utils.shortToByteArray(fileDesc)[1];
 
+		int written = startOffset;
+		boolean transferred = false;
 		try {
-			FileOutputStream fos = new FileOutputStream(targetFile);
+			if (!blockSizeNegotiated && fileSize > blockSize)
+				negotiateBlockSize(fileDesc, fileSize);
+			int remaining = fileSize - startOffset;
+			int numberOfBlocks = (remaining % blockSize != 0) ? remaining
+					/ blockSize + 1 : remaining / blockSize;
+
+			FileOutputStream fos = new FileOutputStream(dataFile,
+					startOffset != 0);
 			DataOutputStream fileStream = new DataOutputStream(fos);
-			for (int i = 0; i < numberOfBlocks; i++) {
-				/* add the the current block number to the request byte array */
-				getFile[11] = Utils.shortToByteArray((short) i)[0];
-				getFile[12] = Utils.shortToByteArray((short) i)[1];
-				/* add the requested number of bytes to the request byte array */
-				short bytesWanted = (short) ((i < numberOfBlocks - 1) ? BLOCK_SIZE
-						: fileSize % BLOCK_SIZE);
-				getFile[20] = Utils.shortToByteArray(bytesWanted)[0];
-				getFile[21] = Utils.shortToByteArray(bytesWanted)[1];
-				send((byte) 0x6d, getFile);
-				byte[] tmp = receive();
+			try {
 				/*
-				 * maybe we should look at the number receive in tmp buffer
-				 * instead of just assuming we get what we want!
+				 * keep up to window block requests in flight, replies that
+				 * arrive out of order are kept until all blocks before them
+				 * are written
 				 */
-				assert (bytesWanted == tmp[15]);
-				fileStream.write(tmp, 16, bytesWanted);
+				int window = windowSize;
+				int nextToSend = 0;
+				int nextToWrite = 0;
+				int lastCheckpoint = written;
+				TreeMap<Integer, byte[]> pending = new TreeMap<Integer, byte[]>();
+				while (nextToWrite < numberOfBlocks) {
+					while (nextToSend < numberOfBlocks
+							&& nextToSend < nextToWrite + window) {
+						requestBlock(fileDesc, startOffset + nextToSend
+								* blockSize, blockLength(remaining,
+								numberOfBlocks, nextToSend));
+						nextToSend++;
+					}
+					byte[] tmp = receive();
+					/* the phone echoes the offset of the block it returns */
+					int block = -1;
+					if (tmp.length >= 16) {
+						int offset = Utils.byteArrayToInt(tmp, 10)
+								- startOffset;
+						if (offset >= 0 && offset % blockSize == 0)
+							block = offset / blockSize;
+					}
+					if (block != -1 && block < nextToSend
+							&& (block < nextToWrite || pending
+									.containsKey(block))) {
+						/* a block that was received already, drop it */
+						continue;
+					}
+					if (block == -1 || block >= nextToSend
+							|| tmp.length < 16 + blockLength(remaining,
+									numberOfBlocks, block)) {
+						if (window == 1) {
+							/* a short block, the block size may be too large */
+							if (block != -1 && block < nextToSend)
+								forgetBlockSize();
+							throw new GjokiiException(
+									"unexpected reply to file request");
+						}
+						/*
+						 * the phone does not seem to handle overlapping
+						 * requests, throw away the replies to the requests
+						 * still in flight and continue one block at a time
+						 */
+						int outstanding = nextToSend - nextToWrite
+								- pending.size() - 1;
+						for (int i = 0; i < outstanding; i++)
+							receive();
+						metrics.retried(GjokiiMetrics.GET_FILE, nextToSend
+								- nextToWrite);
+						pending.clear();
+						window = 1;
+						nextToSend = nextToWrite;
+						continue;
+					}
+					pending.put(block, tmp);
+					while (pending.containsKey(nextToWrite)) {
+						int length = blockLength(remaining, numberOfBlocks,
+								nextToWrite);
+						byte[] data = pending.remove(nextToWrite);
+						fileStream.write(data, 16, length);
+						written += length;
+						nextToWrite++;
+						if (checkpoint != null) {
+							checkpoint.update(data, 16, length);
+							if (written - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+								checkpoint.store(written);
+								lastCheckpoint = written;
+							}
+						}
+					}
+				}
+			} catch (GjokiiException e) {
+				/* everything written so far can be kept */
+				if (checkpoint != null)
+					checkpoint.store(written);
+				throw e;
+			} finally {
+				fileStream.close();
+			}
+
+			if (resume) {
+				targetFile.delete();
+				if (!dataFile.renameTo(targetFile))
+					throw new GjokiiException("unable to rename "
+							+ dataFile.getPath());
+				checkpoint.delete();
 			}
-			fileStream.close();
 
 			/* retail file/date of file */
 			targetFile.setLastModified(fi.getEntryTimeStamp());
-
-			/* close the file */
-			byte[] closeFile = CLOSE_FILE;
-			closeFile[8] = Utils.shortToByteArray(fileDesc)[0];
-			closeFile[9] = Utils.shortToByteArray(fileDesc)[1];
-			send((byte) 0x6d, closeFile);
-			receive();
+			transferred = true;
 		} catch (FileNotFoundException e) {
 			throw new GjokiiException("target file cannot be created: "
 					+ e.getMessage());
 		} catch (IOException e) {
+			if (checkpoint != null)
+				checkpoint.store(written);
 			throw new GjokiiException("error writing to file: "
 					+ e.getMessage());
+		} finally {
+			if (!transferred)
+				closeFileAfterFailure(fileDesc);
 		}
+		closeFile(fileDesc);
 	}
 
 	/**
@@ -458,24 +850,27 @@ public class Gjokii {
 	 * @return the file descriptor
 	 */
 	private short getFileDescriptor(String filePathName) throws GjokiiException {
-		byte[] fileNameBytes = Utils.stringToBytes(filePathName, true);
-		byte[] getFileID = Utils.appendToByteArray(GET_FILE_ID, fileNameBytes);
-		send((byte) 0x6d, getFileID);
+		encoder.begin((byte) 0x6d);
+		encoder.put(GET_FILE_ID);
+		encoder.put(Utils.stringToBytes(filePathName, true));
+		sendFrame(GjokiiMetrics.GET_FILE_ID);
 		byte[] result = receive();
-		byte[] fileDescriptor = Utils.subByteArray(result, 14, 2);
-		short fileDesc = Utils.byteArrayToShort(fileDescriptor, 0);
-		return fileDesc;
+		return Utils.byteArrayToShort(result, 14);
 	}
 
 	/**
-	 * Get the phone IMEI number
+	 * Get the phone IMEI number, it is only requested from the phone the first
+	 * time
 	 * 
 	 * @return the IMEI number
 	 */
 	public String getIMEI() throws GjokiiException {
-		send((byte) 0x1b, PHONE_IMEI);
-		byte[] result = receive();
-		return new String(result, 16, 15);
+		if (imei == null) {
+			send((byte) 0x1b, PHONE_IMEI, GjokiiMetrics.IMEI);
+			byte[] result = receive();
+			imei = new String(result, 16, 15);
+		}
+		return imei;
 	}
 
 	/**
@@ -487,6 +882,143 @@ public class Gjokii {
 		return firmwareVersion + "\n" + firmwareDate + "\n" + phoneModel;
 	}
 
+	/**
+	 * Get the metrics of this connection. Everything recorded in them is also
+	 * recorded in GjokiiMetrics.getGlobal().
+	 * 
+	 * @return the metrics
+	 */
+	public GjokiiMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Initialize the phone
+	 * 
+	 * @throws GjokiiException
+	 *             if the phone does not respond to the initialization
+	 */
+	private void init() throws GjokiiException {
+		decoder = new FrameDecoder(is);
+		forgetInFlight();
+		phoneInit();
+	}
+
+	/**
+	 * Find the largest block size the phone accepts by requesting the first
+	 * block of an open file with increasing sizes. The result is remembered for
+	 * the phone model and used by all later file reads on this connection and
+	 * on the connections sharing its block sizes.
+	 * 
+	 * @param fileDesc
+	 *            the file descriptor of the open file
+	 * @param fileSize
+	 *            the size of the open file
+	 * @throws GjokiiException
+	 *             if there was a problem sending or receiving the data
+	 */
+	private void negotiateBlockSize(short fileDesc, int fileSize)
+			throws GjokiiException {
+		int size = blockSize * 2;
+		while (size <= MAX_BLOCK_SIZE && size <= fileSize) {
+			requestBlock(fileDesc, 0, size);
+			byte[] tmp = receive();
+			if (tmp.length < 16 + size
+					|| (Utils.byteArrayToShort(tmp, 14) & 0xffff) != size) {
+				/* the phone does not accept this size */
+				blockSizeNegotiated = true;
+				break;
+			}
+			blockSize = size;
+			size *= 2;
+		}
+		if (size > MAX_BLOCK_SIZE)
+			blockSizeNegotiated = true;
+		if (blockSizeNegotiated && phoneModel != null)
+			blockSizes.put(phoneModel, blockSize);
+		if (verbose)
+			System.out.println("BLOCK SIZE " + blockSize + " bytes");
+	}
+
+	/**
+	 * Get a file ID for writing a file
+	 * 
+	 * @param targetPathFileName
+	 *            the file with full path to write
+	 * @return the file ID
+	 * @throws GjokiiException
+	 */
+	private short openFileForWriting(String targetPathFileName)
+			throws GjokiiException {
+		/* the size and time stamp are about to change */
+		entries.remove(targetPathFileName);
+		byte[] fileNameBytes = Utils.stringToBytes(targetPathFileName, true);
+
+		encoder.begin((byte) 0x6d);
+		encoder.put(PUT_FILE_ID);
+		encoder.putShort(6, fileNameBytes.length);
+		encoder.put(fileNameBytes);
+		sendFrame(GjokiiMetrics.PUT_FILE_ID);
+		byte[] result = receive();
+		return Utils.byteArrayToShort(result, 14);
+	}
+
+	/**
+	 * Open a file on the phone for reading. The blocks of the file are only
+	 * fetched from the phone when they are read.
+	 * 
+	 * The available method of the stream returns the number of bytes left in
+	 * the file, like it does for a local file. No other requests should be
+	 * made on this connection before the stream is closed.
+	 * 
+	 * @param fileName
+	 *            the file with full path to read
+	 * @return the stream
+	 * @throws GjokiiException
+	 *             if no file was specified, if a directory was specified or if
+	 *             a non existing file was specified
+	 */
+	public InputStream openInputStream(String fileName) throws GjokiiException {
+		if (fileName == null)
+			throw new GjokiiException("no file name to get specified");
+		DirectoryEntryInfo fi = getCachedEntryInfo(fileName);
+		if (fi.isDirectory())
+			throw new GjokiiException("cannot fetch a directory");
+		if (!fi.isFile())
+			throw new GjokiiException("file does not exist");
+
+		int fileSize = fi.getEntrySize();
+		short fileDesc = getFileDescriptor(fileName);
+		if (!blockSizeNegotiated && fileSize > blockSize) {
+			try {
+				negotiateBlockSize(fileDesc, fileSize);
+			} catch (GjokiiException e) {
+				closeFileAfterFailure(fileDesc);
+				throw e;
+			}
+		}
+		return new PhoneInputStream(fileDesc, fileSize);
+	}
+
+	/**
+	 * Open a file on the phone for writing. The data is sent to the phone
+	 * every time a block is filled, the file is complete when the stream is
+	 * closed. An existing file is overwritten.
+	 * 
+	 * No other requests should be made on this connection before the stream
+	 * is closed.
+	 * 
+	 * @param targetPathFileName
+	 *            the file with full path to write
+	 * @return the stream
+	 * @throws GjokiiException
+	 *             if the file cannot be opened
+	 */
+	public OutputStream openOutputStream(String targetPathFileName)
+			throws GjokiiException {
+		return new PhoneOutputStream(openFileForWriting(targetPathFileName));
+	}
+
 	/**
 	 * Initialize the phone connection
 	 * 
@@ -495,14 +1027,14 @@ public class Gjokii {
 	 *             initialization
 	 */
 	private void phoneInit() throws GjokiiException {
-		send((byte) 0xd0, PHONE_INIT);
+		send((byte) 0xd0, PHONE_INIT, GjokiiMetrics.INIT);
 		byte[] result = receive();
 		if (!Arrays.equals(result,
 				new byte[] { (byte) 0x19, (byte) 0x10, (byte) 0x00,
 						(byte) 0xd0, (byte) 0x00, (byte) 0x01, (byte) 0x05 }))
 			throw new GjokiiException(
 					"unexpected response to initiatialization");
-		send((byte) 0x1b, PHONE_INFO);
+		send((byte) 0x1b, PHONE_INFO, GjokiiMetrics.PHONE_INFO);
 		result = receive();
 		try {
 			BufferedReader br = new BufferedReader(new InputStreamReader(
@@ -517,6 +1049,25 @@ public class Gjokii {
 		}
 	}
 
+	/**
+	 * Print a hex dump of a frame in verbose mode
+	 * 
+	 * @param buffer
+	 *            the buffer holding the frame
+	 * @param offset
+	 *            the offset of the frame in the buffer
+	 * @param length
+	 *            the length of the frame
+	 */
+	private void printFrame(byte[] buffer, int offset, int length) {
+		try {
+			Utils.hexDump(System.out, buffer, offset, length);
+		} catch (IOException e) {
+			/* PrintStream does not throw */
+		}
+		System.out.println();
+	}
+
 	/**
 	 * Puts a file on the phone, we assume that the last part of the
 	 * targetPathFileName is a file that exists in the current directory
@@ -540,46 +1091,38 @@ public class Gjokii {
 	 */
 	public void putFile(String targetPathFileName, File sourceFile)
 			throws GjokiiException {
-		byte[] fileNameBytes = Utils.stringToBytes(targetPathFileName, true);
-
-		byte[] putFileId = Utils.appendToByteArray(PUT_FILE_ID, fileNameBytes);
-		putFileId[6] = Utils.shortToByteArray((short) fileNameBytes.length)[0];
-		putFileId[7] = Utils.shortToByteArray((short) fileNameBytes.length)[1];
-		send((byte) 0x6d, putFileId);
-		byte[] result = receive();
-		short fileId = Utils.byteArrayToShort(result, 14);
-
-		byte[] putFile = PUT_FILE;
-		putFile[8] = Utils.shortToByteArray(fileId)[0];
-		putFile[9] = Utils.shortToByteArray(fileId)[1];
+		short fileId = openFileForWriting(targetPathFileName);
 
+		boolean transferred = false;
 		try {
 			/* open the source file */
 			FileInputStream fis = new FileInputStream(sourceFile);
-			byte[] buffer = new byte[BLOCK_SIZE];
-			short bytesRead;
-
-			while ((bytesRead = (short) fis.read(buffer)) >= 0) {
-				byte[] blockPutFile = putFile;
-				/* set the number of bytes in the byte array */
-				blockPutFile[12] = Utils.shortToByteArray(bytesRead)[0];
-				blockPutFile[13] = Utils.shortToByteArray(bytesRead)[1];
-				/* add the byte array data */
-				blockPutFile = Utils.appendToByteArray(blockPutFile, buffer, 0,
-						bytesRead);
-				send((byte) 0x6d, blockPutFile);
-				result = receive();
+			try {
+				while (true) {
+					encoder.begin((byte) 0x6d);
+					encoder.put(PUT_FILE);
+					encoder.putShort(8, fileId);
+					/* read the block straight behind the request */
+					int bytesRead = encoder.readFrom(fis, PUT_BLOCK_SIZE);
+					if (bytesRead < 0)
+						break;
+					/* set the number of bytes in the request */
+					encoder.putShort(12, bytesRead);
+					sendFrame(GjokiiMetrics.PUT_FILE);
+					receive();
+				}
+			} finally {
+				fis.close();
 			}
+			transferred = true;
 		} catch (IOException e) {
 			throw new GjokiiException("unable to read from source file: "
 					+ e.getMessage());
+		} finally {
+			if (!transferred)
+				closeFileAfterFailure(fileId);
 		}
-		/* close the file */
-		byte[] closeFile = CLOSE_FILE;
-		closeFile[8] = Utils.shortToByteArray(fileId)[0];
-		closeFile[9] = Utils.shortToByteArray(fileId)[1];
-		send((byte) 0x6d, closeFile);
-		receive();
+		closeFile(fileId);
 	}
 
 	/**
@@ -589,53 +1132,69 @@ public class Gjokii {
 	 *             if rebooting fails
 	 */
 	public void reboot() throws GjokiiException {
-		send((byte) 0x15, PHONE_RESET);
+		send((byte) 0x15, PHONE_RESET, GjokiiMetrics.RESET);
 		receive();
 		close();
 	}
 
 	/**
-	 * Receive data from the phone
+	 * Receive one frame from the phone
 	 * 
-	 * @return the data
+	 * @return the frame, including the header
 	 * @throws GjokiiException
 	 *             if there was a problem receiving the data
 	 */
 	private byte[] receive() throws GjokiiException {
-		byte[] received = null;
-		byte[] buffer = new byte[64];
+		byte[] received;
 		try {
-			do {
-				int bytesRead = is.read(buffer);
-				if (bytesRead == -1)
-					throw new GjokiiException("end of stream reached");
-				byte[] result = new byte[bytesRead];
-				System.arraycopy(buffer, 0, result, 0, bytesRead);
-				received = Utils.appendToByteArray(received, result);
-				if (is.available() == 0) {
-					/*
-					 * although there is no data available right now, we wait a
-					 * bit in hopes of still getting more data in a short time
-					 * which belongs to this transfer, otherwise with the next
-					 * command we will be in trouble as we still receive data
-					 * belonging to this command. 100 ms seems to be adequate,
-					 * but I guess it may need to be more if the phone is slower
-					 * in dealing with all the data
-					 */
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-					}
-				}
-			} while (is.available() > 0);
-			if (verbose)
-				System.out.println("RECEIVED " + received.length + " bytes:\n"
-						+ Utils.hexDump(received));
-			return received;
-		} catch (IOException e) {
-			throw new GjokiiException("problem receiving data: "
-					+ e.getMessage());
+			received = decoder.readFrame();
+		} catch (GjokiiException e) {
+			forgetInFlight();
+			throw e;
+		}
+		/* replies arrive in the order the requests were sent */
+		long roundTrip = -1;
+		if (inFlightCount != 0) {
+			lastOperation = inFlightOperations[inFlightHead];
+			roundTrip = System.nanoTime() - inFlightTimes[inFlightHead];
+			inFlightHead = (inFlightHead + 1) % MAX_WINDOW_SIZE;
+			inFlightCount--;
 		}
+		metrics.received(lastOperation, received.length, roundTrip);
+		if (capture != null)
+			capture.received(received);
+		if (trace != null)
+			trace.received(received);
+		if (verbose) {
+			System.out.println("RECEIVED " + received.length + " bytes:");
+			printFrame(received, 0, received.length);
+		}
+		return received;
+	}
+
+	/**
+	 * Send the request for a block of an open file.
+	 * 
+	 * @param fileDesc
+	 *            the file descriptor of the open file
+	 * @param offset
+	 *            the offset in the file of the block to request
+	 * @param bytesWanted
+	 *            the number of bytes to request
+	 * @throws GjokiiException
+	 *             if sending the request fails
+	 */
+	private void requestBlock(short fileDesc, int offset, int bytesWanted)
+			throws GjokiiException {
+		encoder.begin((byte) 0x6d);
+		encoder.put(GET_FILE);
+		/* add the fileId to the request */
+		encoder.putShort(8, fileDesc);
+		/* add the offset of the current block to the request */
+		encoder.putInt(10, offset);
+		/* add the requested number of bytes to the request */
+		encoder.putInt(18, bytesWanted);
+		sendFrame(GjokiiMetrics.GET_FILE);
 	}
 
 	/**
@@ -645,23 +1204,256 @@ public class Gjokii {
 	 *            the message type
 	 * @param data
 	 *            the data to send
+	 * @param operation
+	 *            the operation to record the request under in the metrics
+	 * 
+	 * @throws GjokiiException
+	 *             if there was a problem sending the data
+	 */
+	private void send(byte msgType, byte[] data, int operation)
+			throws GjokiiException {
+		encoder.begin(msgType);
+		encoder.put(data);
+		sendFrame(operation);
+	}
+
+	/**
+	 * Send the frame built in the encoder to the phone
 	 * 
+	 * @param operation
+	 *            the operation to record the request under in the metrics
 	 * @throws GjokiiException
 	 *             if there was a problem sending the data
 	 */
-	private void send(byte msgType, byte[] data) throws GjokiiException {
-		byte[] message = BT_HEADER;
-		message[3] = msgType;
-		message[4] = Utils.shortToByteArray((short) data.length)[0];
-		message[5] = Utils.shortToByteArray((short) data.length)[1];
-		message = Utils.appendToByteArray(message, data);
+	private void sendFrame(int operation) throws GjokiiException {
+		if (inFlightCount == MAX_WINDOW_SIZE)
+			throw new IllegalStateException("more than " + MAX_WINDOW_SIZE
+					+ " requests in flight");
+		int tail = (inFlightHead + inFlightCount) % MAX_WINDOW_SIZE;
+		inFlightOperations[tail] = operation;
+		inFlightTimes[tail] = System.nanoTime();
+		inFlightCount++;
 		try {
-			if (verbose)
-				System.out.println("SENT:\n" + Utils.hexDump(message));
-			os.write(message);
-			os.flush();
+			encoder.writeTo(os);
 		} catch (IOException e) {
+			forgetInFlight();
 			throw new GjokiiException("problem sending data: " + e.getMessage());
 		}
+		/* the size in the header is only filled in when writing the frame */
+		metrics.sent(operation, encoder.getLength());
+		if (capture != null)
+			capture.sent(encoder.getBuffer(), 0, encoder.getLength());
+		if (trace != null)
+			trace.sent(encoder.getBuffer(), 0, encoder.getLength());
+		if (verbose) {
+			System.out.println("SENT:");
+			printFrame(encoder.getBuffer(), 0, encoder.getLength());
+		}
+	}
+
+	/**
+	 * Share the negotiated block sizes with other connections, a phone model
+	 * is then only negotiated once. By default every connection negotiates
+	 * for itself, so what it sends does not depend on earlier connections.
+	 * The block size negotiated earlier for the model of this phone is used
+	 * right away.
+	 * 
+	 * @param blockSizes
+	 *            the block sizes per phone model, it should be thread safe
+	 *            when the connections are used by several threads
+	 */
+	public void setBlockSizes(Map<String, Integer> blockSizes) {
+		this.blockSizes = blockSizes;
+		Integer negotiatedBlockSize = (phoneModel != null) ? blockSizes
+				.get(phoneModel) : null;
+		if (negotiatedBlockSize != null) {
+			blockSize = negotiatedBlockSize;
+			blockSizeNegotiated = true;
+		}
+	}
+
+	/**
+	 * Write all frames sent to and received from the phone to a trace. The
+	 * trace is not closed when the connection is closed.
+	 * 
+	 * @param trace
+	 *            the trace, or null to stop tracing
+	 */
+	public void setTrace(ProtocolTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Set the number of block requests that are sent to the phone before
+	 * waiting for a reply while getting a file. With a window of 1 every block
+	 * is requested after the previous one was received. If the phone does not
+	 * handle more than one request at a time the transfer falls back to a
+	 * window of 1.
+	 * 
+	 * @param windowSize
+	 *            the number of block requests in flight (1 - 64)
+	 * @throws GjokiiException
+	 *             if the window size is out of range
+	 */
+	public void setWindowSize(int windowSize) throws GjokiiException {
+		if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE)
+			throw new GjokiiException("invalid window size");
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Reads a file from the phone one block at a time
+	 */
+	private class PhoneInputStream extends InputStream {
+		private short fileDesc;
+		private int fileSize;
+		/* the offset in the file of the next block to fetch */
+		private int position = 0;
+		/* the last reply, the data starts at offset 16 */
+		private byte[] block;
+		private int blockOffset = 0;
+		private int blockEnd = 0;
+		private boolean closed = false;
+
+		PhoneInputStream(short fileDesc, int fileSize) {
+			this.fileDesc = fileDesc;
+			this.fileSize = fileSize;
+		}
+
+		public int available() throws IOException {
+			return (blockEnd - blockOffset) + (fileSize - position);
+		}
+
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				closeFile(fileDesc);
+			} catch (GjokiiException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		public int read() throws IOException {
+			if (blockOffset == blockEnd && !nextBlock())
+				return -1;
+			return block[blockOffset++] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (blockOffset == blockEnd && !nextBlock())
+				return -1;
+			int n = Math.min(len, blockEnd - blockOffset);
+			System.arraycopy(block, blockOffset, b, off, n);
+			blockOffset += n;
+			return n;
+		}
+
+		/**
+		 * Fetch the next block from the phone
+		 * 
+		 * @return true if a block was fetched, false at the end of the file
+		 * @throws IOException
+		 *             if the stream is closed or fetching the block fails
+		 */
+		private boolean nextBlock() throws IOException {
+			if (closed)
+				throw new IOException("stream closed");
+			if (position >= fileSize)
+				return false;
+			int length = Math.min(blockSize, fileSize - position);
+			try {
+				requestBlock(fileDesc, position, length);
+				block = receive();
+				if (block.length < 16 + length) {
+					/* the block size may be too large */
+					forgetBlockSize();
+					throw new GjokiiException("unexpected reply to file request");
+				}
+			} catch (GjokiiException e) {
+				/* the stream cannot be used anymore, close the file */
+				closed = true;
+				closeFileAfterFailure(fileDesc);
+				throw new IOException(e.getMessage());
+			}
+			blockOffset = 16;
+			blockEnd = 16 + length;
+			position += length;
+			return true;
+		}
+	}
+
+	/**
+	 * Writes a file to the phone one block at a time
+	 */
+	private class PhoneOutputStream extends OutputStream {
+		private short fileId;
+		private byte[] buffer = new byte[PUT_BLOCK_SIZE];
+		private int count = 0;
+		private boolean closed = false;
+
+		PhoneOutputStream(short fileId) {
+			this.fileId = fileId;
+		}
+
+		public void close() throws IOException {
+			if (closed)
+				return;
+			flush();
+			closed = true;
+			try {
+				closeFile(fileId);
+			} catch (GjokiiException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		public void flush() throws IOException {
+			if (closed)
+				throw new IOException("stream closed");
+			if (count == 0)
+				return;
+			try {
+				encoder.begin((byte) 0x6d);
+				encoder.put(PUT_FILE);
+				encoder.putShort(8, fileId);
+				encoder.put(buffer, 0, count);
+				/* set the number of bytes in the request */
+				encoder.putShort(12, count);
+				sendFrame(GjokiiMetrics.PUT_FILE);
+				receive();
+			} catch (GjokiiException e) {
+				/* the stream cannot be used anymore, close the file */
+				closed = true;
+				closeFileAfterFailure(fileId);
+				throw new IOException(e.getMessage());
+			}
+			count = 0;
+		}
+
+		public void write(int b) throws IOException {
+			if (closed)
+				throw new IOException("stream closed");
+			if (count == buffer.length)
+				flush();
+			buffer[count++] = (byte) b;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed)
+				throw new IOException("stream closed");
+			while (len > 0) {
+				if (count == buffer.length)
+					flush();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
 	}
 }
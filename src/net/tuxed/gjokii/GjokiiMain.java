@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.List;
 
 import net.tuxed.misc.Utils;
 
@@ -33,6 +34,7 @@ public class GjokiiMain {
 	private static final int DUMP_FS = 4;
 	private static final int IDENTIFY = 5;
 	private static final int REBOOT = 6;
+	private static final int MIRROR_FS = 7;
 
 	private static PrintStream ps = null;
 	private static Gjokii g = null;
@@ -93,6 +95,90 @@ public class GjokiiMain {
 		}
 	}
 
+	/**
+	 * Dump the phone file system, downloading over extra channels to the phone
+	 * while the directories are being listed
+	 * 
+	 * @param phoneDirPathName
+	 *            the directory on the phone (should end with "/")
+	 * @param outputDir
+	 *            the local directory
+	 * @param recursive
+	 *            whether or not to include the directories below
+	 *            phoneDirPathName
+	 * @param deviceAddress
+	 *            the Bluetooth hardware address of the phone
+	 * @param extraChannels
+	 *            the extra channels to download over
+	 * @param verbose
+	 *            whether or not to be verbose on the extra connections
+	 * @param windowSize
+	 *            the window size for the extra connections
+	 * @param trace
+	 *            the protocol trace for the extra connections, or null
+	 */
+	private static void dumpFileSystem(String phoneDirPathName,
+			File outputDir, boolean recursive, String deviceAddress,
+			List<Integer> extraChannels, boolean verbose, int windowSize,
+			ProtocolTrace trace) throws GjokiiException {
+		List<Gjokii> connections = new ArrayList<Gjokii>();
+		connections.add(g);
+		try {
+			for (int channel : extraChannels) {
+				Gjokii extra = new Gjokii(deviceAddress, channel, verbose);
+				connections.add(extra);
+				/* the same phone, there is no need to negotiate again */
+				extra.setBlockSizes(g.getBlockSizes());
+				extra.setWindowSize(windowSize);
+				extra.setTrace(trace);
+			}
+			FileSystemCrawler c = new FileSystemCrawler(connections);
+			c.crawl(phoneDirPathName, outputDir, recursive);
+			ps.println("(I) listed " + c.getDirectories() + " directories in "
+					+ c.getListingTime() + " ms");
+			ps.println("(I) downloaded " + c.getFiles() + " files ("
+					+ c.getBytes() + " bytes) in " + c.getDownloadTime()
+					+ " ms over " + connections.size() + " connection(s)");
+			ps.println("(I) total " + c.getTotalTime() + " ms, "
+					+ c.getBytesPerSecond() + " bytes/s");
+		} finally {
+			for (int i = 1; i < connections.size(); i++)
+				connections.get(i).close();
+		}
+	}
+
+	/**
+	 * Bring a local directory in sync with a directory on the phone
+	 * 
+	 * @param phoneDirPathName
+	 *            the directory on the phone (should end with "/")
+	 * @param outputDir
+	 *            the local directory
+	 * @param recursive
+	 *            whether or not to include the directories below
+	 *            phoneDirPathName
+	 * @param deleteVanished
+	 *            whether or not to delete local files that are no longer on
+	 *            the phone
+	 */
+	private static void mirror(String phoneDirPathName, File outputDir,
+			boolean recursive, boolean deleteVanished) throws GjokiiException {
+		long start = System.currentTimeMillis();
+		FileSystemMirror m = new FileSystemMirror(g, outputDir);
+		m.setDeleteVanished(deleteVanished);
+		m.sync(phoneDirPathName, recursive);
+		for (String v : m.getVanished()) {
+			if (deleteVanished)
+				ps.println("(I) deleted " + v + ", no longer on the phone");
+			else
+				ps.println("(W) " + v + " is no longer on the phone");
+		}
+		ps.println("(I) " + m.getTransferred() + " files ("
+				+ m.getBytesTransferred() + " bytes) transferred, "
+				+ m.getUnchanged() + " unchanged in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
 	public static void main(String args[]) {
 		ps = new PrintStream(System.out);
 		String homeDir = System.getProperty("user.home");
@@ -115,6 +201,20 @@ public class GjokiiMain {
 		String phoneFilePathName = null;
 		String phoneDirPathName = null;
 		boolean recursive = false;
+		int windowSize = 1;
+		String outputDirPathName = null;
+		boolean deleteVanished = false;
+		boolean resume = false;
+		String traceFileName = null;
+		String captureFileName = null;
+		String replayFileName = null;
+		boolean replayRealTime = true;
+		String tcpAddress = null;
+		String simulateDirName = null;
+		int timeout = 0;
+		String metricsFileName = null;
+		boolean jmx = false;
+		List<Integer> extraChannels = new ArrayList<Integer>();
 
 		boolean verbose = false;
 		int mode = -1;
@@ -176,10 +276,46 @@ public class GjokiiMain {
 				phoneDirPathName = args[++i];
 			}
 
+			if (args[i].equals("--mirror") || args[i].equals("-m")) {
+				mode = MIRROR_FS;
+				phoneDirPathName = args[++i];
+			}
+
+			if (args[i].equals("--output") || args[i].equals("-o")) {
+				outputDirPathName = args[++i];
+			}
+
+			if (args[i].equals("--delete")) {
+				deleteVanished = true;
+			}
+
+			if (args[i].equals("--channels")) {
+				try {
+					for (String c : args[++i].split(","))
+						extraChannels.add(Integer.parseInt(c.trim()));
+				} catch (NumberFormatException e) {
+					System.err.println("(E) invalid channel list, see --help:\n");
+					System.exit(1);
+				}
+			}
+
+			if (args[i].equals("--resume")) {
+				resume = true;
+			}
+
 			if (args[i].equals("--recursive") || args[i].equals("-R")) {
 				recursive = true;
 			}
 
+			if (args[i].equals("--window") || args[i].equals("-w")) {
+				try {
+					windowSize = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					/* setWindowSize will reject this later */
+					windowSize = -1;
+				}
+			}
+
 			if (args[i].equals("--identify") || args[i].equals("-i")) {
 				mode = IDENTIFY;
 			}
@@ -196,16 +332,66 @@ public class GjokiiMain {
 			if (args[i].equals("--verbose") || args[i].equals("-v")) {
 				verbose = true;
 			}
+
+			if (args[i].equals("--trace")) {
+				traceFileName = args[++i];
+			}
+
+			if (args[i].equals("--capture")) {
+				captureFileName = args[++i];
+			}
+
+			if (args[i].equals("--replay")) {
+				replayFileName = args[++i];
+			}
+
+			if (args[i].equals("--replay-fast")) {
+				replayRealTime = false;
+			}
+
+			if (args[i].equals("--tcp")) {
+				tcpAddress = args[++i];
+			}
+
+			if (args[i].equals("--simulate")) {
+				simulateDirName = args[++i];
+			}
+
+			if (args[i].equals("--metrics")) {
+				metricsFileName = args[++i];
+			}
+
+			if (args[i].equals("--jmx")) {
+				jmx = true;
+			}
+
+			if (args[i].equals("--timeout")) {
+				try {
+					timeout = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					timeout = -1;
+				}
+				if (timeout < 0) {
+					System.err.println("(E) invalid timeout, see --help:\n");
+					System.exit(1);
+				}
+			}
 		}
 		if (mode == NO_MODE) {
 			System.err.println("(E) no mode specified, see --help:\n");
 			System.exit(1);
 		}
-		if (deviceAddress == null || channelNumber == -1) {
+		boolean bluetooth = replayFileName == null && tcpAddress == null
+				&& simulateDirName == null;
+		if (bluetooth && (deviceAddress == null || channelNumber == -1)) {
 			System.err
 					.println("(E) no device and/or channel specified, see --help:\n");
 			System.exit(1);
 		}
+		if (tcpAddress != null && tcpAddress.lastIndexOf(':') == -1) {
+			System.err.println("(E) invalid TCP address, see --help:\n");
+			System.exit(1);
+		}
 		if ((mode == GET_FILE) && phoneFilePathName.length() == 0) {
 			System.err.println("(E) no file specified, see --help:\n");
 			System.exit(1);
@@ -214,7 +400,8 @@ public class GjokiiMain {
 			System.err.println("(E) no directory specified, see --help:\n");
 			System.exit(1);
 		}
-		if ((mode == DUMP_FS) && phoneDirPathName.length() == 0) {
+		if ((mode == DUMP_FS || mode == MIRROR_FS)
+				&& phoneDirPathName.length() == 0) {
 			System.err.println("(E) no directory specified, see --help:\n");
 			System.exit(1);
 		}
@@ -227,13 +414,48 @@ public class GjokiiMain {
 			System.exit(1);
 		}
 
+		ProtocolTrace trace = null;
+		WireCapture capture = null;
 		try {
-			g = new Gjokii(deviceAddress, channelNumber, verbose);
+			if (jmx)
+				GjokiiMetrics.getGlobal().register("gjokii");
+			if (traceFileName != null)
+				trace = new ProtocolTrace(new File(traceFileName));
+			if (captureFileName != null)
+				capture = new WireCapture(new File(captureFileName));
+			Transport transport;
+			if (replayFileName != null) {
+				transport = new ReplayConnection(new File(replayFileName),
+						replayRealTime);
+			} else if (tcpAddress != null) {
+				int colon = tcpAddress.lastIndexOf(':');
+				try {
+					transport = new SocketTransport(tcpAddress.substring(0,
+							colon), Integer.parseInt(tcpAddress
+							.substring(colon + 1)));
+				} catch (NumberFormatException e) {
+					throw new GjokiiException("invalid TCP port");
+				}
+			} else if (simulateDirName != null) {
+				transport = new SimulatedPhone(new File(simulateDirName));
+			} else {
+				transport = new BluetoothTransport(deviceAddress, channelNumber);
+			}
+			if (!bluetooth && !extraChannels.isEmpty()) {
+				ps.println("(W) ignoring --channels, they need Bluetooth");
+				extraChannels.clear();
+			}
+			transport.setTimeout(timeout);
+			g = new Gjokii(transport, verbose, capture);
+			g.setWindowSize(windowSize);
+			g.setTrace(trace);
 
 			switch (mode) {
 			case GET_FILE:
 				ps.println("(I) Getting file " + phoneFilePathName + "...");
-				g.getFile(phoneFilePathName);
+				String[] fileNameParts = phoneFilePathName.split("/");
+				g.getFile(phoneFilePathName, new File(
+						fileNameParts[fileNameParts.length - 1]), resume);
 				break;
 			case PUT_FILE:
 				ps.println("(I) Putting file " + phoneFilePathName + "...");
@@ -258,12 +480,46 @@ public class GjokiiMain {
 				break;
 			case DUMP_FS:
 				ps.println("(I) Dumping Directory " + phoneDirPathName + ":\n");
-				g.dumpFileSystem(phoneDirPathName, recursive);
+				dumpFileSystem(phoneDirPathName, new File(
+						outputDirPathName == null ? "output"
+								: outputDirPathName), recursive,
+						deviceAddress, extraChannels, verbose, windowSize, trace);
+				break;
+			case MIRROR_FS:
+				ps.println("(I) Mirroring Directory " + phoneDirPathName
+						+ ":\n");
+				mirror(phoneDirPathName, new File(
+						outputDirPathName == null ? "output"
+								: outputDirPathName), recursive,
+						deleteVanished);
 				break;
 			}
 			g.close();
+			if (trace != null)
+				trace.close();
+			if (capture != null)
+				capture.close();
+			if (metricsFileName != null)
+				GjokiiMetrics.getGlobal().writeJSON(new File(metricsFileName));
 		} catch (GjokiiException e) {
 			e.printStackTrace();
+			/* keep what was recorded up to the failure */
+			try {
+				if (trace != null)
+					trace.close();
+			} catch (GjokiiException f) {
+			}
+			try {
+				if (capture != null)
+					capture.close();
+			} catch (GjokiiException f) {
+			}
+			try {
+				if (metricsFileName != null)
+					GjokiiMetrics.getGlobal().writeJSON(
+							new File(metricsFileName));
+			} catch (GjokiiException f) {
+			}
 			System.exit(1);
 		}
 	}
@@ -276,12 +532,27 @@ public class GjokiiMain {
 		output += "  -i, --identify             Print phone identification\n";
 		output += "  -r, --reboot               Reboot the phone\n";
 		output += "  -g, --getfile <file>       Get a file from the phone (e.g.: /a/b/c.ext)\n";
+		output += "      --resume               Continue an interrupted --getfile\n";
 		output += "  -p, --putfile <file>       Put a file on the phone (e.g.: /a/b/c.ext)\n";
 		output += "  -D, --deletefile <file>    Delete a file from the phone (e.g.: /a/b/c.ext)\n";
 		output += "  -l, --getdirlist <dir>     Get a directory list (e.g.: /a/b/)\n";
 		output += "  -f, --dumpfs <dir>         Dump the phone file system (e.g.: /a/b/)\n";
-		output += "  -R, --recursive            Recursive (for --dumpfs and --getdirlist)\n";
+		output += "  -m, --mirror <dir>         Only get new and changed files (e.g.: /a/b/)\n";
+		output += "  -o, --output <dir>         Local directory for --dumpfs and --mirror (default: output)\n";
+		output += "      --delete               Delete local files no longer on the phone (with --mirror)\n";
+		output += "      --channels <c1,c2..>   Extra channels to download over (with --dumpfs)\n";
+		output += "  -R, --recursive            Recursive (for --dumpfs, --mirror and --getdirlist)\n";
+		output += "  -w, --window <blocks>      Blocks to request at once when getting files (1-64)\n";
 		output += "  -v, --verbose              Increase verbosity\n";
+		output += "      --trace <file>         Write all frames to and from the phone to a file\n";
+		output += "      --capture <file>       Record the session in a binary file for --replay\n";
+		output += "      --replay <file>        Replay a recorded session instead of using the phone\n";
+		output += "      --replay-fast          Do not reproduce the recorded timing (with --replay)\n";
+		output += "      --metrics <file>       Write request counts, bytes and round trip times as JSON\n";
+		output += "      --jmx                  Make the metrics available over JMX while running\n";
+		output += "      --tcp <host:port>      Connect to the phone over TCP instead of Bluetooth\n";
+		output += "      --simulate <dir>       Use a simulated phone with <dir> as its file system\n";
+		output += "      --timeout <ms>         Give up when the phone does not answer in time (default: 0, wait forever)\n";
 		output += "  -h, --help                 Show this help message\n";
 		ps.println(output);
 	}
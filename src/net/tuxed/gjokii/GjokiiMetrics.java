@@ -0,0 +1,328 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.tuxed.misc.LatencyHistogram;
+
+/**
+ * Counts and times the requests Gjokii sends to the phone.
+ *
+ * For every operation the number of requests and replies, the bytes sent and
+ * received, the requests sent again and a histogram of the round trip times
+ * (from sending the request until its reply is received) are kept. A reply
+ * that consists of several frames, like a directory listing, is timed until
+ * the first frame.
+ *
+ * Every connection has its own metrics, to compare phones, and adds
+ * everything it records to the global metrics of the whole run as well. The
+ * metrics can be written as JSON or polled over JMX after registering them.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class GjokiiMetrics implements GjokiiMetricsMBean {
+	public static final int INIT = 0;
+	public static final int PHONE_INFO = 1;
+	public static final int IMEI = 2;
+	public static final int RESET = 3;
+	public static final int FILE_INFO = 4;
+	public static final int FILE_LIST = 5;
+	public static final int GET_FILE_ID = 6;
+	public static final int GET_FILE = 7;
+	public static final int PUT_FILE_ID = 8;
+	public static final int PUT_FILE = 9;
+	public static final int CLOSE_FILE = 10;
+	public static final int DELETE_FILE = 11;
+
+	private static final String[] OPERATIONS = { "init", "phone_info", "imei",
+			"reset", "file_info", "file_list", "get_file_id", "get_file",
+			"put_file_id", "put_file", "close_file", "delete_file" };
+
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	private static final GjokiiMetrics GLOBAL = new GjokiiMetrics(null);
+
+	private long start = System.currentTimeMillis();
+	private long[] requests = new long[OPERATIONS.length];
+	private long[] replies = new long[OPERATIONS.length];
+	private long[] bytesSent = new long[OPERATIONS.length];
+	private long[] bytesReceived = new long[OPERATIONS.length];
+	private long[] retries = new long[OPERATIONS.length];
+	private LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+	private GjokiiMetrics parent;
+	private ObjectName objectName;
+
+	/**
+	 * Construct the metrics, nothing is recorded yet
+	 * 
+	 * @param parent
+	 *            the metrics to record everything in as well, or null
+	 */
+	public GjokiiMetrics(GjokiiMetrics parent) {
+		this.parent = parent;
+		for (int i = 0; i < latencies.length; i++)
+			latencies[i] = new LatencyHistogram();
+	}
+
+	public synchronized long getBytesReceived() {
+		return sum(bytesReceived);
+	}
+
+	public synchronized long getBytesSent() {
+		return sum(bytesSent);
+	}
+
+	/**
+	 * Get the metrics of all connections in this JVM
+	 * 
+	 * @return the metrics
+	 */
+	public static GjokiiMetrics getGlobal() {
+		return GLOBAL;
+	}
+
+	/**
+	 * Get the round trip times of an operation
+	 *
+	 * @param operation
+	 *            the operation (e.g.: GET_FILE)
+	 * @return the histogram of the round trip times in microseconds
+	 */
+	public LatencyHistogram getHistogram(int operation) {
+		return latencies[operation];
+	}
+
+	public synchronized String getJSON() {
+		StringBuilder json = new StringBuilder();
+		try {
+			writeJSON(json);
+		} catch (IOException e) {
+			/* StringBuilder does not throw */
+		}
+		return json.toString();
+	}
+
+	public long getLatency(String operation, double percentile) {
+		return latencies[getOperation(operation)].getPercentile(percentile);
+	}
+
+	/**
+	 * Get the name of an operation
+	 *
+	 * @param operation
+	 *            the operation (e.g.: GET_FILE)
+	 * @return the name (e.g.: get_file)
+	 */
+	public static String getName(int operation) {
+		return OPERATIONS[operation];
+	}
+
+	public String[] getOperations() {
+		return OPERATIONS.clone();
+	}
+
+	public synchronized long getRequestCount(String operation) {
+		return requests[getOperation(operation)];
+	}
+
+	public synchronized long getRequests() {
+		return sum(requests);
+	}
+
+	public synchronized long getRetries() {
+		return sum(retries);
+	}
+
+	/**
+	 * Make the metrics available over JMX in the platform MBean server, as
+	 * net.tuxed.gjokii:type=Metrics,name=<name>
+	 *
+	 * @param name
+	 *            the name to distinguish multiple metrics (e.g.: the phone
+	 *            address)
+	 * @throws GjokiiException
+	 *             if registering fails, for instance because the name is in
+	 *             use
+	 */
+	public synchronized void register(String name) throws GjokiiException {
+		if (objectName != null)
+			throw new GjokiiException("metrics are already registered");
+		try {
+			ObjectName on = new ObjectName("net.tuxed.gjokii:type=Metrics,name="
+					+ ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			objectName = on;
+		} catch (JMException e) {
+			throw new GjokiiException("unable to register metrics: "
+					+ e.getMessage());
+		}
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			requests[i] = replies[i] = bytesSent[i] = bytesReceived[i] = retries[i] = 0;
+			latencies[i].reset();
+		}
+		start = System.currentTimeMillis();
+	}
+
+	/**
+	 * Remove the metrics from the MBean server again
+	 */
+	public synchronized void unregister() {
+		if (objectName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(objectName);
+		} catch (JMException e) {
+			/* it is gone already */
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Write the metrics to a file as JSON
+	 *
+	 * @param jsonFile
+	 *            the file to write, it is overwritten
+	 * @throws GjokiiException
+	 *             if writing the file fails
+	 */
+	public void writeJSON(File jsonFile) throws GjokiiException {
+		try {
+			Writer out = new FileWriter(jsonFile);
+			try {
+				synchronized (this) {
+					writeJSON(out);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write metrics to "
+					+ jsonFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Record a reply frame
+	 *
+	 * @param operation
+	 *            the operation of the request
+	 * @param length
+	 *            the length of the frame, including the header
+	 * @param roundTrip
+	 *            the time since the request was sent in ns, or -1 if the frame
+	 *            is not the first frame of the reply
+	 */
+	void received(int operation, int length, long roundTrip) {
+		synchronized (this) {
+			bytesReceived[operation] += length;
+			if (roundTrip >= 0) {
+				replies[operation]++;
+				latencies[operation].record(roundTrip / 1000);
+			}
+		}
+		if (parent != null)
+			parent.received(operation, length, roundTrip);
+	}
+
+	/**
+	 * Record requests that are sent again because their replies were lost or
+	 * thrown away
+	 *
+	 * @param operation
+	 *            the operation of the requests
+	 * @param count
+	 *            the number of requests
+	 */
+	void retried(int operation, int count) {
+		synchronized (this) {
+			retries[operation] += count;
+		}
+		if (parent != null)
+			parent.retried(operation, count);
+	}
+
+	/**
+	 * Record a request frame
+	 *
+	 * @param operation
+	 *            the operation of the request
+	 * @param length
+	 *            the length of the frame, including the header
+	 */
+	void sent(int operation, int length) {
+		synchronized (this) {
+			requests[operation]++;
+			bytesSent[operation] += length;
+		}
+		if (parent != null)
+			parent.sent(operation, length);
+	}
+
+	private static int getOperation(String name) {
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			if (OPERATIONS[i].equals(name))
+				return i;
+		}
+		throw new IllegalArgumentException("unknown operation " + name);
+	}
+
+	private static long sum(long[] values) {
+		long total = 0;
+		for (long v : values)
+			total += v;
+		return total;
+	}
+
+	private void writeJSON(Appendable out) throws IOException {
+		out.append("{\n  \"elapsed_ms\": "
+				+ (System.currentTimeMillis() - start) + ",\n");
+		out.append("  \"requests\": " + sum(requests) + ",\n");
+		out.append("  \"bytes_sent\": " + sum(bytesSent) + ",\n");
+		out.append("  \"bytes_received\": " + sum(bytesReceived) + ",\n");
+		out.append("  \"retries\": " + sum(retries) + ",\n");
+		out.append("  \"operations\": {");
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			LatencyHistogram h = latencies[i];
+			out.append((i == 0 ? "\n" : ",\n") + "    \"" + OPERATIONS[i]
+					+ "\": {");
+			out.append("\"requests\": " + requests[i] + ", \"replies\": "
+					+ replies[i] + ", \"bytes_sent\": " + bytesSent[i]
+					+ ", \"bytes_received\": " + bytesReceived[i]
+					+ ", \"retries\": " + retries[i]);
+			out.append(", \"latency_us\": {\"min\": " + h.getMin()
+					+ ", \"mean\": " + Math.round(h.getMean()));
+			for (double p : PERCENTILES)
+				out.append(", \"p" + (int) p + "\": " + h.getPercentile(p));
+			out.append(", \"max\": " + h.getMax() + "}}");
+		}
+		out.append("\n  }\n}\n");
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+/**
+ * The management interface of GjokiiMetrics, for polling the metrics over
+ * JMX.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public interface GjokiiMetricsMBean {
+	/**
+	 * Get the number of bytes received from the phone
+	 *
+	 * @return the number of bytes, for all operations
+	 */
+	public long getBytesReceived();
+
+	/**
+	 * Get the number of bytes sent to the phone
+	 *
+	 * @return the number of bytes, for all operations
+	 */
+	public long getBytesSent();
+
+	/**
+	 * Get all metrics as JSON
+	 *
+	 * @return the JSON document
+	 */
+	public String getJSON();
+
+	/**
+	 * Get a percentile of the round trip time of an operation
+	 *
+	 * @param operation
+	 *            the name of the operation (e.g.: get_file)
+	 * @param percentile
+	 *            the percentile (0 - 100)
+	 * @return the round trip time in microseconds
+	 */
+	public long getLatency(String operation, double percentile);
+
+	/**
+	 * Get the names of the operations
+	 *
+	 * @return the names
+	 */
+	public String[] getOperations();
+
+	/**
+	 * Get the number of requests sent for an operation
+	 *
+	 * @param operation
+	 *            the name of the operation (e.g.: get_file)
+	 * @return the number of requests
+	 */
+	public long getRequestCount(String operation);
+
+	/**
+	 * Get the number of requests sent to the phone
+	 *
+	 * @return the number of requests, for all operations
+	 */
+	public long getRequests();
+
+	/**
+	 * Get the number of requests sent again
+	 *
+	 * @return the number of requests, for all operations
+	 */
+	public long getRetries();
+
+	/**
+	 * Forget everything recorded so far
+	 */
+	public void reset();
+}
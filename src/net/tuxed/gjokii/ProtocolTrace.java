@@ -0,0 +1,190 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Writes a hex dump of all frames sent to and received from the phone.
+ *
+ * The connection only copies the frame and puts it in a queue, a background
+ * thread formats the frames and writes them out. This way tracing a transfer
+ * does not slow down the protocol. One trace can be shared by multiple
+ * connections.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class ProtocolTrace {
+	/**
+	 * A frame waiting to be written
+	 */
+	private static class Record {
+		private boolean sent;
+		private long time;
+		private byte[] frame;
+
+		private Record(boolean sent, long time, byte[] frame) {
+			this.sent = sent;
+			this.time = time;
+			this.frame = frame;
+		}
+	}
+
+	/* tells the writer thread to stop */
+	private static final Record END_OF_TRACE = new Record(false, 0, null);
+
+	private Writer out;
+	private LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+	private Thread writer;
+	private long start = System.currentTimeMillis();
+	private volatile IOException failure;
+	private boolean closed = false;
+
+	/**
+	 * Write the trace to a file
+	 *
+	 * @param traceFile
+	 *            the file to write to, it is overwritten
+	 * @throws GjokiiException
+	 *             if the file cannot be created
+	 */
+	public ProtocolTrace(File traceFile) throws GjokiiException {
+		this(openFile(traceFile));
+	}
+
+	/**
+	 * Write the trace to a writer
+	 *
+	 * @param out
+	 *            the writer, it is closed when the trace is closed
+	 */
+	public ProtocolTrace(Writer out) {
+		this.out = out;
+		writer = new Thread("protocol-trace") {
+			public void run() {
+				write();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Write the frames still in the queue and close the trace
+	 *
+	 * @throws GjokiiException
+	 *             if writing the trace failed
+	 */
+	public synchronized void close() throws GjokiiException {
+		if (closed)
+			return;
+		closed = true;
+		queue.add(END_OF_TRACE);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new GjokiiException("interrupted");
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			if (failure == null)
+				failure = e;
+		}
+		if (failure != null)
+			throw new GjokiiException("unable to write trace: "
+					+ failure.getMessage());
+	}
+
+	/**
+	 * Add a frame received from the phone to the trace
+	 *
+	 * @param frame
+	 *            the frame, including the header. It should not be modified
+	 *            afterwards.
+	 */
+	void received(byte[] frame) {
+		queue.add(new Record(false, System.currentTimeMillis(), frame));
+	}
+
+	/**
+	 * Add a frame sent to the phone to the trace
+	 *
+	 * @param buffer
+	 *            the buffer holding the frame, it is copied
+	 * @param offset
+	 *            the offset of the frame in the buffer
+	 * @param length
+	 *            the length of the frame
+	 */
+	void sent(byte[] buffer, int offset, int length) {
+		byte[] frame = new byte[length];
+		System.arraycopy(buffer, offset, frame, 0, length);
+		queue.add(new Record(true, System.currentTimeMillis(), frame));
+	}
+
+	private static Writer openFile(File traceFile) throws GjokiiException {
+		try {
+			return new BufferedWriter(new FileWriter(traceFile));
+		} catch (IOException e) {
+			throw new GjokiiException("unable to create trace file "
+					+ traceFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Take frames from the queue and write them until the trace is closed.
+	 * After a write error the frames are discarded.
+	 */
+	private void write() {
+		while (true) {
+			Record r;
+			try {
+				r = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (r == END_OF_TRACE)
+				break;
+			if (failure != null)
+				continue;
+			try {
+				out.write("[" + (r.time - start) + " ms] "
+						+ (r.sent ? "SENT " : "RECEIVED ") + r.frame.length
+						+ " bytes:\n");
+				Utils.hexDump(out, r.frame, 0, r.frame.length);
+				out.write('\n');
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		try {
+			out.flush();
+		} catch (IOException e) {
+			if (failure == null)
+				failure = e;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.tuxed.misc.ByteArrayBuilder;
+import net.tuxed.misc.Utils;
+
+/**
+ * Plays the phone side of a session recorded with WireCapture.
+ *
+ * The connection is used as the transport of a Gjokii object. Every frame
+ * Gjokii sends is compared with the recorded one, a different frame means the
+ * session went another way than the recorded one and fails with an
+ * IOException. A recorded reply is only
+ * handed out after the frames sent before it in the recording were sent.
+ *
+ * In real time mode a reply becomes available as long after the last frame
+ * sent before it as it did in the recording, so the latency of the phone and
+ * the Bluetooth link is reproduced. Otherwise replies are available right
+ * away.
+ *
+ * Note that a connection sharing its negotiated block sizes with others
+ * (Gjokii.setBlockSizes) may skip the negotiation, the replay then diverges
+ * from a recording that did negotiate. By default every connection
+ * negotiates.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class ReplayConnection implements Transport {
+	/**
+	 * A reply of the phone
+	 */
+	private static class Reply {
+		private byte[] frame;
+		/* the number of frames sent before this reply */
+		private int sentBefore;
+		/* the time since the last frame sent before this reply */
+		private long delay;
+
+		private Reply(byte[] frame, int sentBefore, long delay) {
+			this.frame = frame;
+			this.sentBefore = sentBefore;
+			this.delay = delay;
+		}
+	}
+
+	private boolean realTime;
+	private int timeout = 0;
+	private List<byte[]> requests = new ArrayList<byte[]>();
+	private List<Reply> replies = new ArrayList<Reply>();
+
+	private final Object lock = new Object();
+	private long startTime;
+	/* the (wall clock) time every recorded request was actually sent */
+	private long[] sentTimes;
+	private int sent = 0;
+	private ByteArrayBuilder written = new ByteArrayBuilder(1024);
+	private int reply = 0;
+	private int replyOffset = 0;
+	private boolean closed = false;
+
+	private InputStream is = new ReplayInputStream();
+	private OutputStream os = new ReplayOutputStream();
+
+	/**
+	 * Load a recorded session
+	 *
+	 * @param captureFile
+	 *            the file written by WireCapture
+	 * @param realTime
+	 *            true to reproduce the recorded timing, false to reply as fast
+	 *            as possible
+	 * @throws GjokiiException
+	 *             if the file cannot be read or is not a capture
+	 */
+	public ReplayConnection(File captureFile, boolean realTime)
+			throws GjokiiException {
+		this.realTime = realTime;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(captureFile)));
+			try {
+				load(in);
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			throw new GjokiiException("capture file is truncated");
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read capture file "
+					+ captureFile.getAbsolutePath());
+		}
+		sentTimes = new long[requests.size()];
+	}
+
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+	}
+
+	public InputStream getInputStream() {
+		return is;
+	}
+
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	/**
+	 * Whether or not all recorded requests were sent
+	 *
+	 * @return true if the session was replayed completely
+	 */
+	public boolean isComplete() {
+		synchronized (lock) {
+			return sent == requests.size();
+		}
+	}
+
+	public void open() {
+		/* nothing to connect to, the recorded session starts now */
+		startTime = System.nanoTime();
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	private void load(DataInputStream in) throws IOException,
+			GjokiiException {
+		byte[] magic = new byte[WireCapture.MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, WireCapture.MAGIC)
+				|| in.readUnsignedByte() != WireCapture.VERSION)
+			throw new GjokiiException("not a capture file");
+		/* time since the last request */
+		long time = 0;
+		int direction;
+		while ((direction = in.read()) != -1) {
+			time += in.readLong();
+			byte[] frame = new byte[in.readInt()];
+			in.readFully(frame);
+			if (direction == WireCapture.SENT) {
+				requests.add(frame);
+				time = 0;
+			} else {
+				replies.add(new Reply(frame, requests.size(), time));
+			}
+		}
+	}
+
+	/**
+	 * Determine how long to wait until the next reply can be read
+	 *
+	 * @return the number of ns to wait, 0 if the reply is available, -1 if
+	 *         a request has to be sent first
+	 */
+	private long waitTime() {
+		Reply r = replies.get(reply);
+		if (sent < r.sentBefore)
+			return -1;
+		if (!realTime)
+			return 0;
+		long base = (r.sentBefore == 0) ? startTime
+				: sentTimes[r.sentBefore - 1];
+		return Math.max(0, base + r.delay - System.nanoTime());
+	}
+
+	private class ReplayInputStream extends InputStream {
+		public int available() throws IOException {
+			synchronized (lock) {
+				if (reply == replies.size() || waitTime() != 0)
+					return 0;
+				return replies.get(reply).frame.length - replyOffset;
+			}
+		}
+
+		public void close() {
+			ReplayConnection.this.close();
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			synchronized (lock) {
+				long deadline = System.nanoTime() + timeout * 1000000L;
+				while (true) {
+					if (closed)
+						throw new IOException("connection closed");
+					if (reply == replies.size())
+						return -1;
+					long wait = waitTime();
+					if (wait == 0)
+						break;
+					if (timeout != 0) {
+						long left = deadline - System.nanoTime();
+						if (left <= 0)
+							throw new InterruptedIOException(
+									"no data from the phone in " + timeout
+											+ " ms");
+						if (wait < 0 || wait > left)
+							wait = left;
+					}
+					try {
+						if (wait < 0)
+							lock.wait();
+						else
+							lock.wait(wait / 1000000, (int) (wait % 1000000));
+					} catch (InterruptedException e) {
+						throw new IOException("interrupted");
+					}
+				}
+				byte[] frame = replies.get(reply).frame;
+				int n = Math.min(len, frame.length - replyOffset);
+				System.arraycopy(frame, replyOffset, b, off, n);
+				replyOffset += n;
+				if (replyOffset == frame.length) {
+					reply++;
+					replyOffset = 0;
+				}
+				return n;
+			}
+		}
+	}
+
+	private class ReplayOutputStream extends OutputStream {
+		public void close() {
+			ReplayConnection.this.close();
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (lock) {
+				if (closed)
+					throw new IOException("connection closed");
+				written.put(b, off, len);
+				/* compare every complete frame with the recorded one */
+				while (written.length() >= FrameDecoder.HEADER_SIZE) {
+					byte[] buffer = written.getBuffer();
+					int frameLength = FrameDecoder.HEADER_SIZE
+							+ (Utils.byteArrayToShort(buffer, 4) & 0xffff);
+					if (written.length() < frameLength)
+						break;
+					if (sent == requests.size())
+						throw new IOException("replay diverged at request "
+								+ (sent + 1) + ": no more requests recorded");
+					byte[] frame = Utils.subByteArray(buffer, 0, frameLength);
+					if (!Arrays.equals(frame, requests.get(sent)))
+						throw new IOException("replay diverged at request "
+								+ (sent + 1) + ": expected "
+								+ Utils.byteArrayToString(requests.get(sent))
+								+ ", got " + Utils.byteArrayToString(frame));
+					sentTimes[sent++] = System.nanoTime();
+					byte[] rest = Utils.subByteArray(buffer, frameLength,
+							written.length() - frameLength);
+					written.clear();
+					written.put(rest);
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,551 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.tuxed.misc.ByteArrayBuilder;
+import net.tuxed.misc.Utils;
+
+/**
+ * A Nokia S40 phone simulated in the JVM, with a directory on the local file
+ * system as the file system of the phone.
+ *
+ * The simulator answers the initialization, phone information and IMEI
+ * requests, and the FILE_INFO, FILE_LIST, GET_FILE_ID, GET_FILE, PUT_FILE_ID,
+ * PUT_FILE, CLOSE_FILE and DELETE_FILE requests. It is meant for testing and
+ * benchmarking code using Gjokii without a phone.
+ *
+ * The link to the phone is modeled with a latency, the time the phone takes to
+ * answer a request, and a bandwidth in each direction. Requests are answered
+ * as soon as they are written, but a reply can only be read once it would
+ * have arrived over the simulated link. Requests sent without waiting for the
+ * reply overlap their latency like they do with a real phone.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class SimulatedPhone implements Transport {
+	/**
+	 * A reply on its way to Gjokii
+	 */
+	private static class Reply {
+		private byte[] frame;
+		/* the time (System.nanoTime) the reply is completely received */
+		private long arrival;
+
+		private Reply(byte[] frame, long arrival) {
+			this.frame = frame;
+			this.arrival = arrival;
+		}
+	}
+
+	private static final byte[] INIT_REPLY = { (byte) 0x19, (byte) 0x10,
+			(byte) 0x00, (byte) 0xd0, (byte) 0x00, (byte) 0x01, (byte) 0x05 };
+
+	private File rootDir;
+	private String phoneModel = "RM-SIM";
+	private String imei = "000000000000000";
+	private int latency = 0;
+	private int bandwidth = 0;
+	private int maxBlockSize = 16384;
+	private int timeout = 0;
+
+	private final Object lock = new Object();
+	private boolean opened = false;
+	private boolean closed = false;
+	private ByteArrayBuilder written = new ByteArrayBuilder(1024);
+	private LinkedList<Reply> replies = new LinkedList<Reply>();
+	private int replyOffset = 0;
+	/* the time the link towards the phone and back is free again */
+	private long uplinkFree;
+	private long downlinkFree;
+
+	private int nextFileId = 1;
+	private HashMap<Integer, RandomAccessFile> readFiles = new HashMap<Integer, RandomAccessFile>();
+	private HashMap<Integer, OutputStream> writeFiles = new HashMap<Integer, OutputStream>();
+
+	private InputStream is = new PhoneInputStream();
+	private OutputStream os = new PhoneOutputStream();
+
+	/**
+	 * Construct the simulated phone
+	 *
+	 * @param rootDir
+	 *            the directory holding the file system of the phone, the
+	 *            phone path "/a/b" is the file "b" in the directory "a" in it
+	 * @throws GjokiiException
+	 *             if the directory does not exist
+	 */
+	public SimulatedPhone(File rootDir) throws GjokiiException {
+		if (!rootDir.isDirectory())
+			throw new GjokiiException("directory " + rootDir.getAbsolutePath()
+					+ " does not exist");
+		this.rootDir = rootDir;
+	}
+
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			try {
+				for (RandomAccessFile f : readFiles.values())
+					f.close();
+				for (OutputStream f : writeFiles.values())
+					f.close();
+			} catch (IOException e) {
+				/* nothing we can do about it */
+			}
+			readFiles.clear();
+			writeFiles.clear();
+			lock.notifyAll();
+		}
+	}
+
+	public InputStream getInputStream() {
+		return is;
+	}
+
+	/**
+	 * Get the number of files that are open on the phone
+	 *
+	 * @return the number of files opened for reading or writing and not
+	 *         closed yet
+	 */
+	public int getOpenFiles() {
+		synchronized (lock) {
+			return readFiles.size() + writeFiles.size();
+		}
+	}
+
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	public void open() throws GjokiiException {
+		synchronized (lock) {
+			if (opened)
+				throw new GjokiiException("simulated phone is already in use");
+			opened = true;
+			uplinkFree = downlinkFree = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Set the bandwidth of the link to the phone, in each direction
+	 *
+	 * @param bandwidth
+	 *            the bandwidth in bytes per second, 0 for unlimited
+	 */
+	public void setBandwidth(int bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Set the IMEI of the phone
+	 *
+	 * @param imei
+	 *            the IMEI, 15 digits
+	 */
+	public void setIMEI(String imei) {
+		this.imei = imei;
+	}
+
+	/**
+	 * Set the time the phone takes to answer a request
+	 *
+	 * @param latency
+	 *            the time in ms
+	 */
+	public void setLatency(int latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Set the largest block of a file the phone returns at once
+	 *
+	 * @param maxBlockSize
+	 *            the size in bytes
+	 */
+	public void setMaxBlockSize(int maxBlockSize) {
+		this.maxBlockSize = maxBlockSize;
+	}
+
+	/**
+	 * Set the model of the phone. Note that connections sharing their block
+	 * sizes remember the negotiated block size per model.
+	 *
+	 * @param phoneModel
+	 *            the model (e.g.: RM-123)
+	 */
+	public void setModel(String phoneModel) {
+		this.phoneModel = phoneModel;
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Build a directory entry the way the phone reports it
+	 *
+	 * @param f
+	 *            the file or directory
+	 * @return the entry, or an entry without type if it does not exist
+	 */
+	private byte[] entry(File f) throws UnsupportedEncodingException {
+		if (!f.exists())
+			return new byte[10];
+		String name = f.getName();
+		ByteArrayBuilder entry = new ByteArrayBuilder(64);
+		entry.putZeros(8);
+		entry.putByte(f.isDirectory() ? 0x40 : 0x80);
+		entry.putByte(0);
+		entry.putInt(f.isDirectory() ? 0 : (int) f.length());
+		Calendar c = new GregorianCalendar();
+		c.setTimeInMillis(f.lastModified());
+		entry.putShort(c.get(Calendar.YEAR));
+		entry.putByte(c.get(Calendar.MONTH) + 1);
+		entry.putByte(c.get(Calendar.DAY_OF_MONTH));
+		entry.putByte(c.get(Calendar.HOUR_OF_DAY));
+		entry.putByte(c.get(Calendar.MINUTE));
+		entry.putByte(c.get(Calendar.SECOND));
+		entry.putZeros(9);
+		/* the length of the name in characters including the terminator */
+		entry.putShort(name.length() + 1);
+		entry.put(name.getBytes("UTF-16BE"));
+		entry.putZeros(2);
+		return entry.toByteArray();
+	}
+
+	/**
+	 * Convert a path on the phone to a file in the root directory
+	 *
+	 * @param pathName
+	 *            the path on the phone
+	 * @return the file, or null if the path is not valid
+	 */
+	private File getFile(String pathName) {
+		if (!pathName.startsWith("/") || pathName.indexOf("..") != -1)
+			return null;
+		return new File(rootDir, pathName.substring(1).replace('/',
+				File.separatorChar));
+	}
+
+	/**
+	 * Read a zero terminated path from a request
+	 *
+	 * @param request
+	 *            the request
+	 * @param offset
+	 *            the offset of the path in the request
+	 * @return the path
+	 */
+	private String getPath(byte[] request, int offset) {
+		int end = offset;
+		while (end + 1 < request.length
+				&& (request[end] != 0 || request[end + 1] != 0))
+			end += 2;
+		return Utils.bytesToStringLE(request, offset, end - offset);
+	}
+
+	/**
+	 * Answer a request
+	 *
+	 * @param request
+	 *            the request frame, including the header
+	 * @return the reply frames
+	 */
+	private List<byte[]> handle(byte[] request) throws IOException {
+		List<byte[]> result = new ArrayList<byte[]>();
+		int msgType = request[3] & 0xff;
+		/* skip the header */
+		byte[] p = Utils.subByteArray(request, FrameDecoder.HEADER_SIZE,
+				request.length - FrameDecoder.HEADER_SIZE);
+
+		if (msgType == 0xd0) {
+			result.add(INIT_REPLY);
+		} else if (msgType == 0x1b && p.length > 4 && p[4] == 0x41) {
+			/* IMEI */
+			ByteArrayBuilder r = new ByteArrayBuilder(32);
+			r.putZeros(10);
+			r.put(imei.getBytes("US-ASCII"));
+			result.add(reply(msgType, r.toByteArray()));
+		} else if (msgType == 0x1b) {
+			/* the firmware information starts at offset 18 of the frame */
+			ByteArrayBuilder r = new ByteArrayBuilder(64);
+			r.putZeros(12);
+			r.put(("V 06.20\n01-01-08\n" + phoneModel + "\n")
+					.getBytes("US-ASCII"));
+			result.add(reply(msgType, r.toByteArray()));
+		} else if (msgType == 0x6d && p.length > 3) {
+			handleFileRequest(p, result);
+		} else {
+			result.add(reply(msgType, new byte[10]));
+		}
+		return result;
+	}
+
+	/**
+	 * Answer a file system request
+	 *
+	 * @param p
+	 *            the request without the header
+	 * @param result
+	 *            collects the reply frames
+	 */
+	private void handleFileRequest(byte[] p, List<byte[]> result)
+			throws IOException {
+		int op = p[3] & 0xff;
+		byte[] ack = new byte[10];
+		if (op == 0x68) {
+			String path = getPath(p, 7);
+			if (path.endsWith("*")) {
+				/* FILE_LIST, one frame per entry, any number of "*" */
+				while (path.endsWith("*"))
+					path = path.substring(0, path.length() - 1);
+				File dir = getFile(path);
+				File[] list = (dir != null) ? dir.listFiles() : null;
+				if (list == null || list.length == 0) {
+					result.add(reply(0x6d, ack));
+				} else {
+					Arrays.sort(list);
+					for (int i = 0; i < list.length; i++) {
+						byte[] entry = entry(list[i]);
+						/* tell another entry follows, except for the last */
+						if (i < list.length - 1)
+							entry[4] = 0x0d;
+						result.add(reply(0x6d, entry));
+					}
+				}
+			} else {
+				/* FILE_INFO */
+				File f = getFile(path);
+				result.add(reply(0x6d, (f != null) ? entry(f) : ack));
+			}
+		} else if (op == 0x72) {
+			boolean forWriting = (p[4] == 0x11);
+			File f = getFile(getPath(p, forWriting ? 8 : 9));
+			int fileId = 0;
+			if (f != null && forWriting) {
+				f.getParentFile().mkdirs();
+				fileId = nextFileId++;
+				writeFiles.put(fileId, new FileOutputStream(f));
+			} else if (f != null && f.isFile()) {
+				fileId = nextFileId++;
+				readFiles.put(fileId, new RandomAccessFile(f, "r"));
+			}
+			ack[8] = (byte) (fileId >> 8);
+			ack[9] = (byte) fileId;
+			result.add(reply(0x6d, ack));
+		} else if (op == 0x5e && p.length >= 22) {
+			/* GET_FILE */
+			RandomAccessFile f = readFiles.get(Utils.byteArrayToShort(p, 8)
+					& 0xffff);
+			int offset = Utils.byteArrayToInt(p, 10);
+			int count = Utils.byteArrayToInt(p, 18);
+			ByteArrayBuilder r = new ByteArrayBuilder(16 + count);
+			r.putZeros(4);
+			r.putInt(offset);
+			if (f == null || offset < 0 || offset > f.length()) {
+				r.putShort(0);
+			} else {
+				count = (int) Math.min(Math.min(count, maxBlockSize), f
+						.length()
+						- offset);
+				byte[] data = new byte[count];
+				f.seek(offset);
+				f.readFully(data);
+				r.putShort(count);
+				r.put(data);
+			}
+			result.add(reply(0x6d, r.toByteArray()));
+		} else if (op == 0x58 && p.length >= 14) {
+			/* PUT_FILE */
+			OutputStream f = writeFiles.get(Utils.byteArrayToShort(p, 8)
+					& 0xffff);
+			int count = Utils.byteArrayToShort(p, 12) & 0xffff;
+			if (f != null)
+				f.write(p, 14, Math.min(count, p.length - 14));
+			result.add(reply(0x6d, ack));
+		} else if (op == 0x74 && p.length >= 10) {
+			/* CLOSE_FILE */
+			int fileId = Utils.byteArrayToShort(p, 8) & 0xffff;
+			RandomAccessFile rf = readFiles.remove(fileId);
+			if (rf != null)
+				rf.close();
+			OutputStream wf = writeFiles.remove(fileId);
+			if (wf != null)
+				wf.close();
+			result.add(reply(0x6d, ack));
+		} else if (op == 0x62) {
+			/* DELETE_FILE */
+			File f = getFile(getPath(p, 6));
+			if (f != null && f.isFile())
+				f.delete();
+			result.add(reply(0x6d, ack));
+		} else {
+			result.add(reply(0x6d, ack));
+		}
+	}
+
+	/**
+	 * Build a reply frame
+	 *
+	 * @param msgType
+	 *            the message type
+	 * @param payload
+	 *            the data of the reply
+	 * @return the frame
+	 */
+	private byte[] reply(int msgType, byte[] payload) {
+		ByteArrayBuilder r = new ByteArrayBuilder(FrameDecoder.HEADER_SIZE
+				+ payload.length);
+		r.putByte(0x19).putByte(0x10).putByte(0x00).putByte(msgType);
+		r.putShort(payload.length);
+		r.put(payload);
+		return r.toByteArray();
+	}
+
+	/**
+	 * The time it takes to transfer a number of bytes over the link
+	 *
+	 * @param length
+	 *            the number of bytes
+	 * @return the time in ns
+	 */
+	private long transferTime(int length) {
+		return (bandwidth == 0) ? 0 : length * 1000000000L / bandwidth;
+	}
+
+	private class PhoneInputStream extends InputStream {
+		public int available() {
+			synchronized (lock) {
+				if (replies.isEmpty()
+						|| replies.getFirst().arrival > System.nanoTime())
+					return 0;
+				return replies.getFirst().frame.length - replyOffset;
+			}
+		}
+
+		public void close() {
+			SimulatedPhone.this.close();
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			synchronized (lock) {
+				long deadline = System.nanoTime() + timeout * 1000000L;
+				while (true) {
+					if (closed)
+						throw new IOException("connection closed");
+					long now = System.nanoTime();
+					long wait = replies.isEmpty() ? -1 : replies.getFirst().arrival
+							- now;
+					if (wait <= 0 && !replies.isEmpty())
+						break;
+					if (timeout != 0) {
+						if (deadline - now <= 0)
+							throw new InterruptedIOException(
+									"no data from the phone in " + timeout
+											+ " ms");
+						if (wait < 0 || wait > deadline - now)
+							wait = deadline - now;
+					}
+					try {
+						if (wait < 0)
+							lock.wait();
+						else
+							lock.wait(wait / 1000000, (int) (wait % 1000000));
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("interrupted");
+					}
+				}
+				byte[] frame = replies.getFirst().frame;
+				int n = Math.min(len, frame.length - replyOffset);
+				System.arraycopy(frame, replyOffset, b, off, n);
+				replyOffset += n;
+				if (replyOffset == frame.length) {
+					replies.removeFirst();
+					replyOffset = 0;
+				}
+				return n;
+			}
+		}
+	}
+
+	private class PhoneOutputStream extends OutputStream {
+		public void close() {
+			SimulatedPhone.this.close();
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (lock) {
+				if (closed)
+					throw new IOException("connection closed");
+				written.put(b, off, len);
+				while (written.length() >= FrameDecoder.HEADER_SIZE) {
+					byte[] buffer = written.getBuffer();
+					int frameLength = FrameDecoder.HEADER_SIZE
+							+ (Utils.byteArrayToShort(buffer, 4) & 0xffff);
+					if (written.length() < frameLength)
+						break;
+					byte[] request = Utils.subByteArray(buffer, 0, frameLength);
+					byte[] rest = Utils.subByteArray(buffer, frameLength,
+							written.length() - frameLength);
+					written.clear();
+					written.put(rest);
+
+					/* the request arrives when the link has carried it */
+					long arrival = Math.max(System.nanoTime(), uplinkFree)
+							+ transferTime(frameLength);
+					uplinkFree = arrival;
+					long answered = arrival + latency * 1000000L;
+					for (byte[] frame : handle(request)) {
+						long start = Math.max(answered, downlinkFree);
+						downlinkFree = start + transferTime(frame.length);
+						replies.add(new Reply(frame, downlinkFree));
+					}
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connects to the phone over TCP, for example through a serial over IP bridge
+ * that forwards the Bluetooth serial port or a data cable of the phone.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class SocketTransport implements Transport {
+	private String host;
+	private int port;
+	private int timeout = 0;
+	private Socket socket;
+	private InputStream is;
+	private OutputStream os;
+
+	/**
+	 * Construct the transport
+	 *
+	 * @param host
+	 *            the host name or address of the bridge
+	 * @param port
+	 *            the TCP port of the bridge
+	 * @throws GjokiiException
+	 *             if the port is invalid
+	 */
+	public SocketTransport(String host, int port) throws GjokiiException {
+		if (port <= 0 || port > 65535)
+			throw new GjokiiException("invalid port " + port);
+		this.host = host;
+		this.port = port;
+	}
+
+	public void close() throws GjokiiException {
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to close connection: "
+					+ e.getMessage());
+		}
+	}
+
+	public InputStream getInputStream() {
+		return is;
+	}
+
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	public void open() throws GjokiiException {
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			socket.setSoTimeout(timeout);
+			/* requests are small and wait for a reply, do not delay them */
+			socket.setTcpNoDelay(true);
+			is = new BufferedInputStream(socket.getInputStream());
+			os = socket.getOutputStream();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to connect to " + host + ":"
+					+ port + ": " + e.getMessage());
+		}
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+}
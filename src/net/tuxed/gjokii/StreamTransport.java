@@ -0,0 +1,73 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Uses an already opened pair of streams as transport.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+class StreamTransport implements Transport {
+	private InputStream is;
+	private OutputStream os;
+	private int timeout = 0;
+
+	/**
+	 * Construct the transport
+	 *
+	 * @param is
+	 *            the stream to receive data from the phone
+	 * @param os
+	 *            the stream to send data to the phone
+	 */
+	StreamTransport(InputStream is, OutputStream os) {
+		this.is = is;
+		this.os = os;
+	}
+
+	public void close() throws GjokiiException {
+		try {
+			is.close();
+			os.close();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to close connection: "
+					+ e.getMessage());
+		}
+	}
+
+	public InputStream getInputStream() {
+		return is;
+	}
+
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	public void open() {
+		if (timeout != 0)
+			is = new TimeoutInputStream(is, timeout);
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Adds a read timeout to a stream that has none, like the ones of a Bluetooth
+ * connection, by waiting until available() reports data.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+class TimeoutInputStream extends FilterInputStream {
+	private int timeout;
+
+	/**
+	 * Construct the stream
+	 *
+	 * @param is
+	 *            the stream to read from
+	 * @param timeout
+	 *            the time in ms to wait for data, 0 to wait forever
+	 */
+	TimeoutInputStream(InputStream is, int timeout) {
+		super(is);
+		this.timeout = timeout;
+	}
+
+	public int read() throws IOException {
+		waitForData();
+		return super.read();
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len > 0)
+			waitForData();
+		return super.read(b, off, len);
+	}
+
+	private void waitForData() throws IOException {
+		if (timeout == 0 || in.available() > 0)
+			return;
+		long deadline = System.currentTimeMillis() + timeout;
+		while (in.available() == 0) {
+			if (System.currentTimeMillis() >= deadline)
+				throw new InterruptedIOException("no data from the phone in "
+						+ timeout + " ms");
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted");
+			}
+		}
+	}
+}
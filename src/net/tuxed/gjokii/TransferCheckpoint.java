@@ -0,0 +1,210 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Records how far the transfer of a file from the phone got, so an interrupted
+ * transfer can continue where it stopped.
+ *
+ * The checkpoint is stored next to the partially written file and contains the
+ * path, size and time stamp of the file on the phone, the number of bytes
+ * written and the SHA-1 hash of those bytes. A transfer is only continued when
+ * the file on the phone did not change and the bytes already written still
+ * match the hash.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+class TransferCheckpoint {
+	private File checkpointFile;
+	private String fileName;
+	private DirectoryEntryInfo fi;
+	private MessageDigest md;
+
+	/**
+	 * Construct the checkpoint
+	 *
+	 * @param checkpointFile
+	 *            the file to store the checkpoint in
+	 * @param fileName
+	 *            the file with full path on the phone
+	 * @param fi
+	 *            the information about the file on the phone
+	 * @throws GjokiiException
+	 *             if SHA-1 is not available
+	 */
+	TransferCheckpoint(File checkpointFile, String fileName,
+			DirectoryEntryInfo fi) throws GjokiiException {
+		this.checkpointFile = checkpointFile;
+		this.fileName = fileName;
+		this.fi = fi;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new GjokiiException("SHA-1 not available");
+		}
+	}
+
+	/**
+	 * Remove the checkpoint after the transfer completed
+	 */
+	void delete() {
+		checkpointFile.delete();
+	}
+
+	/**
+	 * Determine where to continue the transfer. Bytes written after the last
+	 * checkpoint are cut off the data file.
+	 *
+	 * @param dataFile
+	 *            the partially written file
+	 * @return the offset to continue from, 0 if the transfer has to start over
+	 * @throws GjokiiException
+	 *             if the data file cannot be read or truncated
+	 */
+	int restore(File dataFile) throws GjokiiException {
+		md.reset();
+		if (!checkpointFile.exists() || !dataFile.exists())
+			return 0;
+		Properties p = new Properties();
+		int offset;
+		try {
+			FileInputStream fis = new FileInputStream(checkpointFile);
+			try {
+				p.load(fis);
+			} finally {
+				fis.close();
+			}
+			offset = Integer.parseInt(p.getProperty("offset", "0"));
+		} catch (IOException e) {
+			return 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+		if (!fileName.equals(p.getProperty("path"))
+				|| !String.valueOf(fi.getEntrySize()).equals(
+						p.getProperty("size"))
+				|| !String.valueOf(fi.getEntryTimeStamp()).equals(
+						p.getProperty("timestamp")) || offset <= 0
+				|| offset > fi.getEntrySize() || offset > dataFile.length())
+			return 0;
+
+		try {
+			/* hash the bytes we already have */
+			FileInputStream fis = new FileInputStream(dataFile);
+			try {
+				byte[] data = new byte[8192];
+				int remaining = offset;
+				while (remaining > 0) {
+					int bytesRead = fis.read(data, 0, Math.min(data.length,
+							remaining));
+					if (bytesRead < 0) {
+						md.reset();
+						return 0;
+					}
+					md.update(data, 0, bytesRead);
+					remaining -= bytesRead;
+				}
+			} finally {
+				fis.close();
+			}
+			byte[] hash = getHash();
+			if (hash.length == 0
+					|| !Utils.byteArrayToString(hash).equals(
+							p.getProperty("sha1"))) {
+				md.reset();
+				return 0;
+			}
+			RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+			try {
+				raf.setLength(offset);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to continue transfer: "
+					+ e.getMessage());
+		}
+		return offset;
+	}
+
+	/**
+	 * Write the checkpoint
+	 *
+	 * @param offset
+	 *            the number of bytes written to the data file so far
+	 * @throws GjokiiException
+	 *             if writing the checkpoint fails
+	 */
+	void store(int offset) throws GjokiiException {
+		Properties p = new Properties();
+		p.setProperty("path", fileName);
+		p.setProperty("size", String.valueOf(fi.getEntrySize()));
+		p.setProperty("timestamp", String.valueOf(fi.getEntryTimeStamp()));
+		p.setProperty("offset", String.valueOf(offset));
+		p.setProperty("sha1", Utils.byteArrayToString(getHash()));
+		try {
+			FileOutputStream fos = new FileOutputStream(checkpointFile);
+			try {
+				p.store(fos, "Gjokii transfer checkpoint");
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write checkpoint");
+		}
+	}
+
+	/**
+	 * Add data written to the data file to the hash
+	 *
+	 * @param data
+	 *            the buffer holding the data
+	 * @param offset
+	 *            the offset of the data in the buffer
+	 * @param length
+	 *            the number of bytes
+	 */
+	void update(byte[] data, int offset, int length) {
+		md.update(data, offset, length);
+	}
+
+	/**
+	 * Get the hash of the data written so far without ending the running hash
+	 *
+	 * @return the SHA-1 hash
+	 */
+	private byte[] getHash() {
+		try {
+			return ((MessageDigest) md.clone()).digest();
+		} catch (CloneNotSupportedException e) {
+			/* the checkpoint will not match, the transfer starts over */
+			return new byte[0];
+		}
+	}
+}
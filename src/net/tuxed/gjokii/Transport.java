@@ -0,0 +1,72 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The link between Gjokii and a phone.
+ *
+ * A transport is opened once by Gjokii, after which the frames are written to
+ * its output stream and read from its input stream. Gjokii reads whole frames
+ * from the input stream, so reads should block until data arrives.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public interface Transport {
+	/**
+	 * Close the connection to the phone
+	 *
+	 * @throws GjokiiException
+	 *             if closing the connection fails
+	 */
+	public void close() throws GjokiiException;
+
+	/**
+	 * Get the stream to receive data from the phone
+	 *
+	 * @return the stream
+	 */
+	public InputStream getInputStream();
+
+	/**
+	 * Get the stream to send data to the phone
+	 *
+	 * @return the stream
+	 */
+	public OutputStream getOutputStream();
+
+	/**
+	 * Open the connection to the phone
+	 *
+	 * @throws GjokiiException
+	 *             if the phone cannot be reached
+	 */
+	public void open() throws GjokiiException;
+
+	/**
+	 * Set the time to wait for the phone. Reading from the input stream fails
+	 * with an InterruptedIOException when no data arrives in time. Should be
+	 * called before opening the transport.
+	 *
+	 * @param timeout
+	 *            the time in ms, 0 to wait forever
+	 */
+	public void setTimeout(int timeout);
+}
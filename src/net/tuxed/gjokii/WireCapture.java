@@ -0,0 +1,153 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records all frames of one connection to the phone in a binary file, so the
+ * session can be replayed later with ReplayConnection.
+ *
+ * The file starts with the magic "GJKC" and a version byte, followed by one
+ * record per frame:
+ *
+ * <pre>
+ * (direction [1]) (time [8]) (length [4]) (frame [length])
+ * </pre>
+ *
+ * The direction is SENT or RECEIVED, the time is the number of nanoseconds
+ * since the previous record (or since the start of the capture) and the frame
+ * includes its header. All values are big endian.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class WireCapture {
+	static final byte[] MAGIC = new byte[] { 'G', 'J', 'K', 'C' };
+	static final int VERSION = 1;
+	static final int SENT = 0;
+	static final int RECEIVED = 1;
+
+	private DataOutputStream out;
+	private long lastTime = System.nanoTime();
+	private boolean closed = false;
+
+	/**
+	 * Write the capture to a file
+	 *
+	 * @param captureFile
+	 *            the file to write to, it is overwritten
+	 * @throws GjokiiException
+	 *             if the file cannot be created
+	 */
+	public WireCapture(File captureFile) throws GjokiiException {
+		try {
+			init(new FileOutputStream(captureFile));
+		} catch (IOException e) {
+			throw new GjokiiException("unable to create capture file "
+					+ captureFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Write the capture to a stream
+	 *
+	 * @param os
+	 *            the stream, it is closed when the capture is closed
+	 * @throws GjokiiException
+	 *             if writing to the stream fails
+	 */
+	public WireCapture(OutputStream os) throws GjokiiException {
+		try {
+			init(os);
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write capture");
+		}
+	}
+
+	/**
+	 * Write the remaining records and close the capture
+	 *
+	 * @throws GjokiiException
+	 *             if writing the capture fails
+	 */
+	public synchronized void close() throws GjokiiException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write capture");
+		}
+	}
+
+	/**
+	 * Record a frame received from the phone
+	 *
+	 * @param frame
+	 *            the frame, including the header
+	 * @throws GjokiiException
+	 *             if writing the capture fails
+	 */
+	void received(byte[] frame) throws GjokiiException {
+		write(RECEIVED, frame, 0, frame.length);
+	}
+
+	/**
+	 * Record a frame sent to the phone
+	 *
+	 * @param buffer
+	 *            the buffer holding the frame
+	 * @param offset
+	 *            the offset of the frame in the buffer
+	 * @param length
+	 *            the length of the frame
+	 * @throws GjokiiException
+	 *             if writing the capture fails
+	 */
+	void sent(byte[] buffer, int offset, int length) throws GjokiiException {
+		write(SENT, buffer, offset, length);
+	}
+
+	private void init(OutputStream os) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(os));
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+	}
+
+	private synchronized void write(int direction, byte[] buffer, int offset,
+			int length) throws GjokiiException {
+		if (closed)
+			return;
+		long now = System.nanoTime();
+		try {
+			out.writeByte(direction);
+			out.writeLong(now - lastTime);
+			out.writeInt(length);
+			out.write(buffer, offset, length);
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write capture");
+		}
+		lastTime = now;
+	}
+}
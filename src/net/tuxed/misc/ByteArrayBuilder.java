@@ -0,0 +1,373 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Builds a byte array piece by piece.
+ *
+ * Unlike Utils.appendToByteArray, which copies everything collected so far on
+ * every call, the data is added to a buffer that doubles in size when it is
+ * full, so building an array of n bytes takes time linear in n. Values that
+ * are only known at the end (like a length field) can be written at an
+ * earlier position afterwards.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class ByteArrayBuilder {
+	private byte[] buffer;
+	private int length;
+
+	/**
+	 * Construct the builder
+	 *
+	 * @param capacity
+	 *            the initial size of the buffer
+	 */
+	public ByteArrayBuilder(int capacity) {
+		buffer = new byte[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * Remove all data, the buffer is kept for reuse
+	 */
+	public void clear() {
+		length = 0;
+	}
+
+	/**
+	 * Get the buffer holding the data
+	 *
+	 * @return the buffer, only the first length() bytes contain data
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Get the number of bytes added
+	 *
+	 * @return the number of bytes
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Add a byte array
+	 *
+	 * @param data
+	 *            the data to add
+	 * @return this builder
+	 */
+	public ByteArrayBuilder put(byte[] data) {
+		return put(data, 0, data.length);
+	}
+
+	/**
+	 * Add (part of) a byte array
+	 *
+	 * @param data
+	 *            the byte array
+	 * @param offset
+	 *            the offset in the byte array to start from
+	 * @param len
+	 *            the number of bytes to add
+	 * @return this builder
+	 */
+	public ByteArrayBuilder put(byte[] data, int offset, int len) {
+		ensureCapacity(length + len);
+		System.arraycopy(data, offset, buffer, length, len);
+		length += len;
+		return this;
+	}
+
+	/**
+	 * Add a byte
+	 *
+	 * @param v
+	 *            the value
+	 * @return this builder
+	 */
+	public ByteArrayBuilder putByte(int v) {
+		ensureCapacity(length + 1);
+		buffer[length++] = (byte) v;
+		return this;
+	}
+
+	/**
+	 * Add a big endian integer
+	 *
+	 * @param v
+	 *            the value
+	 * @return this builder
+	 */
+	public ByteArrayBuilder putInt(int v) {
+		ensureCapacity(length + 4);
+		storeInt(length, v);
+		length += 4;
+		return this;
+	}
+
+	/**
+	 * Add a little endian integer
+	 *
+	 * @param v
+	 *            the value
+	 * @return this builder
+	 */
+	public ByteArrayBuilder putIntLE(int v) {
+		ensureCapacity(length + 4);
+		storeIntLE(length, v);
+		length += 4;
+		return this;
+	}
+
+	/**
+	 * Add a big endian short
+	 *
+	 * @param v
+	 *            the value
+	 * @return this builder
+	 */
+	public ByteArrayBuilder putShort(int v) {
+		ensureCapacity(length + 2);
+		storeShort(length, v);
+		length += 2;
+		return this;
+	}
+
+	/**
+	 * Add a little endian short
+	 *
+	 * @param v
+	 *            the value
+	 * @return this builder
+	 */
+	public ByteArrayBuilder putShortLE(int v) {
+		ensureCapacity(length + 2);
+		storeShortLE(length, v);
+		length += 2;
+		return this;
+	}
+
+	/**
+	 * Add a string as UTF-16 (little endian), the way the phone expects path
+	 * names.
+	 *
+	 * @param s
+	 *            the string
+	 * @param terminator
+	 *            whether or not to add 0x00 0x00 at the end
+	 * @return this builder
+	 */
+	public ByteArrayBuilder putString(String s, boolean terminator) {
+		try {
+			put(s.getBytes("UTF-16LE"));
+		} catch (UnsupportedEncodingException e) {
+			/* every JVM supports UTF-16LE */
+		}
+		if (terminator)
+			putZeros(2);
+		return this;
+	}
+
+	/**
+	 * Add a number of zero bytes
+	 *
+	 * @param count
+	 *            the number of bytes
+	 * @return this builder
+	 */
+	public ByteArrayBuilder putZeros(int count) {
+		ensureCapacity(length + count);
+		for (int i = 0; i < count; i++)
+			buffer[length + i] = 0;
+		length += count;
+		return this;
+	}
+
+	/**
+	 * Add data read from a stream
+	 *
+	 * @param is
+	 *            the stream to read from
+	 * @param len
+	 *            the maximum number of bytes to read
+	 * @return the number of bytes added, or -1 if the end of the stream was
+	 *         reached
+	 * @throws IOException
+	 *             if reading from the stream fails
+	 */
+	public int readFrom(InputStream is, int len) throws IOException {
+		ensureCapacity(length + len);
+		int bytesRead = is.read(buffer, length, len);
+		if (bytesRead > 0)
+			length += bytesRead;
+		return bytesRead;
+	}
+
+	/**
+	 * Overwrite a byte already added
+	 *
+	 * @param position
+	 *            the position of the byte
+	 * @param v
+	 *            the value
+	 */
+	public void setByte(int position, int v) {
+		checkPosition(position, 1);
+		buffer[position] = (byte) v;
+	}
+
+	/**
+	 * Overwrite a big endian integer already added
+	 *
+	 * @param position
+	 *            the position of the integer
+	 * @param v
+	 *            the value
+	 */
+	public void setInt(int position, int v) {
+		checkPosition(position, 4);
+		storeInt(position, v);
+	}
+
+	/**
+	 * Overwrite a little endian integer already added
+	 *
+	 * @param position
+	 *            the position of the integer
+	 * @param v
+	 *            the value
+	 */
+	public void setIntLE(int position, int v) {
+		checkPosition(position, 4);
+		storeIntLE(position, v);
+	}
+
+	/**
+	 * Overwrite a big endian short already added
+	 *
+	 * @param position
+	 *            the position of the short
+	 * @param v
+	 *            the value
+	 */
+	public void setShort(int position, int v) {
+		checkPosition(position, 2);
+		storeShort(position, v);
+	}
+
+	/**
+	 * Overwrite a little endian short already added
+	 *
+	 * @param position
+	 *            the position of the short
+	 * @param v
+	 *            the value
+	 */
+	public void setShortLE(int position, int v) {
+		checkPosition(position, 2);
+		storeShortLE(position, v);
+	}
+
+	/**
+	 * Get a copy of the data
+	 *
+	 * @return the data
+	 */
+	public byte[] toByteArray() {
+		byte[] result = new byte[length];
+		System.arraycopy(buffer, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Write the data to a stream
+	 *
+	 * @param os
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing to the stream fails
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		os.write(buffer, 0, length);
+	}
+
+	/**
+	 * Make sure a value at the position was added before
+	 *
+	 * @param position
+	 *            the position of the value
+	 * @param size
+	 *            the size of the value in bytes
+	 */
+	private void checkPosition(int position, int size) {
+		if (position < 0 || position > length - size)
+			throw new ArrayIndexOutOfBoundsException(position);
+	}
+
+	/**
+	 * Make sure the buffer can hold the requested number of bytes
+	 *
+	 * @param capacity
+	 *            the number of bytes
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity <= buffer.length)
+			return;
+		byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+		System.arraycopy(buffer, 0, newBuffer, 0, length);
+		buffer = newBuffer;
+	}
+
+	/*
+	 * The store methods write a value without checking the position, the put
+	 * methods call them after ensureCapacity and the set methods after
+	 * checkPosition.
+	 */
+
+	private void storeInt(int position, int v) {
+		buffer[position] = (byte) (v >> 24);
+		buffer[position + 1] = (byte) (v >> 16);
+		buffer[position + 2] = (byte) (v >> 8);
+		buffer[position + 3] = (byte) v;
+	}
+
+	private void storeIntLE(int position, int v) {
+		buffer[position] = (byte) v;
+		buffer[position + 1] = (byte) (v >> 8);
+		buffer[position + 2] = (byte) (v >> 16);
+		buffer[position + 3] = (byte) (v >> 24);
+	}
+
+	private void storeShort(int position, int v) {
+		buffer[position] = (byte) (v >> 8);
+		buffer[position + 1] = (byte) v;
+	}
+
+	private void storeShortLE(int position, int v) {
+		buffer[position] = (byte) v;
+		buffer[position + 1] = (byte) (v >> 8);
+	}
+}
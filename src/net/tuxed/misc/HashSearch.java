@@ -0,0 +1,292 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the part of some data that results in a certain SHA1 hash.
+ *
+ * The hashes in the certificate lists of the phone are calculated over parts
+ * of the DER encoded certificate, like the subject or the public key. Instead
+ * of hashing every possible sub array, the data is first parsed as DER and
+ * only sub arrays starting at the tag or the value of an element and ending at
+ * the end of an element are tried. For every start position the data is
+ * hashed only once: the running hash is cloned at every possible end
+ * position. The start positions are divided over all processors.
+ *
+ * If the data is not DER, or no DER element range matches, every sub array is
+ * tried in the same way.
+ *
+ * The result is the one of a search through every sub array, shortest first
+ * and then lowest offset: a match on the element boundaries is moved to the
+ * first place where the same bytes occur. Only a shorter sub array with other
+ * bytes and the same hash, that is a SHA1 collision, could be missed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class HashSearch {
+	private byte[] hayStack;
+	private byte[] needle;
+	/* length of the shortest match found so far, searches stop beyond it */
+	private volatile int bestLength = Integer.MAX_VALUE;
+	private int bestOffset = -1;
+
+	private HashSearch(byte[] hayStack, byte[] needle) {
+		this.hayStack = hayStack;
+		this.needle = needle;
+	}
+
+	/**
+	 * Look through data (hay stack) looking for a sub array that results in a
+	 * certain SHA1 hash (needle).
+	 *
+	 * @param hayStack
+	 *            the data to analyze
+	 * @param needle
+	 *            the hash being looked for
+	 * @return the {offset, length} of the shortest sub array in hay stack
+	 *         resulting in the hash specified by needle, the one with the
+	 *         lowest offset if there are more, or null if no match was found
+	 */
+	public static int[] find(byte[] hayStack, byte[] needle) {
+		HashSearch s = new HashSearch(hayStack, needle);
+		if (Arrays.equals(s.newDigest().digest(), needle))
+			return new int[] { 0, 0 };
+
+		TreeSet<Integer> starts = new TreeSet<Integer>();
+		TreeSet<Integer> ends = new TreeSet<Integer>();
+		parse(hayStack, 0, hayStack.length, starts, ends);
+		s.search(toArray(starts), toArray(ends));
+		if (s.bestOffset != -1) {
+			s.bestOffset = firstOccurrence(hayStack, s.bestOffset,
+					s.bestLength);
+		} else {
+			/* not DER, or a range that does not follow the elements */
+			int[] all = new int[hayStack.length + 1];
+			for (int i = 0; i < all.length; i++)
+				all[i] = i;
+			s.search(all, all);
+		}
+		return (s.bestOffset == -1) ? null : new int[] { s.bestOffset,
+				s.bestLength };
+	}
+
+	/**
+	 * Find the first place where a sub array occurs in the data
+	 *
+	 * @param data
+	 *            the data
+	 * @param offset
+	 *            the offset of the sub array
+	 * @param length
+	 *            the length of the sub array
+	 * @return the lowest offset at which the same bytes occur
+	 */
+	private static int firstOccurrence(byte[] data, int offset, int length) {
+		for (int i = 0; i < offset; i++) {
+			int j = 0;
+			while (j < length && data[i + j] == data[offset + j])
+				j++;
+			if (j == length)
+				return i;
+		}
+		return offset;
+	}
+
+	/**
+	 * Determine the element boundaries of DER encoded data. Parsing stops at
+	 * the first element that is not valid, the boundaries found until then
+	 * are kept.
+	 *
+	 * @param data
+	 *            the data
+	 * @param offset
+	 *            the offset to start parsing
+	 * @param end
+	 *            the offset to stop parsing
+	 * @param starts
+	 *            collects the positions of tags and values
+	 * @param ends
+	 *            collects the positions where elements end
+	 * @return true if the data was parsed up to end
+	 */
+	private static boolean parse(byte[] data, int offset, int end,
+			TreeSet<Integer> starts, TreeSet<Integer> ends) {
+		while (offset < end) {
+			int tagStart = offset;
+			int tag = data[offset++] & 0xff;
+			if ((tag & 0x1f) == 0x1f) {
+				/* high tag number form */
+				while (offset < end && (data[offset] & 0x80) != 0)
+					offset++;
+				offset++;
+			}
+			if (offset >= end)
+				return false;
+			int length = data[offset++] & 0xff;
+			if ((length & 0x80) != 0) {
+				int lengthBytes = length & 0x7f;
+				/* indefinite length is not DER */
+				if (lengthBytes == 0 || lengthBytes > 3
+						|| offset + lengthBytes > end)
+					return false;
+				length = 0;
+				for (int i = 0; i < lengthBytes; i++)
+					length = (length << 8) | (data[offset++] & 0xff);
+			}
+			int valueStart = offset;
+			int valueEnd = valueStart + length;
+			if (valueEnd > end)
+				return false;
+
+			starts.add(tagStart);
+			starts.add(valueStart);
+			/* leading zero of a positive INTEGER or unused bits of a BIT STRING */
+			if (length > 0 && data[valueStart] == 0)
+				starts.add(valueStart + 1);
+			ends.add(valueEnd);
+
+			if ((tag & 0x20) != 0) {
+				/* constructed */
+				parse(data, valueStart, valueEnd, starts, ends);
+			} else if (tag == 0x03 || tag == 0x04) {
+				/* BIT STRING or OCTET STRING, may hold a DER element */
+				int innerStart = (tag == 0x03) ? valueStart + 1 : valueStart;
+				TreeSet<Integer> innerStarts = new TreeSet<Integer>();
+				TreeSet<Integer> innerEnds = new TreeSet<Integer>();
+				if (innerStart < valueEnd
+						&& parse(data, innerStart, valueEnd, innerStarts,
+								innerEnds)) {
+					starts.addAll(innerStarts);
+					ends.addAll(innerEnds);
+				}
+			}
+			offset = valueEnd;
+		}
+		return offset == end;
+	}
+
+	private static int[] toArray(TreeSet<Integer> set) {
+		int[] result = new int[set.size()];
+		int i = 0;
+		for (Integer v : set)
+			result[i++] = v;
+		return result;
+	}
+
+	/**
+	 * Record a match, only the shortest (and then the first) one is kept
+	 *
+	 * @param offset
+	 *            the offset of the match
+	 * @param length
+	 *            the length of the match
+	 */
+	private synchronized void found(int offset, int length) {
+		if (length < bestLength || (length == bestLength && offset < bestOffset)) {
+			bestOffset = offset;
+			bestLength = length;
+		}
+	}
+
+	private MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			/* we assume SHA1 always exists... */
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Try all sub arrays starting at one of the start positions and ending at
+	 * one of the end positions.
+	 *
+	 * @param starts
+	 *            the start positions, sorted
+	 * @param ends
+	 *            the end positions, sorted
+	 */
+	private void search(int[] starts, final int[] ends) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final int start : starts) {
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					search(start, ends);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Object> f : executor.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Try all sub arrays starting at a position, hashing the data only once.
+	 *
+	 * @param start
+	 *            the start position
+	 * @param ends
+	 *            the end positions, sorted
+	 */
+	private void search(int start, int[] ends) {
+		MessageDigest hash = newDigest();
+		int position = start;
+		for (int end : ends) {
+			if (end <= start)
+				continue;
+			if (end - start > bestLength)
+				return;
+			hash.update(hayStack, position, end - position);
+			position = end;
+			byte[] dig;
+			try {
+				dig = ((MessageDigest) hash.clone()).digest();
+			} catch (CloneNotSupportedException e) {
+				MessageDigest h = newDigest();
+				h.update(hayStack, start, end - start);
+				dig = h.digest();
+			}
+			if (Arrays.equals(dig, needle)) {
+				found(start, end - start);
+				return;
+			}
+		}
+	}
+}
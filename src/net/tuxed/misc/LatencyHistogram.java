@@ -0,0 +1,163 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+/**
+ * Collects latencies in buckets whose width grows with the value, like
+ * HdrHistogram does. Values below 16 have a bucket each, larger values are
+ * divided into 8 buckets per power of two, so a percentile is accurate to
+ * within 12.5% while the histogram stays small whatever the range of values.
+ *
+ * The histogram can be shared by multiple threads.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class LatencyHistogram {
+	/* values below this have a bucket of their own */
+	private static final int LINEAR_BUCKETS = 16;
+	/* number of buckets per power of two above that, must be a power of 2 */
+	private static final int SUB_BUCKETS = 8;
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private long[] buckets = new long[LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS];
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * Get the number of values recorded
+	 *
+	 * @return the number of values
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the largest value recorded
+	 *
+	 * @return the value, or 0 if nothing was recorded
+	 */
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * Get the average of the values recorded
+	 *
+	 * @return the average, or 0 if nothing was recorded
+	 */
+	public synchronized double getMean() {
+		return (count == 0) ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Get the smallest value recorded
+	 *
+	 * @return the value, or 0 if nothing was recorded
+	 */
+	public synchronized long getMin() {
+		return (count == 0) ? 0 : min;
+	}
+
+	/**
+	 * Get the value below which a percentage of the recorded values lie
+	 *
+	 * @param percentile
+	 *            the percentage (0 - 100)
+	 * @return the upper bound of the bucket holding the percentile, never
+	 *         more than the largest value recorded, or 0 if nothing was
+	 *         recorded
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+		long wanted = (long) Math.ceil(count * Math.min(percentile, 100) / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= Math.max(wanted, 1))
+				return Math.max(Math.min(upperBound(i), max), min);
+		}
+		return max;
+	}
+
+	/**
+	 * Record a value
+	 *
+	 * @param value
+	 *            the value, negative values are recorded as 0
+	 */
+	public synchronized void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets[bucket(value)]++;
+		count++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Remove all recorded values
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = 0;
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * Determine the bucket of a value
+	 *
+	 * @param value
+	 *            the (non negative) value
+	 * @return the index of the bucket
+	 */
+	private static int bucket(long value) {
+		if (value < LINEAR_BUCKETS)
+			return (int) value;
+		/* the position of the highest bit set, at least 4 */
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Determine the largest value that ends up in a bucket
+	 *
+	 * @param bucket
+	 *            the index of the bucket
+	 * @return the value
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR_BUCKETS)
+			return bucket;
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+		int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+	}
+}
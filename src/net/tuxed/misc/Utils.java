@@ -17,14 +17,17 @@
 package net.tuxed.misc;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 /**
  * General purpose class with all kinds of useful methods
@@ -33,6 +36,7 @@ import java.util.Arrays;
  * 
  */
 public class Utils {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
 	private Utils() {
 	}
@@ -237,12 +241,35 @@ public class Utils {
 	 * @return the human readable representation
 	 */
 	public static String byteToString(int b) {
-		String s = Integer.toHexString(b);
-		if (s.length() == 1)
-			s = "0" + s;
-		else
-			s = s.substring(s.length() - 2);
-		return s;
+		return new String(new char[] { HEX_DIGITS[(b >> 4) & 0x0f],
+				HEX_DIGITS[b & 0x0f] });
+	}
+
+	/**
+	 * Copy a file
+	 * 
+	 * @param source
+	 *            the file to copy
+	 * @param target
+	 *            the file to write the copy to
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public static void copyFile(File source, File target) throws IOException {
+		FileInputStream fis = new FileInputStream(source);
+		try {
+			FileOutputStream fos = new FileOutputStream(target);
+			try {
+				byte[] data = new byte[8192];
+				int bytesRead;
+				while ((bytesRead = fis.read(data)) > 0)
+					fos.write(data, 0, bytesRead);
+			} finally {
+				fos.close();
+			}
+		} finally {
+			fis.close();
+		}
 	}
 
 	/**
@@ -310,34 +337,19 @@ public class Utils {
 	 * Look through data (hay stack) looking for a pattern that results in a
 	 * certain SHA1 hash (needle).
 	 * 
-	 * This is a brute force search. For every possible (continuous) sub array
-	 * of hayStack we calculate the SHA1 hash and match it with the hash we were
-	 * looking for (needle).
+	 * Only the sub arrays following the DER element boundaries are tried
+	 * first, see HashSearch for details.
 	 * 
 	 * @param hayStack
 	 *            the data to analyze
 	 * @param needle
 	 *            the hash being looked for
-	 * @return the {offset, length} of some sub array in hay stack resulting in
-	 *         the hash specified by needle, or null if no match was found
+	 * @return the {offset, length} of the shortest sub array in hay stack
+	 *         resulting in the hash specified by needle, the one with the
+	 *         lowest offset if there are more, or null if no match was found
 	 */
 	public static int[] hashCalculator(byte[] hayStack, byte[] needle) {
-		MessageDigest hash = null;
-		try {
-			hash = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {
-		}
-		/* for every possible size */
-		for (int i = 0; i <= hayStack.length; i++) {
-			/* every possible offset */
-			for (int j = 0; j <= hayStack.length - i; j++) {
-				hash.update(hayStack, j, i);
-				byte[] dig = hash.digest();
-				if (Arrays.equals(dig, needle))
-					return new int[] { j, i };
-			}
-		}
-		return null;
+		return HashSearch.find(hayStack, needle);
 	}
 
 	public static String hexDump(byte[] a) {
@@ -345,40 +357,70 @@ public class Utils {
 	}
 
 	public static String hexDump(byte[] a, int offset, int length) {
+		/* every row of 16 bytes takes 67 characters */
+		StringBuilder result = new StringBuilder((length / 16 + 1) * 67);
+		try {
+			hexDump(result, a, offset, length);
+		} catch (IOException e) {
+			/* StringBuilder does not throw */
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Write a hex dump of (part of) a byte array to a writer, a stream or a
+	 * buffer without building the whole dump in memory first.
+	 * 
+	 * @param out
+	 *            the destination of the dump
+	 * @param a
+	 *            the byte array
+	 * @param offset
+	 *            the offset in the byte array to start from
+	 * @param length
+	 *            the number of bytes to dump
+	 * @throws IOException
+	 *             if writing to the destination fails
+	 */
+	public static void hexDump(Appendable out, byte[] a, int offset,
+			int length) throws IOException {
 		int WIDTH = 16;
-		if (a == null)
-			return "[null]";
-		if (a.length == 0)
-			return "[empty]";
-		String result = "";
+		if (a == null) {
+			out.append("[null]");
+			return;
+		}
+		if (a.length == 0) {
+			out.append("[empty]");
+			return;
+		}
 		if (offset < 0 || length < 0 || length + offset > a.length) {
 			throw new IndexOutOfBoundsException();
 		}
-		int rows = length / WIDTH;
-		int lastRow = length % WIDTH;
-		if (lastRow != 0)
-			rows++;
-
-		for (int i = 0; i < rows; i++) {
-			int m = (lastRow != 0 && i == rows - 1) ? lastRow : WIDTH;
-
-			for (int j = 0; j < m; j++) {
-				result += byteToString(a[offset + i * WIDTH + j]) + " ";
+		char[] row = new char[WIDTH * 4 + 4];
+		for (int i = 0; i < length; i += WIDTH) {
+			int m = Math.min(WIDTH, length - i);
+			int p = 0;
+			for (int j = 0; j < WIDTH; j++) {
+				if (j < m) {
+					int b = a[offset + i + j] & 0xff;
+					row[p++] = HEX_DIGITS[b >> 4];
+					row[p++] = HEX_DIGITS[b & 0x0f];
+				} else {
+					row[p++] = ' ';
+					row[p++] = ' ';
+				}
+				row[p++] = ' ';
 			}
-			for (int z = 0; z < WIDTH - m; z++) {
-				result += "   ";
-			}
-			result += " |";
+			row[p++] = ' ';
+			row[p++] = '|';
 			for (int j = 0; j < m; j++) {
-				if (a[offset + i * WIDTH + j] >= 0x20
-						&& a[offset + i * WIDTH + j] < 0x7f)
-					result += (char) a[offset + i * WIDTH + j];
-				else
-					result += ".";
+				byte b = a[offset + i + j];
+				row[p++] = (b >= 0x20 && b < 0x7f) ? (char) b : '.';
 			}
-			result += "|\n";
+			row[p++] = '|';
+			row[p++] = '\n';
+			out.append(CharBuffer.wrap(row, 0, p));
 		}
-		return result;
 	}
 
 	/**
@@ -408,6 +450,25 @@ public class Utils {
 				(byte) ((v & 0xFF000000) >> 24) };
 	}
 
+	/**
+	 * Read a stream until its end
+	 * 
+	 * @param is
+	 *            the stream to read
+	 * @return all bytes read from the stream
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public static byte[] readStream(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(
+				is.available(), 32));
+		byte[] data = new byte[8192];
+		int bytesRead;
+		while ((bytesRead = is.read(data)) != -1)
+			bos.write(data, 0, bytesRead);
+		return bos.toByteArray();
+	}
+
 	/**
 	 * Convert a short to byte array
 	 * 
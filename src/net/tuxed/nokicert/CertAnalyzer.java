@@ -0,0 +1,347 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.misc.Utils;
+
+/**
+ * Analyzes a large number of X.509 certificates and writes the fields used in
+ * the certificate lists of the phone for every one of them, as CSV or JSON.
+ *
+ * The input can be DER files, PEM files holding one or more certificates,
+ * and directories containing those. The certificates are parsed by a pool of
+ * threads while the input is still being read. Only a limited number of
+ * certificates is in progress at any time and every result is written as soon
+ * as it is ready, so the memory used does not depend on the number of
+ * certificates. The results are written in the order of the input.
+ *
+ * An object can only run one analysis at a time.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ */
+public class CertAnalyzer {
+	public final static int CSV = 0;
+	public final static int JSON = 1;
+
+	private final static String[] FIELDS = { "source", "subject_cn",
+			"issuer_cn", "nokia_subject_dn", "modulus_bits", "fingerprint",
+			"modulus_hash", "subject_hash", "issuer_hash", "error" };
+	/* the index of the fields that are numbers */
+	private final static int MODULUS_BITS = 4;
+	private final static int ERROR = 9;
+
+	/* the number of certificates in progress per thread */
+	private final static int QUEUE_PER_THREAD = 4;
+
+	private int threads;
+	private int format;
+
+	private ExecutorService executor;
+	private LinkedList<Future<String[]>> inProgress;
+	private Writer out;
+	private int certificates;
+	private int failures;
+
+	/**
+	 * Construct the analyzer
+	 *
+	 * @param threads
+	 *            the number of certificates to parse at the same time
+	 * @param format
+	 *            the output format (CSV or JSON)
+	 */
+	public CertAnalyzer(int threads, int format) {
+		this.threads = threads;
+		this.format = format;
+	}
+
+	/**
+	 * Analyze certificates
+	 *
+	 * @param inputs
+	 *            DER or PEM files, or directories to search for them
+	 * @param out
+	 *            the writer to write the results to, it is flushed but not
+	 *            closed
+	 * @throws GjokiiException
+	 *             if reading the input or writing the results fails. A
+	 *             certificate that cannot be parsed is not an error, the
+	 *             reason is written in its error field.
+	 */
+	public void analyze(List<File> inputs, Writer out) throws GjokiiException {
+		this.out = out;
+		certificates = 0;
+		failures = 0;
+		executor = Executors.newFixedThreadPool(threads);
+		inProgress = new LinkedList<Future<String[]>>();
+		try {
+			if (format == CSV)
+				out.write(toCSV(FIELDS));
+			else
+				out.write("[");
+			for (File f : inputs)
+				add(f);
+			while (!inProgress.isEmpty())
+				writeNext();
+			out.write(format == CSV ? "" : "\n]\n");
+			out.flush();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to write analysis: "
+					+ e.getMessage());
+		} finally {
+			executor.shutdownNow();
+			executor = null;
+			inProgress = null;
+		}
+	}
+
+	/**
+	 * Get the number of certificates analyzed by the last analysis
+	 *
+	 * @return the number of certificates, including the ones that failed
+	 */
+	public int getCertificates() {
+		return certificates;
+	}
+
+	/**
+	 * Get the number of certificates that could not be parsed in the last
+	 * analysis
+	 *
+	 * @return the number of failed certificates
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Add a file or all files in a directory to the analysis
+	 *
+	 * @param f
+	 *            the file or directory
+	 */
+	private void add(File f) throws GjokiiException, IOException {
+		if (f.isDirectory()) {
+			File[] files = f.listFiles();
+			if (files == null)
+				throw new GjokiiException("unable to list " + f.getPath());
+			Arrays.sort(files);
+			for (File file : files)
+				add(file);
+			return;
+		}
+		InputStream is;
+		try {
+			is = new BufferedInputStream(new FileInputStream(f));
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read " + f.getPath());
+		}
+		try {
+			is.mark(1);
+			int first = is.read();
+			is.reset();
+			if (first == 0x30) {
+				/* a DER SEQUENCE, the worker reads the file */
+				submit(f.getPath(), f, null, null);
+			} else {
+				addPEM(f.getPath(), is);
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Add all certificates in a PEM file to the analysis
+	 *
+	 * @param source
+	 *            the name of the file
+	 * @param is
+	 *            the stream to read the file from
+	 */
+	private void addPEM(String source, InputStream is) throws GjokiiException,
+			IOException {
+		PemReader r = new PemReader(is);
+		try {
+			byte[] der;
+			while ((der = r.readCertificate()) != null)
+				submit(source + "#" + r.getCertificates(), null, der, null);
+		} catch (IOException e) {
+			submit(source + "#" + (r.getCertificates() + 1), null, null, e
+					.getMessage());
+			return;
+		}
+		if (r.getCertificates() == 0) {
+			/* report the file, so it does not silently disappear */
+			submit(source, null, null, "no certificate found");
+		}
+	}
+
+	/**
+	 * Parse a certificate and collect its fields
+	 *
+	 * @param source
+	 *            the name of the certificate
+	 * @param derFile
+	 *            the file holding the DER encoded certificate, or null
+	 * @param der
+	 *            the DER encoded certificate if derFile is null
+	 * @param error
+	 *            the reason the certificate could not be read, or null
+	 * @return the fields
+	 */
+	private static String[] analyze(String source, File derFile, byte[] der,
+			String error) {
+		String[] row = new String[FIELDS.length];
+		row[0] = source;
+		try {
+			if (error != null) {
+				throw new GjokiiException(error);
+			} else if (derFile != null) {
+				InputStream is = new FileInputStream(derFile);
+				try {
+					der = Utils.readStream(is);
+				} finally {
+					is.close();
+				}
+			}
+			CertParser c = new CertParser(der);
+			row[1] = c.getSubjectCommonName();
+			row[2] = c.getIssuerCommonName();
+			row[3] = c.getNokiaSubjectDN();
+			row[4] = Integer.toString(c.getModulusSize());
+			row[5] = Utils.byteArrayToString(c.getFingerprint());
+			row[6] = Utils.byteArrayToString(c.getModulusHash());
+			row[7] = Utils.byteArrayToString(c.getSubjectHash());
+			row[8] = Utils.byteArrayToString(c.getIssuerHash());
+		} catch (GjokiiException e) {
+			row[ERROR] = e.getMessage();
+		} catch (IOException e) {
+			row[ERROR] = "unable to read certificate: " + e.getMessage();
+		} catch (ClassCastException e) {
+			/* only RSA keys have a modulus */
+			row[ERROR] = "not an RSA certificate";
+		} catch (RuntimeException e) {
+			row[ERROR] = e.toString();
+		}
+		return row;
+	}
+
+	/**
+	 * Escape a string for JSON
+	 *
+	 * @param s
+	 *            the string
+	 * @return the quoted string, or null
+	 */
+	private static String quoteJSON(String s) {
+		if (s == null)
+			return "null";
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Hand a certificate to the threads, and write the oldest result when too
+	 * many certificates are in progress
+	 */
+	private void submit(final String source, final File derFile,
+			final byte[] der, final String error) throws GjokiiException,
+			IOException {
+		inProgress.add(executor.submit(new Callable<String[]>() {
+			public String[] call() {
+				return analyze(source, derFile, der, error);
+			}
+		}));
+		if (inProgress.size() >= threads * QUEUE_PER_THREAD)
+			writeNext();
+	}
+
+	private static String toCSV(String[] row) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < row.length; i++) {
+			if (i != 0)
+				sb.append(',');
+			String s = row[i];
+			if (s == null)
+				continue;
+			if (s.indexOf(',') != -1 || s.indexOf('"') != -1
+					|| s.indexOf('\n') != -1 || s.indexOf('\r') != -1)
+				sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+			else
+				sb.append(s);
+		}
+		return sb.append('\n').toString();
+	}
+
+	private String toJSON(String[] row) {
+		StringBuilder sb = new StringBuilder();
+		sb.append((certificates == 1) ? "\n  {" : ",\n  {");
+		for (int i = 0; i < row.length; i++) {
+			if (i != 0)
+				sb.append(", ");
+			sb.append('"').append(FIELDS[i]).append("\": ");
+			sb.append((i == MODULUS_BITS && row[i] != null) ? row[i]
+					: quoteJSON(row[i]));
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Wait for the oldest certificate in progress and write its result
+	 */
+	private void writeNext() throws GjokiiException, IOException {
+		String[] row;
+		try {
+			row = inProgress.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new GjokiiException("interrupted");
+		} catch (ExecutionException e) {
+			throw new GjokiiException("analysis failed: " + e.getCause());
+		}
+		certificates++;
+		if (row[ERROR] != null)
+			failures++;
+		out.write(format == CSV ? toCSV(row) : toJSON(row));
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Edits a certificate list (CDF) parsed by CertListParser.
+ *
+ * Entries can be removed, replaced and added. The list itself is not changed,
+ * the changes are only recorded. toByteArray() then writes the new list in
+ * one pass into a single array: the entries that are kept are copied as they
+ * are, followed by the added entries and the bytes that were after the last
+ * entry of the list. A list that is not modified is written as it was.
+ *
+ * New entries should be created with CertParser.getCDFEntry using the byte
+ * order of the list.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class CertListEditor {
+	private CertListParser list;
+	/* the new entry of every replaced entry of the list */
+	private byte[][] replacements;
+	private boolean[] removed;
+	private List<byte[]> added = new ArrayList<byte[]>();
+	private boolean modified = false;
+
+	/**
+	 * Start editing a certificate list
+	 *
+	 * @param list
+	 *            the list to edit
+	 */
+	public CertListEditor(CertListParser list) {
+		this.list = list;
+		replacements = new byte[list.size()][];
+		removed = new boolean[list.size()];
+	}
+
+	/**
+	 * Add an entry at the end of the list
+	 *
+	 * @param entry
+	 *            the entry
+	 */
+	public void add(byte[] entry) {
+		added.add(entry);
+		modified = true;
+	}
+
+	/**
+	 * Remove the entries of certificates that are in the list more than once,
+	 * only the first entry of every certificate is kept
+	 *
+	 * @return the number of entries removed
+	 */
+	public int compact() {
+		HashSet<String> fingerprints = new HashSet<String>();
+		CertListParser.Entry e = null;
+		int count = 0;
+		for (int i = 0; i < list.size(); i++) {
+			if (removed[i] || replacements[i] != null)
+				continue;
+			e = (e == null) ? list.getEntry(i) : e.moveTo(i);
+			if (!fingerprints.add(Utils.byteArrayToString(e.getFingerprint()))) {
+				remove(i);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Find the entries of certificates by file name or by fingerprint
+	 *
+	 * @param nameOrFingerprint
+	 *            the file name of the certificate, or its SHA1 hash as hex
+	 *            string
+	 * @return the numbers of the matching entries that are not removed or
+	 *         replaced yet
+	 */
+	public List<Integer> find(String nameOrFingerprint) {
+		List<Integer> result = new ArrayList<Integer>();
+		CertListParser.Entry e = null;
+		for (int i = 0; i < list.size(); i++) {
+			if (removed[i] || replacements[i] != null)
+				continue;
+			e = (e == null) ? list.getEntry(i) : e.moveTo(i);
+			if (e.getFileName().equals(nameOrFingerprint)
+					|| Utils.byteArrayToString(e.getFingerprint())
+							.equalsIgnoreCase(nameOrFingerprint))
+				result.add(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the file names of the certificates in the new list
+	 *
+	 * @return the file names
+	 */
+	public HashSet<String> getFileNames() {
+		HashSet<String> names = new HashSet<String>();
+		CertListParser.Entry e = null;
+		for (int i = 0; i < list.size(); i++) {
+			if (removed[i])
+				continue;
+			if (replacements[i] != null) {
+				names.add(fileName(replacements[i]));
+			} else {
+				e = (e == null) ? list.getEntry(i) : e.moveTo(i);
+				names.add(e.getFileName());
+			}
+		}
+		for (byte[] entry : added)
+			names.add(fileName(entry));
+		return names;
+	}
+
+	/**
+	 * Whether or not the list was changed
+	 *
+	 * @return true if entries were removed, replaced or added
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * Remove an entry
+	 *
+	 * @param index
+	 *            the number of the entry in the list
+	 */
+	public void remove(int index) {
+		removed[index] = true;
+		replacements[index] = null;
+		modified = true;
+	}
+
+	/**
+	 * Replace an entry, the new entry takes the place of the old one
+	 *
+	 * @param index
+	 *            the number of the entry in the list
+	 * @param entry
+	 *            the new entry
+	 */
+	public void replace(int index, byte[] entry) {
+		removed[index] = false;
+		replacements[index] = entry;
+		modified = true;
+	}
+
+	/**
+	 * Write the new list
+	 *
+	 * @return the new list
+	 */
+	public byte[] toByteArray() {
+		int length = 0;
+		for (int i = 0; i < list.size(); i++) {
+			if (removed[i])
+				continue;
+			length += (replacements[i] != null) ? replacements[i].length
+					: list.getEntryLength(i);
+		}
+		for (byte[] entry : added)
+			length += entry.length;
+		length += list.getTailLength();
+
+		byte[] result = new byte[length];
+		int offset = 0;
+		for (int i = 0; i < list.size(); i++) {
+			if (removed[i])
+				continue;
+			if (replacements[i] != null) {
+				System.arraycopy(replacements[i], 0, result, offset,
+						replacements[i].length);
+				offset += replacements[i].length;
+			} else {
+				list.copyEntry(i, result, offset);
+				offset += list.getEntryLength(i);
+			}
+		}
+		for (byte[] entry : added) {
+			System.arraycopy(entry, 0, result, offset, entry.length);
+			offset += entry.length;
+		}
+		list.copyTail(result, offset);
+		return result;
+	}
+
+	/**
+	 * Read the file name of an entry that is not in the list
+	 */
+	private static String fileName(byte[] entry) {
+		return new String(entry, CertListParser.FILE_NAME,
+				(entry[CertListParser.FILE_NAME_LENGTH] & 0xff) - 1);
+	}
+}
@@ -16,11 +16,13 @@
  */
 package net.tuxed.nokicert;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import net.tuxed.gjokii.GjokiiException;
 import net.tuxed.misc.Utils;
@@ -28,112 +30,536 @@ import net.tuxed.misc.Utils;
 /**
  * This class analyzes the certificate file list from the Nokia phones
  * 
+ * The list is kept as it is in a ByteBuffer (a mapped file or the bytes
+ * downloaded from the phone). Parsing only records where every entry starts,
+ * the fields are read from the buffer when they are asked for through an
+ * Entry. The entries are indexed by fingerprint and by subject and issuer
+ * hash in open addressing hash tables, so parsing allocates nothing per
+ * entry.
+ * 
+ * Each entry starts with its total length, the phone uses either big or
+ * little endian for it. The byte order is chosen by following the lengths
+ * from the first entry: only the right one ends at the end of the list. When
+ * neither does, the list ends with bytes that are not a whole entry, the
+ * byte order that covers most of the list is used. Those bytes are kept as
+ * the tail of the list.
+ * 
  * @author F. Kooman <fkooman@tuxed.net>
  * 
  */
 public class CertListParser {
-	private ArrayList<Object[]> list;
-	private boolean littleEndian;
+	/* the offsets of the fields in an entry */
+	private static final int FINGERPRINT = 12;
+	private static final int MODULUS_HASH = 32;
+	private static final int SUBJECT_HASH = 72;
+	private static final int ISSUER_HASH = 92;
+	static final int FILE_NAME_LENGTH = 112;
+	static final int FILE_NAME = 113;
+	private static final int HASH_SIZE = 20;
+
+	/**
+	 * A view of one entry in the list. An entry can be moved to another entry
+	 * of the same list to read the entries without creating an object for
+	 * every one of them.
+	 */
+	public class Entry {
+		private int offset;
+
+		private Entry(int index) {
+			moveTo(index);
+		}
+
+		/**
+		 * Get the name of the certificate file
+		 * 
+		 * @return the file name
+		 */
+		public String getFileName() {
+			byte[] name = new byte[fileNameLength()];
+			get(offset + FILE_NAME, name);
+			return new String(name);
+		}
+
+		/**
+		 * Get the SHA1 hash of the certificate
+		 * 
+		 * @return the hash
+		 */
+		public byte[] getFingerprint() {
+			return getHash(FINGERPRINT);
+		}
+
+		/**
+		 * Get the SHA1 hash of the certificate issuer
+		 * 
+		 * @return the hash
+		 */
+		public byte[] getIssuerHash() {
+			return getHash(ISSUER_HASH);
+		}
+
+		/**
+		 * Get the usage of the certificate
+		 * 
+		 * @return the usage bits (APPS_SIGNING, CROSS_CERTIFICATION,
+		 *         SERVER_AUTHENTIC), combined with OR
+		 */
+		public int getKeyUsage() {
+			/* a length, then (0x06, length, OID) for every usage */
+			int start = offset + FILE_NAME + fileNameLength() + 2;
+			int end = Math.min(start + 1 + (data.get(start) & 0xff), offset
+					+ length(offset));
+			int keyUsage = 0;
+			int position = start + 2;
+			while (position < end) {
+				int oidLength = data.get(position);
+				position++;
+				if (oidLength < 0 || position + oidLength > end) {
+					/* something seems wrong in key usage, skip it */
+					break;
+				}
+				byte[] oid = new byte[oidLength];
+				get(position, oid);
+				int type = NokiCertUtils.keyUsageBytesToType(oid);
+				if (type != -1)
+					keyUsage |= type;
+				position += oidLength + 1;
+			}
+			return keyUsage;
+		}
+
+		/**
+		 * Get the SHA1 hash of the certificate modulus
+		 * 
+		 * @return the hash
+		 */
+		public byte[] getModulusHash() {
+			return getHash(MODULUS_HASH);
+		}
+
+		/**
+		 * Get the SHA1 hash of the certificate subject
+		 * 
+		 * @return the hash
+		 */
+		public byte[] getSubjectHash() {
+			return getHash(SUBJECT_HASH);
+		}
+
+		/**
+		 * Move the view to another entry
+		 * 
+		 * @param index
+		 *            the number of the entry
+		 * @return this entry
+		 */
+		public Entry moveTo(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("entry " + index);
+			offset = offsets[index];
+			return this;
+		}
+
+		public String toString() {
+			return getFileName() + "    ("
+					+ Utils.byteArrayToString(getFingerprint()) + ")";
+		}
 
+		private int fileNameLength() {
+			return (data.get(offset + FILE_NAME_LENGTH) & 0xff) - 1;
+		}
+
+		private byte[] getHash(int field) {
+			byte[] hash = new byte[HASH_SIZE];
+			get(offset + field, hash);
+			return hash;
+		}
+	}
+
+	private ByteBuffer data;
+	private boolean littleEndian = false;
+	/* the offsets of the entries in data */
+	private int[] offsets;
+	private int size;
+	/* the offset of the bytes after the last entry */
+	private int tail;
+
+	/*
+	 * the entries by fingerprint and by subject and issuer hash, a slot holds
+	 * the number of the entry plus one or 0 if it is free
+	 */
+	private int[] fingerprintIndex;
+	private int[] subjectIssuerIndex;
+
+	/**
+	 * Parse the certificate file list in a buffer
+	 * 
+	 * @param data
+	 *            the list, from the position to the limit of the buffer. The
+	 *            buffer is used as it is and should not be changed.
+	 * @throws GjokiiException
+	 *             if the data is not a certificate list
+	 */
+	public CertListParser(ByteBuffer data) throws GjokiiException {
+		this.data = data;
+		parse();
+	}
+
+	/**
+	 * Parse the certificate file list downloaded from the phone
+	 * 
+	 * @param data
+	 *            the list, it is used as it is and should not be changed
+	 * @throws GjokiiException
+	 *             if the data is not a certificate list
+	 */
+	public CertListParser(byte[] data) throws GjokiiException {
+		this(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Parse the certificate file list from a file, the file is mapped in
+	 * memory
+	 * 
+	 * @param f
+	 *            the file to parse
+	 * @throws GjokiiException
+	 *             if the file cannot be read or is not a certificate list
+	 */
 	public CertListParser(File f) throws GjokiiException {
-		littleEndian = false;
-		list = new ArrayList<Object[]>();
 		try {
 			FileInputStream fis = new FileInputStream(f);
-			while (fis.available() > 4) {
-				int bytesRead = 0;
-				byte[] lengthBytes = new byte[2];
-				fis.read(lengthBytes);
-				int size = Utils.byteArrayToShort(lengthBytes, 0) - 2;
-				if (size >= f.length() || size < 0) {
-					/* we seem to have a little endian length indicator */
-					littleEndian = true;
-					size = Utils.byteArrayToShortLE(lengthBytes, 0) - 2;
-				}
-				// System.out.println(Utils.byteArrayToString(lengthBytes));
-				// System.out.println("Size of block: " + size);
-				bytesRead += fis.skip(10);
-				byte[] fingerprint = new byte[20];
-				bytesRead += fis.read(fingerprint);
-				byte[] hashOfModulus = new byte[20];
-				bytesRead += fis.read(hashOfModulus);
-				byte[] unknownField = new byte[20];
-				bytesRead += fis.read(unknownField);
-				byte[] hashOfSubject = new byte[20];
-				bytesRead += fis.read(hashOfSubject);
-				byte[] hashOfIssuer = new byte[20];
-				bytesRead += fis.read(hashOfIssuer);
-				int sizeOfFileName = fis.read();
-				bytesRead++;
-				byte[] fileName = new byte[sizeOfFileName - 1];
-				bytesRead += fis.read(fileName);
-				// System.out.println(new String(fileName));
-				bytesRead += fis.skip(2);
-				int keyUsage = 0;
-				int keyUsageLength = fis.read();
-				// System.out.println(keyUsageLength);
-				bytesRead++;
-				byte[] keyUsageBytes = new byte[keyUsageLength];
-				bytesRead += fis.read(keyUsageBytes);
-				// System.out.println(Utils.byteArrayToString(keyUsageBytes));
-				/* read all usages */
-				int offset = 1;
-				while (offset < keyUsageBytes.length) {
-					int curKeyUsageLength = keyUsageBytes[offset];
-					if (curKeyUsageLength + offset > keyUsageBytes.length
-							|| curKeyUsageLength < 0) {
-						/*
-						 * something seems wrong in key usage byte array, skip
-						 * it
-						 */
-						break;
-					}
-					byte[] t = new byte[curKeyUsageLength];
-					offset++;
-					System.arraycopy(keyUsageBytes, offset, t, 0,
-							curKeyUsageLength);
-					keyUsage |= NokiCertUtils.keyUsageBytesToType(t);
-					offset += curKeyUsageLength + 1;
-				}
-				// System.out.println("Skipping " + (size - bytesRead)
-				// + " bytes...");
-				fis.skip(size - bytesRead);
-				list.add(new Object[] { fingerprint, hashOfModulus,
-						unknownField, hashOfSubject, hashOfIssuer, fileName,
-						keyUsage });
+			try {
+				FileChannel channel = fis.getChannel();
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+						.size());
+			} finally {
+				fis.close();
 			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new GjokiiException("unable to read certificate list: "
+					+ e.getMessage());
 		}
+		parse();
 	}
 
-	public String toString() {
-		String output = "";
-		/* for every entry */
-		for (Object[] o : list) {
-			// output += "Fingerprint: " + Utils.byteArrayToString((byte[])
-			// o[0])
-			// + "\n";
-			// output += "Hash Of Modulus: "
-			// + Utils.byteArrayToString((byte[]) o[1]) + "\n";
-			// output += "Unknown Field  : "
-			// + Utils.byteArrayToString((byte[]) o[2]) + "\n";
-			// output += "Hash Of Subject: "
-			// + Utils.byteArrayToString((byte[]) o[3]) + "\n";
-			// output += "Hash Of Issuer : "
-			// + Utils.byteArrayToString((byte[]) o[4]) + "\n";
-			output += new String((byte[]) o[5]) + "    ("
-					+ Utils.byteArrayToString((byte[]) o[0]) + ")\n";
-			// output += "Key Usage: "
-			// + GjokiiUtils.keyUsageTypeToString((Integer) o[6]) + "\n";
-			// output += "\n";
-		}
-		return output;
+	/**
+	 * Parse the certificate file list from a stream, for example one opened
+	 * with Gjokii.openInputStream
+	 * 
+	 * @param is
+	 *            the stream to read the list from
+	 * @param length
+	 *            the length of the list in bytes
+	 * @throws GjokiiException
+	 *             if reading the list fails
+	 */
+	public CertListParser(InputStream is, long length) throws GjokiiException {
+		byte[] list = new byte[(int) length];
+		try {
+			new DataInputStream(is).readFully(list);
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read certificate list: "
+					+ e.getMessage());
+		}
+		data = ByteBuffer.wrap(list);
+		parse();
+	}
+
+	/**
+	 * Whether or not the list contains a certificate with the given
+	 * fingerprint
+	 * 
+	 * @param fingerprint
+	 *            the SHA1 hash of the certificate
+	 * @return true if the certificate is in the list, false if not
+	 */
+	public boolean containsFingerprint(byte[] fingerprint) {
+		return indexOfFingerprint(fingerprint) != -1;
+	}
+
+	/**
+	 * Whether or not the list contains a certificate with the given subject
+	 * and issuer
+	 * 
+	 * @param subjectHash
+	 *            the SHA1 hash of the certificate subject
+	 * @param issuerHash
+	 *            the SHA1 hash of the certificate issuer
+	 * @return true if such a certificate is in the list, false if not
+	 */
+	public boolean containsSubjectAndIssuer(byte[] subjectHash,
+			byte[] issuerHash) {
+		int mask = subjectIssuerIndex.length - 1;
+		int slot = hash(subjectHash, 0, issuerHash, 0) & mask;
+		while (subjectIssuerIndex[slot] != 0) {
+			int offset = offsets[subjectIssuerIndex[slot] - 1];
+			if (equals(offset + SUBJECT_HASH, subjectHash)
+					&& equals(offset + ISSUER_HASH, issuerHash))
+				return true;
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy an entry as it is in the list
+	 * 
+	 * @param index
+	 *            the number of the entry
+	 * @param dst
+	 *            the array to copy the entry to
+	 * @param dstOffset
+	 *            the offset in dst
+	 */
+	void copyEntry(int index, byte[] dst, int dstOffset) {
+		ByteBuffer b = data.duplicate();
+		b.position(offsets[index]);
+		b.get(dst, dstOffset, getEntryLength(index));
+	}
+
+	/**
+	 * Copy the bytes after the last entry as they are in the list
+	 * 
+	 * @param dst
+	 *            the array to copy the bytes to
+	 * @param dstOffset
+	 *            the offset in dst
+	 */
+	void copyTail(byte[] dst, int dstOffset) {
+		ByteBuffer b = data.duplicate();
+		b.position(tail);
+		b.get(dst, dstOffset, getTailLength());
+	}
+
+	/**
+	 * Get an entry of the list
+	 * 
+	 * @param index
+	 *            the number of the entry
+	 * @return a view of the entry
+	 */
+	public Entry getEntry(int index) {
+		return new Entry(index);
+	}
+
+	/**
+	 * Get the length of an entry
+	 * 
+	 * @param index
+	 *            the number of the entry
+	 * @return the length in bytes, including the size bytes
+	 */
+	int getEntryLength(int index) {
+		return length(offsets[index]);
+	}
+
+	/**
+	 * Get the number of bytes after the last entry
+	 * 
+	 * @return the length in bytes
+	 */
+	int getTailLength() {
+		return data.limit() - tail;
 	}
 
 	public boolean hasLittleEndianSizeBytes() {
 		return littleEndian;
 	}
+
+	/**
+	 * Find the entry of a certificate
+	 * 
+	 * @param fingerprint
+	 *            the SHA1 hash of the certificate
+	 * @return the number of the entry, or -1 if it is not in the list
+	 */
+	public int indexOfFingerprint(byte[] fingerprint) {
+		int mask = fingerprintIndex.length - 1;
+		int slot = hash(fingerprint, 0, null, 0) & mask;
+		while (fingerprintIndex[slot] != 0) {
+			int index = fingerprintIndex[slot] - 1;
+			if (equals(offsets[index] + FINGERPRINT, fingerprint))
+				return index;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the number of entries in the list
+	 * 
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String toString() {
+		StringBuilder output = new StringBuilder();
+		if (size == 0)
+			return "";
+		Entry e = new Entry(0);
+		for (int i = 0; i < size; i++)
+			output.append(e.moveTo(i)).append('\n');
+		return output.toString();
+	}
+
+	/**
+	 * Compare a hash in the list with another one
+	 */
+	private boolean equals(int offset, byte[] hash) {
+		for (int i = 0; i < HASH_SIZE; i++) {
+			if (data.get(offset + i) != hash[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compare two hashes in the list
+	 */
+	private boolean equalsAt(int offset, int otherOffset) {
+		for (int i = 0; i < HASH_SIZE; i++) {
+			if (data.get(offset + i) != data.get(otherOffset + i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy bytes from the list
+	 */
+	private void get(int offset, byte[] dst) {
+		for (int i = 0; i < dst.length; i++)
+			dst[i] = data.get(offset + i);
+	}
+
+	/**
+	 * Determine the slot of one or two hashes in an index. The hashes are
+	 * SHA1, so their first bytes are spread evenly already.
+	 */
+	private static int hash(byte[] first, int firstOffset, byte[] second,
+			int secondOffset) {
+		int h = Utils.byteArrayToInt(first, firstOffset);
+		if (second != null)
+			h = h * 31 + Utils.byteArrayToInt(second, secondOffset);
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Determine the slot of the hashes at some offsets in the list
+	 */
+	private int hashAt(int firstOffset, int secondOffset) {
+		int h = data.getInt(firstOffset);
+		if (secondOffset != -1)
+			h = h * 31 + data.getInt(secondOffset);
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Add an entry to an index, unless an entry with the same hashes is in
+	 * it already
+	 * 
+	 * @param table
+	 *            the index
+	 * @param index
+	 *            the number of the entry
+	 * @param first
+	 *            the field holding the first hash
+	 * @param second
+	 *            the field holding the second hash, or -1
+	 */
+	private void insert(int[] table, int index, int first, int second) {
+		int offset = offsets[index];
+		int mask = table.length - 1;
+		int slot = hashAt(offset + first, (second == -1) ? -1 : offset
+				+ second)
+				& mask;
+		while (table[slot] != 0) {
+			int other = offsets[table[slot] - 1];
+			if (equalsAt(offset + first, other + first)
+					&& (second == -1 || equalsAt(offset + second, other
+							+ second)))
+				return;
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = index + 1;
+	}
+
+	/**
+	 * Read the length of the entry at an offset
+	 */
+	private int length(int offset) {
+		int b0 = data.get(offset) & 0xff;
+		int b1 = data.get(offset + 1) & 0xff;
+		return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	/**
+	 * Find the entries and index them
+	 * 
+	 * @throws GjokiiException
+	 *             if the data is not a certificate list
+	 */
+	private void parse() throws GjokiiException {
+		/* the fields are read from fixed positions, in big endian */
+		data = data.slice();
+		int limit = data.limit();
+		int bigEndianEnd = walk(false);
+		int littleEndianEnd = walk(true);
+		/* like the phone, ignore up to 4 bytes at the end */
+		littleEndian = limit - bigEndianEnd > 4
+				&& littleEndianEnd > bigEndianEnd;
+		tail = littleEndian ? littleEndianEnd : bigEndianEnd;
+		/* a list without entries only has its tail */
+		if (tail == 0 && limit > FILE_NAME)
+			throw new GjokiiException("invalid certificate list");
+
+		size = 0;
+		for (int offset = 0; offset < tail; offset += length(offset))
+			size++;
+		offsets = new int[Math.max(size, 1)];
+		int offset = 0;
+		for (int i = 0; i < size; i++) {
+			offsets[i] = offset;
+			offset += length(offset);
+		}
+
+		/* at most half full */
+		int capacity = 2;
+		while (capacity < size * 2)
+			capacity <<= 1;
+		fingerprintIndex = new int[capacity];
+		subjectIssuerIndex = new int[capacity];
+		for (int i = 0; i < size; i++) {
+			insert(fingerprintIndex, i, FINGERPRINT, -1);
+			insert(subjectIssuerIndex, i, SUBJECT_HASH, ISSUER_HASH);
+		}
+	}
+
+	/**
+	 * Follow the lengths of the entries from the first one, as long as they
+	 * lead to whole entries
+	 * 
+	 * @param littleEndian
+	 *            the byte order of the lengths
+	 * @return the offset after the last whole entry
+	 */
+	private int walk(boolean littleEndian) {
+		this.littleEndian = littleEndian;
+		int limit = data.limit();
+		int offset = 0;
+		while (limit - offset > FILE_NAME) {
+			int length = length(offset);
+			/* the file name and key usage should fit in the entry */
+			int keyUsage = offset + FILE_NAME
+					+ (data.get(offset + FILE_NAME_LENGTH) & 0xff) - 1 + 2;
+			if (length <= FILE_NAME || offset + length > limit
+					|| keyUsage >= offset + length)
+				break;
+			offset += length;
+		}
+		return offset;
+	}
 }
@@ -34,6 +34,7 @@ import java.security.interfaces.RSAPublicKey;
 import javax.security.auth.x500.X500Principal;
 
 import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.misc.ByteArrayBuilder;
 import net.tuxed.misc.Utils;
 
 /**
@@ -54,7 +55,36 @@ public class CertParser {
 			(byte) 0x08, (byte) 0x2b, (byte) 0x06, (byte) 0x01, (byte) 0x05,
 			(byte) 0x05, (byte) 0x07, (byte) 0x03, (byte) 0x01 };
 
+	/* MessageDigest.getInstance is slow, every thread keeps its own */
+	private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA1");
+			} catch (NoSuchAlgorithmException e) {
+				/* we assume SHA1 always exists... */
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	/* a CertificateFactory can be reused, but not by multiple threads */
+	private static final ThreadLocal<CertificateFactory> X509_FACTORY = new ThreadLocal<CertificateFactory>() {
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch (CertificateException e) {
+				/* every JVM supports X.509 */
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
 	private X509Certificate cert;
+	/* the hashes, calculated the first time one of them is needed */
+	private byte[] fingerprint;
+	private byte[] issuerHash;
+	private byte[] subjectHash;
+	private byte[] modulusHash;
 	private String ScountryCode;
 	private String Sorganization;
 	private String SdistinguishedName;
@@ -95,6 +125,47 @@ public class CertParser {
 		}
 	}
 
+	/**
+	 * Calculate the SHA1 hashes of the certificate, the issuer and the
+	 * subject, only the first time this is called
+	 */
+	private synchronized void calculateHashes() {
+		if (fingerprint != null)
+			return;
+		MessageDigest hash = SHA1.get();
+		try {
+			/* digest() resets the hash for the next one */
+			issuerHash = hash.digest(cert.getIssuerX500Principal()
+					.getEncoded());
+			subjectHash = hash.digest(cert.getSubjectX500Principal()
+					.getEncoded());
+			/* set last, it tells the others are there */
+			fingerprint = hash.digest(cert.getEncoded());
+		} catch (CertificateEncodingException e) {
+			hash.reset();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Calculate the SHA1 hash of the modulus, only the first time this is
+	 * called and only for certificates with an RSA key
+	 */
+	private synchronized void calculateModulusHash() {
+		if (modulusHash != null
+				|| !(cert.getPublicKey() instanceof RSAPublicKey))
+			return;
+		RSAPublicKey k = (RSAPublicKey) cert.getPublicKey();
+		byte[] m = k.getModulus().toByteArray();
+		/*
+		 * the modulus always seems to start with a 0x00 which we don't want
+		 * when computing the hash.
+		 */
+		MessageDigest hash = SHA1.get();
+		hash.update(m, 1, m.length - 1);
+		modulusHash = hash.digest();
+	}
+
 	/**
 	 * Get a certificate directory meta file entry for this certificate
 	 * 
@@ -106,63 +177,58 @@ public class CertParser {
 	 *            for specifying more than one.
 	 * @return the CDF entry
 	 * @throws GjokiiException
+	 *             if the certificate does not have an RSA key
 	 */
 	public byte[] getCDFEntry(boolean littleEndian, int certUsage)
 			throws GjokiiException {
-		byte[] output;
-		byte[] header = new byte[] { 0x01, 0x41, 0x02, 0x10 };
-		byte[] fields = new byte[] { 0x14, 0x00, 0x14, 0x14 };
-		output = Utils.appendToByteArray(header, fields);
-		output = Utils.appendToByteArray(output, getFingerprint());
-		output = Utils.appendToByteArray(output, getModulusHash());
-		output = Utils.appendToByteArray(output, new byte[20]);
-		output = Utils.appendToByteArray(output, getSubjectHash());
-		output = Utils.appendToByteArray(output, getIssuerHash());
-		output = Utils
-				.appendToByteArray(output,
-						new byte[] { (byte) ((byte) getSubjectCommonName()
-								.length() + 1) });
-		output = Utils.appendToByteArray(output, getSubjectCommonName()
-				.getBytes());
-		output = Utils.appendToByteArray(output, new byte[2]); /* separator */
-
-		byte[] keyUsage = new byte[1]; /* first byte contains length */
+		calculateHashes();
+		calculateModulusHash();
+		if (modulusHash == null)
+			throw new GjokiiException("not an RSA certificate");
+		ByteArrayBuilder output = new ByteArrayBuilder(256);
+		/* total length, filled in below */
+		output.putZeros(4);
+		output.put(new byte[] { 0x01, 0x41, 0x02, 0x10 }); /* header */
+		output.put(new byte[] { 0x14, 0x00, 0x14, 0x14 }); /* fields */
+		output.put(fingerprint);
+		output.put(modulusHash);
+		output.putZeros(20);
+		output.put(subjectHash);
+		output.put(issuerHash);
+		output.putByte(getSubjectCommonName().length() + 1);
+		output.put(getSubjectCommonName().getBytes());
+		output.putZeros(2); /* separator */
+
+		int keyUsageStart = output.length();
+		output.putByte(0); /* first byte contains length */
 		if ((certUsage & NokiCertUtils.APPS_SIGNING) == NokiCertUtils.APPS_SIGNING)
-			keyUsage = Utils.appendToByteArray(keyUsage, APPS_SIGNING_BYTES);
+			output.put(APPS_SIGNING_BYTES);
 		if ((certUsage & NokiCertUtils.CROSS_CERTIFICATION) == NokiCertUtils.CROSS_CERTIFICATION)
-			keyUsage = Utils.appendToByteArray(keyUsage,
-					CROSS_CERTIFICATION_BYTES);
+			output.put(CROSS_CERTIFICATION_BYTES);
 		if ((certUsage & NokiCertUtils.SERVER_AUTHENTIC) == NokiCertUtils.SERVER_AUTHENTIC)
-			keyUsage = Utils
-					.appendToByteArray(keyUsage, SERVER_AUTHENTIC_BYTES);
-		keyUsage[0] = (byte) (keyUsage.length - 1); /* set length */
-
-		output = Utils.appendToByteArray(output, keyUsage);
+			output.put(SERVER_AUTHENTIC_BYTES);
+		/* set length */
+		output.setByte(keyUsageStart, output.length() - keyUsageStart - 1);
 
 		/* now make the total length a divisor of 4 */
-		int padding = 4 - (output.length % 4);
+		int padding = 4 - (output.length() % 4);
 
 		/* for some reason we need extra space in some situations?! */
 		if (padding != 4)
 			padding += 4;
 
-		output = Utils.appendToByteArray(output, new byte[padding]); /* padding */
-
-		/* prepend with total length, which is 4 bytes, we add that as well */
-		short outputLength = (short) (output.length + 4);
-		byte[] sizeBytes = null;
+		output.putZeros(padding); /* padding */
 
+		/* the total length includes the 4 length bytes themselves */
 		if (littleEndian) {
 			// if (Config.hasLittleEndianCDFSize(platform)) {
 			/* the two? size bytes are little endian */
-			sizeBytes = Utils.shortToByteArrayLE(outputLength);
+			output.setShortLE(0, output.length());
 		} else {
 			/* the two? size bytes are big endian */
-			sizeBytes = Utils.shortToByteArray(outputLength);
+			output.setShort(0, output.length());
 		}
-		sizeBytes = Utils.appendToByteArray(sizeBytes, new byte[2]);
-		output = Utils.appendToByteArray(sizeBytes, output);
-		return output;
+		return output.toByteArray();
 	}
 
 	/**
@@ -171,16 +237,8 @@ public class CertParser {
 	 * @return the SHA1 hash of the certificate
 	 */
 	public byte[] getFingerprint() {
-		byte[] data = null;
-		MessageDigest hash = null;
-		try {
-			data = cert.getEncoded();
-			hash = MessageDigest.getInstance("SHA1");
-		} catch (CertificateEncodingException e) {
-		} catch (NoSuchAlgorithmException e) {
-		}
-		hash.update(data);
-		return hash.digest();
+		calculateHashes();
+		return fingerprint.clone();
 	}
 
 	public String getIssuerCommonName() {
@@ -211,15 +269,8 @@ public class CertParser {
 	 * @return the SHA1 hash of the certificate issuer
 	 */
 	public byte[] getIssuerHash() {
-		byte[] data = null;
-		MessageDigest hash = null;
-		try {
-			data = cert.getIssuerX500Principal().getEncoded();
-			hash = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {
-		}
-		hash.update(data);
-		return hash.digest();
+		calculateHashes();
+		return issuerHash.clone();
 	}
 
 	/**
@@ -234,22 +285,12 @@ public class CertParser {
 	/**
 	 * Get the SHA1 hash of the certificate modulus
 	 * 
-	 * @return the SHA1 hash
+	 * @return the SHA1 hash, or null if the certificate does not have an RSA
+	 *         key
 	 */
 	public byte[] getModulusHash() {
-		RSAPublicKey k = (RSAPublicKey) cert.getPublicKey();
-		BigInteger m = k.getModulus();
-		MessageDigest hash = null;
-		try {
-			hash = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {
-		}
-		/*
-		 * the modulus always seems to start with a 0x00 which we don't want
-		 * when computing the hash.
-		 */
-		hash.update(m.toByteArray(), 1, m.toByteArray().length - 1);
-		return hash.digest();
+		calculateModulusHash();
+		return (modulusHash == null) ? null : modulusHash.clone();
 	}
 
 	/**
@@ -330,15 +371,8 @@ public class CertParser {
 	 * @return the SHA1 hash of the certificate subject
 	 */
 	public byte[] getSubjectHash() {
-		byte[] data = null;
-		MessageDigest hash = null;
-		try {
-			data = cert.getSubjectX500Principal().getEncoded();
-			hash = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {
-		}
-		hash.update(data);
-		return hash.digest();
+		calculateHashes();
+		return subjectHash.clone();
 	}
 
 	/**
@@ -362,8 +396,7 @@ public class CertParser {
 	 */
 	private void parseCert(InputStream is) throws GjokiiException {
 		try {
-			CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			cert = (X509Certificate) cf.generateCertificate(is);
+			cert = (X509Certificate) X509_FACTORY.get().generateCertificate(is);
 			is.close();
 		} catch (CertificateException e) {
 			throw new GjokiiException("unable to parse certificate: "
@@ -17,13 +17,19 @@
 package net.tuxed.nokicert;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 
+import net.tuxed.gjokii.FileCache;
 import net.tuxed.gjokii.Gjokii;
 import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.misc.Utils;
 
 /**
  * This class deals with installing and listing certificates on Nokia phones. It
@@ -35,7 +41,10 @@ import net.tuxed.gjokii.GjokiiException;
 public class NokiCert {
 	private Gjokii g;
 	private PrintStream ps;
-	private String certificateDirectoryFileLocation = "/predefhiddenfolder/certificates/auth/ext_info.sys";
+	private FileCache cache;
+	private String certificateDirectory = "/predefhiddenfolder/certificates/auth/";
+	private String certificateDirectoryFileLocation = certificateDirectory
+			+ "ext_info.sys";
 
 	/**
 	 * Construct the NokiCert object
@@ -62,37 +71,122 @@ public class NokiCert {
 	 */
 	public void installCertificate(String certFilePathName, int certUsage)
 			throws GjokiiException {
-		File f = getCertificateListFile();
-		File derFile = NokiCertUtils.convertToDER(new File(certFilePathName));
-		g.getFile(certificateDirectoryFileLocation, f);
-		CertListParser c = new CertListParser(f);
-		String subjectCN;
+		installCertificates(Collections.singletonList(certFilePathName),
+				certUsage);
+	}
 
-		/* add the new certificate to the certificate directory file */
-		try {
-			CertParser x = new CertParser(derFile);
-			subjectCN = x.getSubjectCommonName();
-			byte[] certEntry = x.getCDFEntry(c.hasLittleEndianSizeBytes(),
-					certUsage);
-			FileOutputStream fos = new FileOutputStream(f, true);
-			fos.write(certEntry);
-			fos.flush();
-			fos.close();
-		} catch (FileNotFoundException e) {
-			throw new GjokiiException("cannot find certificate directory file");
-		} catch (IOException e) {
-			throw new GjokiiException(
-					"unable to write to certificate directory file");
+	/**
+	 * Install a number of X.509 certificates on the phone. The certificate
+	 * directory file (CDF) is downloaded and uploaded only once for all
+	 * certificates. Certificates that are already installed are skipped, if
+	 * none are left nothing is uploaded.
+	 * 
+	 * @param certFilePathNames
+	 *            the full path names of the certificate files, a PEM file
+	 *            can hold multiple certificates
+	 * @param certUsage
+	 *            the certificate usage bits for these certificates
+	 * @throws GjokiiException
+	 *             if an error occurs
+	 */
+	public void installCertificates(List<String> certFilePathNames,
+			int certUsage) throws GjokiiException {
+		/* parse all certificates before touching the phone */
+		List<byte[]> ders = new ArrayList<byte[]>();
+		List<CertParser> certs = new ArrayList<CertParser>();
+		for (String certFilePathName : certFilePathNames) {
+			/* a PEM file can hold a whole chain */
+			for (byte[] der : NokiCertUtils.readCertificates(new File(
+					certFilePathName))) {
+				ders.add(der);
+				certs.add(new CertParser(der));
+			}
 		}
-		/* upload the certificate */
-		String certPath = "/predefhiddenfolder/certificates/auth/" + subjectCN;
 
-		ps.println("(I) uploading certificate to the phone...");
-		g.putFile(certPath, derFile);
+		byte[] cdf = getCertificateList();
+		CertListParser c = new CertListParser(cdf);
 
-		ps.println("(I) uploading CDF to the phone...");
-		/* upload the new certificate directory file (CDF) */
-		g.putFile(certificateDirectoryFileLocation, f);
+		/* skip the certificates that are already installed */
+		HashSet<String> fingerprints = new HashSet<String>();
+		for (int i = 0; i < certs.size(); i++) {
+			CertParser x = certs.get(i);
+			byte[] fingerprint = x.getFingerprint();
+			if (c.containsFingerprint(fingerprint)
+					|| !fingerprints.add(Utils.byteArrayToString(fingerprint))) {
+				ps.println("(I) certificate " + x.getSubjectCommonName()
+						+ " is already installed, skipping...");
+				certs.remove(i);
+				ders.remove(i);
+				i--;
+			} else if (c.containsSubjectAndIssuer(x.getSubjectHash(), x
+					.getIssuerHash())) {
+				ps.println("(W) another certificate for "
+						+ x.getSubjectCommonName()
+						+ " by the same issuer is already installed");
+			}
+		}
+		if (certs.isEmpty()) {
+			ps.println("(I) nothing to install");
+			return;
+		}
+
+		/* the new entries follow the current ones */
+		CertListEditor editor = new CertListEditor(c);
+		for (CertParser x : certs)
+			editor.add(x.getCDFEntry(c.hasLittleEndianSizeBytes(), certUsage));
+
+		for (int i = 0; i < certs.size(); i++)
+			uploadCertificate(certs.get(i), ders.get(i));
+		uploadCertificateList(editor.toByteArray());
+	}
+
+	/**
+	 * Delete the certificate files that are no longer in the certificate list
+	 * 
+	 * @param fileNames
+	 *            the file names in the list before it was edited
+	 * @param editor
+	 *            the edited list
+	 */
+	private void deleteOrphanedCertificates(HashSet<String> fileNames,
+			CertListEditor editor) {
+		fileNames.removeAll(editor.getFileNames());
+		for (String fileName : fileNames) {
+			ps.println("(I) deleting certificate " + fileName
+					+ " from the phone...");
+			try {
+				g.deleteFile(certificateDirectory + fileName);
+			} catch (GjokiiException e) {
+				/* the list is fine, only some space is wasted */
+				ps.println("(W) unable to delete certificate " + fileName
+						+ ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the contents of the certificate list file (CDF) from the phone,
+	 * without writing it to a temporary file.
+	 * 
+	 * @return the contents of the certificate list file (CDF)
+	 * @throws GjokiiException
+	 */
+	private byte[] getCertificateList() throws GjokiiException {
+		ps.println("(I) downloading CDF from the phone...");
+		try {
+			InputStream is;
+			if (cache != null)
+				is = cache.openInputStream(g, certificateDirectoryFileLocation);
+			else
+				is = g.openInputStream(certificateDirectoryFileLocation);
+			try {
+				return Utils.readStream(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read CDF: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -111,7 +205,10 @@ public class NokiCert {
 			throw new GjokiiException("unable to create temporary file");
 		}
 		ps.println("(I) using temporary file: " + f.getAbsolutePath());
-		g.getFile(certificateDirectoryFileLocation, f);
+		if (cache != null)
+			cache.getFile(g, certificateDirectoryFileLocation, f);
+		else
+			g.getFile(certificateDirectoryFileLocation, f);
 		return f;
 	}
 
@@ -123,8 +220,146 @@ public class NokiCert {
 	 * @throws GjokiiException
 	 */
 	public String listCertificates() throws GjokiiException {
-		File f = getCertificateListFile();
-		CertListParser c = new CertListParser(f);
+		byte[] cdf = getCertificateList();
+		CertListParser c = new CertListParser(cdf);
 		return c.toString();
 	}
+
+	/**
+	 * Remove certificates from the phone. The certificate directory file (CDF)
+	 * is downloaded and uploaded only once for all certificates, duplicate
+	 * entries are removed from it as well. Afterwards the certificate files no
+	 * entry refers to anymore are deleted.
+	 * 
+	 * @param names
+	 *            the file names or SHA-1 hashes of the certificates, as shown
+	 *            by listCertificates
+	 * @throws GjokiiException
+	 *             if an error occurs
+	 */
+	public void removeCertificates(List<String> names) throws GjokiiException {
+		CertListEditor editor = new CertListEditor(new CertListParser(
+				getCertificateList()));
+		HashSet<String> fileNames = editor.getFileNames();
+		for (String name : names) {
+			List<Integer> found = editor.find(name);
+			if (found.isEmpty())
+				ps.println("(W) certificate " + name
+						+ " is not installed, skipping...");
+			for (int i : found)
+				editor.remove(i);
+		}
+		if (!editor.isModified()) {
+			ps.println("(I) nothing to remove");
+			return;
+		}
+		compact(editor);
+		uploadCertificateList(editor.toByteArray());
+		deleteOrphanedCertificates(fileNames, editor);
+	}
+
+	/**
+	 * Replace an installed certificate by a new one, for example a renewed
+	 * certificate. The entry of the new certificate takes the place of the
+	 * old one in the certificate directory file (CDF), so only the new
+	 * certificate and the CDF are uploaded. The old certificate file is
+	 * deleted if the new certificate does not use the same file name.
+	 * 
+	 * @param name
+	 *            the file name or SHA-1 hash of the installed certificate
+	 * @param certFilePathName
+	 *            the full path name of the new certificate file
+	 * @param certUsage
+	 *            the certificate usage bits for the new certificate
+	 * @throws GjokiiException
+	 *             if an error occurs
+	 */
+	public void replaceCertificate(String name, String certFilePathName,
+			int certUsage) throws GjokiiException {
+		List<byte[]> ders = NokiCertUtils.readCertificates(new File(
+				certFilePathName));
+		if (ders.size() != 1)
+			throw new GjokiiException(certFilePathName
+					+ " should hold exactly one certificate");
+		CertParser x = new CertParser(ders.get(0));
+
+		CertListParser c = new CertListParser(getCertificateList());
+		CertListEditor editor = new CertListEditor(c);
+		HashSet<String> fileNames = editor.getFileNames();
+		List<Integer> found = editor.find(name);
+		if (found.isEmpty())
+			throw new GjokiiException("certificate " + name
+					+ " is not installed");
+		int installed = c.indexOfFingerprint(x.getFingerprint());
+		if (installed != -1 && !found.contains(installed)) {
+			/* only the old entries have to go */
+			ps.println("(I) certificate " + x.getSubjectCommonName()
+					+ " is already installed, removing the old one...");
+			for (int i : found)
+				editor.remove(i);
+		} else {
+			editor.replace(found.get(0), x.getCDFEntry(c
+					.hasLittleEndianSizeBytes(), certUsage));
+			for (int i = 1; i < found.size(); i++)
+				editor.remove(found.get(i));
+			uploadCertificate(x, ders.get(0));
+		}
+		compact(editor);
+		uploadCertificateList(editor.toByteArray());
+		deleteOrphanedCertificates(fileNames, editor);
+	}
+
+	/**
+	 * Use a cache for the files fetched from the phone. Files that did not
+	 * change on the phone since they were cached are not downloaded again.
+	 * 
+	 * @param cache
+	 *            the cache, or null to always download the files
+	 */
+	public void setFileCache(FileCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Remove the duplicate entries from the certificate list
+	 */
+	private void compact(CertListEditor editor) {
+		int duplicates = editor.compact();
+		if (duplicates != 0)
+			ps.println("(I) removing " + duplicates + " duplicate entries...");
+	}
+
+	/**
+	 * Upload a certificate file, its name is the common name of the subject
+	 */
+	private void uploadCertificate(CertParser x, byte[] der)
+			throws GjokiiException {
+		ps.println("(I) uploading certificate to the phone...");
+		try {
+			OutputStream os = g.openOutputStream(certificateDirectory
+					+ x.getSubjectCommonName());
+			os.write(der);
+			os.close();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to upload certificate: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Upload a new certificate directory file (CDF)
+	 */
+	private void uploadCertificateList(byte[] cdf) throws GjokiiException {
+		ps.println("(I) uploading CDF to the phone...");
+		try {
+			OutputStream os = g.openOutputStream(certificateDirectoryFileLocation);
+			os.write(cdf);
+			os.close();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to upload CDF: "
+					+ e.getMessage());
+		}
+		if (cache != null)
+			cache.invalidate(g, certificateDirectoryFileLocation);
+	}
 }
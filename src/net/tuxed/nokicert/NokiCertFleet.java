@@ -0,0 +1,306 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.tuxed.gjokii.Gjokii;
+import net.tuxed.gjokii.GjokiiException;
+
+/**
+ * This class installs certificates on a number of phones at the same time.
+ * Every phone gets its own Gjokii connection, the installations run on a
+ * bounded pool of threads.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class NokiCertFleet {
+	/**
+	 * Opens the connection to a phone of the fleet.
+	 */
+	public interface PhoneConnector {
+		/**
+		 * Open and initialize the connection to a phone
+		 *
+		 * @param deviceAddress
+		 *            the Bluetooth hardware address of the phone
+		 * @param channel
+		 *            the channel on the phone to connect to
+		 * @return the open connection
+		 * @throws GjokiiException
+		 *             if connecting fails
+		 */
+		public Gjokii connect(String deviceAddress, int channel)
+				throws GjokiiException;
+	}
+
+	/**
+	 * The outcome of the installation on one phone.
+	 */
+	public static class Result {
+		private String device;
+		private boolean success;
+		private String message;
+		private long connectTime;
+		private long installTime;
+		private String output;
+
+		/**
+		 * Get the phone as specified in the device list
+		 *
+		 * @return the device (e.g.: 001122334455:15)
+		 */
+		public String getDevice() {
+			return device;
+		}
+
+		/**
+		 * Get the time it took to connect to the phone
+		 *
+		 * @return the time in ms
+		 */
+		public long getConnectTime() {
+			return connectTime;
+		}
+
+		/**
+		 * Get the time it took to install the certificates
+		 *
+		 * @return the time in ms
+		 */
+		public long getInstallTime() {
+			return installTime;
+		}
+
+		/**
+		 * Get the error message of a failed installation
+		 *
+		 * @return the error message or null if the installation succeeded
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * Get the output NokiCert wrote while installing on this phone
+		 *
+		 * @return the output
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * Whether or not the installation succeeded
+		 *
+		 * @return true if the certificate was installed, false if not
+		 */
+		public boolean isSuccess() {
+			return success;
+		}
+
+		public String toString() {
+			return device + "\t" + (success ? "OK" : "FAILED (" + message + ")")
+					+ "\tconnect " + connectTime + " ms, install "
+					+ installTime + " ms";
+		}
+	}
+
+	/**
+	 * Connects to the phones over Bluetooth
+	 */
+	public static final PhoneConnector BLUETOOTH = new PhoneConnector() {
+		public Gjokii connect(String deviceAddress, int channel)
+				throws GjokiiException {
+			return new Gjokii(deviceAddress, channel, false);
+		}
+	};
+
+	private PhoneConnector connector;
+	private int threads;
+	/* phones of the same model only negotiate the block size once */
+	private Map<String, Integer> blockSizes = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Construct the fleet
+	 *
+	 * @param connector
+	 *            opens the connections to the phones
+	 * @param threads
+	 *            the maximum number of phones to install on at the same time
+	 */
+	public NokiCertFleet(PhoneConnector connector, int threads) {
+		this.connector = connector;
+		this.threads = threads;
+	}
+
+	/**
+	 * Install X.509 certificates on all phones.
+	 *
+	 * @param devices
+	 *            the phones to install on, every phone is specified as
+	 *            address:channel (e.g.: 001122334455:15)
+	 * @param certFilePathNames
+	 *            the full path names of the certificate files
+	 * @param certUsage
+	 *            the certificate usage bits for these certificates
+	 * @return the results in the same order as the devices
+	 */
+	public List<Result> installCertificates(List<String> devices,
+			final List<String> certFilePathNames, final int certUsage) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(threads, devices.size())));
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (final String device : devices) {
+			futures.add(executor.submit(new Callable<Result>() {
+				public Result call() {
+					return install(device, certFilePathNames, certUsage);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		List<Result> results = new ArrayList<Result>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (InterruptedException e) {
+				results.add(failed(devices.get(i), "interrupted"));
+			} catch (ExecutionException e) {
+				results.add(failed(devices.get(i), e.getCause().toString()));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Install X.509 certificates on one phone.
+	 *
+	 * @param device
+	 *            the phone as address:channel
+	 * @param certFilePathNames
+	 *            the full path names of the certificate files
+	 * @param certUsage
+	 *            the certificate usage bits for these certificates
+	 * @return the result
+	 */
+	private Result install(String device, List<String> certFilePathNames,
+			int certUsage) {
+		Result r = new Result();
+		r.device = device;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PrintStream ps = new PrintStream(output);
+		Gjokii g = null;
+		long start = System.currentTimeMillis();
+		try {
+			String[] addressChannel = device.split(":");
+			if (addressChannel.length != 2)
+				throw new GjokiiException("invalid device, use address:channel");
+			int channel;
+			try {
+				channel = Integer.parseInt(addressChannel[1]);
+			} catch (NumberFormatException e) {
+				throw new GjokiiException("no or wrong channel specified");
+			}
+			g = connector.connect(addressChannel[0], channel);
+			g.setBlockSizes(blockSizes);
+			r.connectTime = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			new NokiCert(g, ps).installCertificates(certFilePathNames,
+					certUsage);
+			r.installTime = System.currentTimeMillis() - start;
+			r.success = true;
+		} catch (GjokiiException e) {
+			if (g == null)
+				r.connectTime = System.currentTimeMillis() - start;
+			else
+				r.installTime = System.currentTimeMillis() - start;
+			r.message = e.getMessage();
+		} finally {
+			if (g != null) {
+				try {
+					g.close();
+				} catch (GjokiiException e) {
+					/* the installation result is what matters */
+				}
+			}
+		}
+		ps.flush();
+		r.output = output.toString();
+		return r;
+	}
+
+	/**
+	 * Create the result for a phone that could not be handled at all
+	 *
+	 * @param device
+	 *            the phone as address:channel
+	 * @param message
+	 *            the error message
+	 * @return the result
+	 */
+	private static Result failed(String device, String message) {
+		Result r = new Result();
+		r.device = device;
+		r.message = message;
+		r.output = "";
+		return r;
+	}
+
+	/**
+	 * Read a list of phones from a file. Every line contains the Bluetooth
+	 * hardware address and the channel of one phone separated by white space
+	 * or a colon. Empty lines and lines starting with # are ignored.
+	 *
+	 * @param f
+	 *            the file to read
+	 * @return the phones as address:channel
+	 * @throws IOException
+	 *             if reading the file fails
+	 */
+	public static List<String> readDeviceList(File f) throws IOException {
+		List<String> devices = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				devices.add(line.replaceAll("[\\s:]+", ":"));
+			}
+		} finally {
+			br.close();
+		}
+		return devices;
+	}
+}
@@ -16,10 +16,17 @@
  */
 package net.tuxed.nokicert;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
+import net.tuxed.gjokii.FileCache;
 import net.tuxed.gjokii.Gjokii;
 import net.tuxed.gjokii.GjokiiException;
 import net.tuxed.misc.Utils;
@@ -32,10 +39,59 @@ public class NokiCertMain {
 	private static final int INST_CERT = 1;
 	private static final int IDENTIFY = 5;
 	private static final int REBOOT = 6;
+	private static final int ANALYZE = 8;
+	private static final int REMOVE_CERT = 9;
+	private static final int REPLACE_CERT = 10;
+
+	/* maximum size of the file cache in bytes */
+	private static final long CACHE_SIZE = 16 * 1024 * 1024;
 
 	private static PrintStream ps = null;
 	private static Gjokii g = null;
 
+	/**
+	 * Analyze certificates without a phone
+	 * 
+	 * @param certFilePathNames
+	 *            the certificate files and directories
+	 * @param threads
+	 *            the number of certificates to parse at the same time
+	 * @param format
+	 *            the output format
+	 * @param outputFilePathName
+	 *            the file to write the results to, or null for the standard
+	 *            output
+	 */
+	private static void analyze(List<String> certFilePathNames, int threads,
+			int format, String outputFilePathName) {
+		List<File> inputs = new ArrayList<File>();
+		for (String certFilePathName : certFilePathNames)
+			inputs.add(new File(certFilePathName));
+		/* keep the standard output for the results */
+		PrintStream log = (outputFilePathName == null) ? System.err : ps;
+		long start = System.currentTimeMillis();
+		CertAnalyzer a = new CertAnalyzer(threads, format);
+		try {
+			Writer out = new BufferedWriter(
+					(outputFilePathName == null) ? new OutputStreamWriter(
+							System.out) : new FileWriter(outputFilePathName));
+			try {
+				a.analyze(inputs, out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("(E) unable to write " + outputFilePathName);
+			System.exit(1);
+		} catch (GjokiiException e) {
+			System.err.println("(E) " + e.getMessage());
+			System.exit(1);
+		}
+		log.println("(I) analyzed " + a.getCertificates()
+				+ " certificates, " + a.getFailures() + " failed in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
 	public static void main(String args[]) {
 		ps = new PrintStream(System.out);
 		String homeDir = System.getProperty("user.home");
@@ -56,6 +112,14 @@ public class NokiCertMain {
 		int channelNumber = -1;
 		String deviceAddress = null;
 		String phoneFilePathName = null;
+		List<String> certFilePathNames = new ArrayList<String>();
+		List<String> certNames = new ArrayList<String>();
+		String fleetFilePathName = null;
+		int threads = 8;
+		int format = CertAnalyzer.CSV;
+		String outputFilePathName = null;
+
+		boolean useCache = true;
 
 		int mode = -1;
 		/*
@@ -102,7 +166,64 @@ public class NokiCertMain {
 
 			if (args[i].equals("--install-cert") || args[i].equals("-I")) {
 				mode = INST_CERT;
-				phoneFilePathName = args[++i];
+				/* all following arguments up to the next option */
+				while (i + 1 < args.length && !args[i + 1].startsWith("-"))
+					certFilePathNames.add(args[++i]);
+			}
+
+			if (args[i].equals("--remove-cert") || args[i].equals("-R")) {
+				mode = REMOVE_CERT;
+				/* all following arguments up to the next option */
+				while (i + 1 < args.length && !args[i + 1].startsWith("-"))
+					certNames.add(args[++i]);
+			}
+
+			if (args[i].equals("--replace-cert")) {
+				mode = REPLACE_CERT;
+				if (i + 2 < args.length) {
+					certNames.add(args[++i]);
+					certFilePathNames.add(args[++i]);
+				}
+			}
+
+			if (args[i].equals("--analyze") || args[i].equals("-A")) {
+				mode = ANALYZE;
+				/* all following arguments up to the next option */
+				while (i + 1 < args.length && !args[i + 1].startsWith("-"))
+					certFilePathNames.add(args[++i]);
+			}
+
+			if (args[i].equals("--format")) {
+				String f = args[++i];
+				if (f.equals("csv")) {
+					format = CertAnalyzer.CSV;
+				} else if (f.equals("json")) {
+					format = CertAnalyzer.JSON;
+				} else {
+					System.err.println("(E) unknown format, see --help:\n");
+					System.exit(1);
+				}
+			}
+
+			if (args[i].equals("--output") || args[i].equals("-o")) {
+				outputFilePathName = args[++i];
+			}
+
+			if (args[i].equals("--fleet") || args[i].equals("-F")) {
+				fleetFilePathName = args[++i];
+			}
+
+			if (args[i].equals("--threads") || args[i].equals("-t")) {
+				try {
+					threads = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					/* we'll find this out later */
+					threads = -1;
+				}
+			}
+
+			if (args[i].equals("--no-cache")) {
+				useCache = false;
 			}
 
 			if (args[i].equals("--identify") || args[i].equals("-i")) {
@@ -122,15 +243,49 @@ public class NokiCertMain {
 			System.err.println("(E) no operation specified, see --help:\n");
 			System.exit(1);
 		}
+		if (fleetFilePathName != null) {
+			if (mode != INST_CERT) {
+				System.err
+						.println("(E) --fleet only works with --install-cert, see --help:\n");
+				System.exit(1);
+			}
+			if (threads < 1) {
+				System.err.println("(E) invalid number of threads, see --help:\n");
+				System.exit(1);
+			}
+			installFleet(fleetFilePathName, threads, certFilePathNames);
+			return;
+		}
+		if (mode == ANALYZE) {
+			if (certFilePathNames.isEmpty()) {
+				System.err.println("(E) no certificate specified, see --help:\n");
+				System.exit(1);
+			}
+			if (threads < 1) {
+				System.err.println("(E) invalid number of threads, see --help:\n");
+				System.exit(1);
+			}
+			analyze(certFilePathNames, threads, format, outputFilePathName);
+			return;
+		}
 		if (deviceAddress == null || channelNumber == -1) {
 			System.err
 					.println("(E) no device and/or channel specified, see --help:\n");
 			System.exit(1);
 		}
-		if (mode == INST_CERT && phoneFilePathName.length() == 0) {
+		if (mode == INST_CERT && certFilePathNames.isEmpty()) {
+			System.err.println("(E) no certificate specified, see --help:\n");
+			System.exit(1);
+		}
+		if (mode == REMOVE_CERT && certNames.isEmpty()) {
 			System.err.println("(E) no certificate specified, see --help:\n");
 			System.exit(1);
 		}
+		if (mode == REPLACE_CERT && certFilePathNames.isEmpty()) {
+			System.err
+					.println("(E) no installed and new certificate specified, see --help:\n");
+			System.exit(1);
+		}
 		if (mode == CERT_INFO && phoneFilePathName.length() == 0) {
 			System.err.println("(E) no certificate specified, see --help:\n");
 			System.exit(1);
@@ -139,6 +294,12 @@ public class NokiCertMain {
 			/* FIXME: add verbose command line parsing */
 			g = new Gjokii(deviceAddress, channelNumber, false);
 			NokiCert n = new NokiCert(g, ps);
+			FileCache cache = null;
+			if (useCache) {
+				cache = new FileCache(new File(homeDir + File.separator
+						+ ".gjokii" + File.separator + "cache"), CACHE_SIZE);
+				n.setFileCache(cache);
+			}
 
 			switch (mode) {
 			case IDENTIFY:
@@ -156,15 +317,26 @@ public class NokiCertMain {
 				break;
 			case INST_CERT:
 				ps.println("(I) Installing Certificate...");
-				n.installCertificate(phoneFilePathName,
+				n.installCertificates(certFilePathNames,
 						NokiCertUtils.APPS_SIGNING);
 				break;
+			case REMOVE_CERT:
+				ps.println("(I) Removing Certificate...");
+				n.removeCertificates(certNames);
+				break;
+			case REPLACE_CERT:
+				ps.println("(I) Replacing Certificate...");
+				n.replaceCertificate(certNames.get(0), certFilePathNames
+						.get(0), NokiCertUtils.APPS_SIGNING);
+				break;
 			case CERT_INFO:
 				ps.println("(I) Showing Certificate Info...");
 				CertParser cp = new CertParser(new File(phoneFilePathName));
 				ps.println(cp);
 				break;
 			}
+			if (cache != null)
+				cache.close();
 			g.close();
 		} catch (GjokiiException e) {
 			e.printStackTrace();
@@ -172,6 +344,47 @@ public class NokiCertMain {
 		}
 	}
 
+	/**
+	 * Install certificates on all phones listed in a file
+	 * 
+	 * @param fleetFilePathName
+	 *            the file with the list of phones
+	 * @param threads
+	 *            the maximum number of phones to install on at the same time
+	 * @param certFilePathNames
+	 *            the certificates to install
+	 */
+	private static void installFleet(String fleetFilePathName, int threads,
+			List<String> certFilePathNames) {
+		List<String> devices = null;
+		try {
+			devices = NokiCertFleet.readDeviceList(new File(fleetFilePathName));
+		} catch (IOException e) {
+			System.err.println("(E) unable to read device list: "
+					+ e.getMessage());
+			System.exit(1);
+		}
+		ps.println("(I) Installing Certificate on " + devices.size()
+				+ " phones...");
+		long start = System.currentTimeMillis();
+		NokiCertFleet fleet = new NokiCertFleet(NokiCertFleet.BLUETOOTH,
+				threads);
+		List<NokiCertFleet.Result> results = fleet.installCertificates(
+				devices, certFilePathNames, NokiCertUtils.APPS_SIGNING);
+		int failures = 0;
+		for (NokiCertFleet.Result r : results) {
+			ps.println(r);
+			if (!r.isSuccess())
+				failures++;
+		}
+		ps.println("(I) " + (results.size() - failures) + " succeeded, "
+				+ failures + " failed in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		ps.flush();
+		if (failures != 0)
+			System.exit(1);
+	}
+
 	private static void showHelp() {
 		String output = "NokiCert Help\n-----------\n";
 		output += "Basic:\n";
@@ -182,7 +395,19 @@ public class NokiCertMain {
 		output += "  -r, --reboot               Reboot the phone\n";
 		output += "  -C, --cert-info <cert>     Show information about certificate\n";
 		output += "  -l, --list-cert            List the certificates installed on the phone\n";
-		output += "  -I, --install-cert <cert>  Install an X.509 certificate on the phone\n";
+		output += "  -I, --install-cert <cert>...\n";
+		output += "                             Install one or more X.509 certificates on the phone\n";
+		output += "  -R, --remove-cert <name|hash>...\n";
+		output += "                             Remove one or more certificates from the phone\n";
+		output += "      --replace-cert <name|hash> <cert>\n";
+		output += "                             Replace an installed certificate by a new one\n";
+		output += "  -A, --analyze <cert|dir>...\n";
+		output += "                             Show the certificate list fields of many certificates\n";
+		output += "      --format <csv|json>    Output format for --analyze (default: csv)\n";
+		output += "  -o, --output <file>        Write the --analyze results to file\n";
+		output += "  -F, --fleet <file>         Install on all phones listed in file (with -I)\n";
+		output += "  -t, --threads <n>          Number of phones or certificates to handle at once (default: 8)\n";
+		output += "      --no-cache             Always download files from the phone\n";
 		output += "  -v, --verbose              Increase verbosity\n";
 		output += "  -h, --help                 Show this help message\n";
 		ps.println(output);
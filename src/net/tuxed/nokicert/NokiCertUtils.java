@@ -16,16 +16,18 @@
  */
 package net.tuxed.nokicert;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
-import net.sourceforge.iharder.Base64;
+import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.misc.Utils;
 
 /**
  * NokiCert Utils.
@@ -97,36 +99,71 @@ public class NokiCertUtils {
 	 *            PEM certificate file
 	 * @return a pointer to a DER encoded file if the input was a PEM
 	 *         certificate, or the input file in case it was not a PEM file.
+	 * @deprecated only converts the first certificate of the file, use
+	 *             readCertificates instead
 	 */
+	@Deprecated
 	public static File convertToDER(File f) {
 		try {
-			InputStream is = new FileInputStream(f);
-			BufferedReader br = new BufferedReader(new InputStreamReader(is));
-			String line;
-			do {
-				line = br.readLine();
-				if (line == null)
-					return f;
-			} while (!line.matches("-----BEGIN CERTIFICATE-----"));
-			/* next line(s) should contain certificate base64 encoded data */
-			String base64cert = new String();
-			boolean endOfLoop = false;
-			do {
-				line = br.readLine();
-				endOfLoop = line.matches("-----END CERTIFICATE-----");
-				if (!endOfLoop)
-					base64cert += line;
-			} while (!endOfLoop);
-			/* convert Base64 encoded string to binary */
-			byte[] binaryCert = Base64.decode(base64cert);
+			PemReader r = new PemReader(new FileInputStream(f));
+			byte[] der;
+			try {
+				der = r.readCertificate();
+			} finally {
+				r.close();
+			}
+			if (der == null)
+				return f;
 			File derFile = File.createTempFile("DER", null);
 			FileOutputStream fos = new FileOutputStream(derFile);
-			fos.write(binaryCert);
-			fos.flush();
-			fos.close();
+			try {
+				fos.write(der);
+			} finally {
+				fos.close();
+			}
 			return derFile;
 		} catch (IOException e) {
 			return f;
 		}
 	}
+
+	/**
+	 * Read all certificates from a file. A PEM file can hold multiple
+	 * certificates, like a CA chain. A file without PEM certificates is
+	 * assumed to hold one DER encoded certificate.
+	 * 
+	 * @param f
+	 *            the PEM or DER certificate file
+	 * @return the DER encoded certificates, in the order of the file
+	 * @throws GjokiiException
+	 *             if the file cannot be read or holds invalid PEM data
+	 */
+	public static List<byte[]> readCertificates(File f) throws GjokiiException {
+		List<byte[]> certificates = new ArrayList<byte[]>();
+		try {
+			PemReader r = new PemReader(new FileInputStream(f));
+			try {
+				byte[] der;
+				while ((der = r.readCertificate()) != null)
+					certificates.add(der);
+			} finally {
+				r.close();
+			}
+			if (certificates.isEmpty()) {
+				InputStream is = new FileInputStream(f);
+				try {
+					certificates.add(Utils.readStream(is));
+				} finally {
+					is.close();
+				}
+			}
+		} catch (FileNotFoundException e) {
+			throw new GjokiiException("unable to find certificate: "
+					+ e.getMessage());
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read certificate "
+					+ f.getPath() + ": " + e.getMessage());
+		}
+		return certificates;
+	}
 }
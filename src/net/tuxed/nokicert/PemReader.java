@@ -0,0 +1,203 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.tuxed.misc.ByteArrayBuilder;
+
+/**
+ * Reads the certificates in a PEM file one at a time, for instance all
+ * certificates of a CA chain in one file.
+ *
+ * The file is read in blocks and the Base64 data is decoded while it is read,
+ * so only the certificate being read is kept in memory. Text outside the
+ * certificates is ignored.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ */
+public class PemReader {
+	private final static byte[] BEGIN = { '-', '-', '-', '-', '-', 'B', 'E',
+			'G', 'I', 'N', ' ', 'C', 'E', 'R', 'T', 'I', 'F', 'I', 'C', 'A',
+			'T', 'E', '-', '-', '-', '-', '-' };
+	private final static byte[] END = { '-', '-', '-', '-', '-', 'E', 'N',
+			'D', ' ', 'C', 'E', 'R', 'T', 'I', 'F', 'I', 'C', 'A', 'T', 'E',
+			'-', '-', '-', '-', '-' };
+
+	/* the value of every Base64 character, -1 for other characters */
+	private final static int[] BASE64 = new int[128];
+
+	static {
+		for (int i = 0; i < BASE64.length; i++)
+			BASE64[i] = -1;
+		for (int i = 0; i < 26; i++) {
+			BASE64['A' + i] = i;
+			BASE64['a' + i] = 26 + i;
+		}
+		for (int i = 0; i < 10; i++)
+			BASE64['0' + i] = 52 + i;
+		BASE64['+'] = 62;
+		BASE64['/'] = 63;
+	}
+
+	private InputStream is;
+	private byte[] buffer = new byte[8192];
+	private int position = 0;
+	private int limit = 0;
+	/* the current line, without the line end */
+	private byte[] line = new byte[128];
+	private int lineStart;
+	private int lineEnd;
+	private ByteArrayBuilder der = new ByteArrayBuilder(2048);
+	private int certificates = 0;
+
+	/**
+	 * Construct the reader
+	 *
+	 * @param is
+	 *            the stream to read the PEM data from, it does not need to be
+	 *            buffered
+	 */
+	public PemReader(InputStream is) {
+		this.is = is;
+	}
+
+	/**
+	 * Close the stream
+	 *
+	 * @throws IOException
+	 *             if closing the stream fails
+	 */
+	public void close() throws IOException {
+		is.close();
+	}
+
+	/**
+	 * Get the number of certificates read so far
+	 *
+	 * @return the number of certificates
+	 */
+	public int getCertificates() {
+		return certificates;
+	}
+
+	/**
+	 * Read the next certificate
+	 *
+	 * @return the DER encoded certificate, or null if there are no more
+	 *         certificates
+	 * @throws IOException
+	 *             if reading fails, or if the certificate is not valid Base64
+	 *             or has no end
+	 */
+	public byte[] readCertificate() throws IOException {
+		do {
+			if (!readLine())
+				return null;
+		} while (!lineEquals(BEGIN));
+
+		der.clear();
+		/* the bits decoded but not yet written */
+		int bits = 0;
+		int bitCount = 0;
+		boolean padding = false;
+		while (true) {
+			if (!readLine())
+				throw new IOException("certificate " + (certificates + 1)
+						+ " has no end");
+			if (lineEquals(END))
+				break;
+			for (int i = lineStart; i < lineEnd; i++) {
+				int c = line[i] & 0xff;
+				if (c == '=') {
+					padding = true;
+					continue;
+				}
+				if (c == ' ' || c == '\t')
+					continue;
+				int v = (c < BASE64.length) ? BASE64[c] : -1;
+				if (v == -1 || padding)
+					throw new IOException("invalid Base64 data in certificate "
+							+ (certificates + 1));
+				bits = (bits << 6) | v;
+				bitCount += 6;
+				if (bitCount >= 8) {
+					bitCount -= 8;
+					der.putByte(bits >> bitCount);
+					bits &= (1 << bitCount) - 1;
+				}
+			}
+		}
+		certificates++;
+		return der.toByteArray();
+	}
+
+	/**
+	 * Compare the current line with a marker
+	 *
+	 * @param marker
+	 *            the marker
+	 * @return true if the line holds exactly the marker
+	 */
+	private boolean lineEquals(byte[] marker) {
+		if (lineEnd - lineStart != marker.length)
+			return false;
+		for (int i = 0; i < marker.length; i++) {
+			if (line[lineStart + i] != marker[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the next line, without white space at the start and the end
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean readLine() throws IOException {
+		int length = 0;
+		boolean read = false;
+		while (true) {
+			if (position == limit) {
+				limit = is.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					break;
+				}
+			}
+			read = true;
+			byte b = buffer[position++];
+			if (b == '\n')
+				break;
+			if (length == line.length) {
+				byte[] newLine = new byte[line.length * 2];
+				System.arraycopy(line, 0, newLine, 0, length);
+				line = newLine;
+			}
+			line[length++] = b;
+		}
+		lineStart = 0;
+		lineEnd = length;
+		while (lineStart < lineEnd && (line[lineStart] & 0xff) <= ' ')
+			lineStart++;
+		while (lineEnd > lineStart && (line[lineEnd - 1] & 0xff) <= ' ')
+			lineEnd--;
+		return read;
+	}
+}
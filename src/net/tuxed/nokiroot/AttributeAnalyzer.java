@@ -16,13 +16,16 @@
  */
 package net.tuxed.nokiroot;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import net.tuxed.gjokii.GjokiiException;
 import net.tuxed.misc.Utils;
 
 /**
@@ -44,35 +47,12 @@ public class AttributeAnalyzer {
 	 *            the file to analyze
 	 */
 	public AttributeAnalyzer(File f) {
-		/* first we split the list in its various entries */
 		try {
-			int offsetInFile = 0;
 			FileInputStream fis = new FileInputStream(f);
-			while (fis.available() > 4) {
-				byte[] lengthBytes = new byte[4];
-				offsetInFile += fis.read(lengthBytes);
-				int size = Utils.byteArrayToIntLE(lengthBytes, 0);
-				byte[] dataBytes = new byte[size - 4];
-				fis.read(dataBytes);
-
-				// System.out.println(Utils.hexDump(dataBytes));
-
-				byte suiteNumber = dataBytes[0];
-				int numberOfFields = Utils.byteArrayToIntLE(dataBytes, 4);
-				TreeMap<Byte, Object[]> attribMap = new TreeMap<Byte, Object[]>();
-				int offset = (numberOfFields + 1) * 8;
-
-				for (int i = 0; i < numberOfFields; i++) {
-					int attrSize = Utils.byteArrayToIntLE(dataBytes, i * 8 + 8);
-					byte attrType = dataBytes[i * 8 + 12];
-					byte[] content = new byte[attrSize];
-					System.arraycopy(dataBytes, offset, content, 0, attrSize);
-					attribMap.put(attrType, new Object[] {
-							offsetInFile + offset, content });
-					offset += attrSize;
-				}
-				suiteMap.put(suiteNumber, attribMap);
-				offsetInFile += size - 4;
+			try {
+				parse(fis, f.length());
+			} finally {
+				fis.close();
 			}
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -81,6 +61,70 @@ public class AttributeAnalyzer {
 		}
 	}
 
+	/**
+	 * Analyze the attribute file read from a stream, for example one opened
+	 * with Gjokii.openInputStream
+	 * 
+	 * @param is
+	 *            the stream to read the file from
+	 * @param length
+	 *            the length of the file in bytes
+	 * @throws GjokiiException
+	 *             if reading the file fails
+	 */
+	public AttributeAnalyzer(InputStream is, long length)
+			throws GjokiiException {
+		try {
+			parse(is, length);
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read attribute file: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Split the attribute file in its entries
+	 * 
+	 * @param is
+	 *            the stream to read the file from
+	 * @param length
+	 *            the length of the file in bytes
+	 * @throws IOException
+	 *             if reading the file fails
+	 */
+	private void parse(InputStream is, long length) throws IOException {
+		/* first we split the list in its various entries */
+		DataInputStream dis = new DataInputStream(is);
+		int offsetInFile = 0;
+		while (length - offsetInFile > 4) {
+			byte[] lengthBytes = new byte[4];
+			dis.readFully(lengthBytes);
+			offsetInFile += lengthBytes.length;
+			int size = Utils.byteArrayToIntLE(lengthBytes, 0);
+			byte[] dataBytes = new byte[size - 4];
+			dis.readFully(dataBytes);
+
+			// System.out.println(Utils.hexDump(dataBytes));
+
+			byte suiteNumber = dataBytes[0];
+			int numberOfFields = Utils.byteArrayToIntLE(dataBytes, 4);
+			TreeMap<Byte, Object[]> attribMap = new TreeMap<Byte, Object[]>();
+			int offset = (numberOfFields + 1) * 8;
+
+			for (int i = 0; i < numberOfFields; i++) {
+				int attrSize = Utils.byteArrayToIntLE(dataBytes, i * 8 + 8);
+				byte attrType = dataBytes[i * 8 + 12];
+				byte[] content = new byte[attrSize];
+				System.arraycopy(dataBytes, offset, content, 0, attrSize);
+				attribMap.put(attrType, new Object[] { offsetInFile + offset,
+						content });
+				offset += attrSize;
+			}
+			suiteMap.put(suiteNumber, attribMap);
+			offsetInFile += size - 4;
+		}
+	}
+
 	/**
 	 * Get the map contained in the object
 	 * 
@@ -16,10 +16,12 @@
  */
 package net.tuxed.nokiroot;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
@@ -51,42 +53,12 @@ public class ListAnalyzer {
 	 *             if the platform is not supported
 	 */
 	public ListAnalyzer(File f) throws GjokiiException {
-		/* first we split the list in its various entries */
 		try {
 			FileInputStream fis = new FileInputStream(f);
-			while (fis.available() > 4) {
-				byte[] lengthBytes = new byte[4];
-				fis.read(lengthBytes);
-				int size = Utils.byteArrayToIntLE(lengthBytes, 0);
-				byte[] dataBytes = new byte[size - 4];
-				fis.read(dataBytes);
-
-				byte suiteNumber = dataBytes[0];
-				int seqNo1 = Utils.byteArrayToIntLE(dataBytes, 4);
-				maxSeqNo1 = (seqNo1 > maxSeqNo1) ? seqNo1 : maxSeqNo1;
-				int seqNo2 = -1;
-
-				int noOfFields = 9; /* Nokia 6212 Classic */
-				// int noOfFields = 5; /* Nokia 6131 NFC */
-
-				if (noOfFields == 9) {
-					seqNo2 = Utils.byteArrayToIntLE(dataBytes, 18);
-					maxSeqNo2 = (seqNo2 > maxSeqNo2) ? seqNo2 : maxSeqNo2;
-				}
-				int offset = noOfFields * 4;
-				int suiteNameSize = Utils.byteArrayToIntLE(dataBytes, offset);
-				byte[] suiteNameArray = new byte[suiteNameSize];
-				System.arraycopy(dataBytes, offset + 8, suiteNameArray, 0,
-						suiteNameSize);
-				String suiteName = Utils.bytesToStringLE(suiteNameArray);
-				int vendorNameSize = Utils.byteArrayToIntLE(dataBytes,
-						offset + 4);
-				byte[] vendorNameArray = new byte[vendorNameSize];
-				System.arraycopy(dataBytes, offset + 8 + suiteNameSize,
-						vendorNameArray, 0, vendorNameSize);
-				String vendorName = Utils.bytesToStringLE(vendorNameArray);
-				map.put(suiteNumber, new Object[] { seqNo1, seqNo2, suiteName,
-						vendorName });
+			try {
+				parse(fis, f.length());
+			} finally {
+				fis.close();
 			}
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -95,6 +67,76 @@ public class ListAnalyzer {
 		}
 	}
 
+	/**
+	 * Analyze the list file read from a stream, for example one opened with
+	 * Gjokii.openInputStream
+	 * 
+	 * @param is
+	 *            the stream to read the file from
+	 * @param length
+	 *            the length of the file in bytes
+	 * @throws GjokiiException
+	 *             if reading the file fails
+	 */
+	public ListAnalyzer(InputStream is, long length) throws GjokiiException {
+		try {
+			parse(is, length);
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read list file: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Split the list file in its entries
+	 * 
+	 * @param is
+	 *            the stream to read the file from
+	 * @param length
+	 *            the length of the file in bytes
+	 * @throws IOException
+	 *             if reading the file fails
+	 */
+	private void parse(InputStream is, long length) throws IOException {
+		/* first we split the list in its various entries */
+		DataInputStream dis = new DataInputStream(is);
+		long remaining = length;
+		while (remaining > 4) {
+			byte[] lengthBytes = new byte[4];
+			dis.readFully(lengthBytes);
+			int size = Utils.byteArrayToIntLE(lengthBytes, 0);
+			byte[] dataBytes = new byte[size - 4];
+			dis.readFully(dataBytes);
+			remaining -= size;
+
+			byte suiteNumber = dataBytes[0];
+			int seqNo1 = Utils.byteArrayToIntLE(dataBytes, 4);
+			maxSeqNo1 = (seqNo1 > maxSeqNo1) ? seqNo1 : maxSeqNo1;
+			int seqNo2 = -1;
+
+			int noOfFields = 9; /* Nokia 6212 Classic */
+			// int noOfFields = 5; /* Nokia 6131 NFC */
+
+			if (noOfFields == 9) {
+				seqNo2 = Utils.byteArrayToIntLE(dataBytes, 18);
+				maxSeqNo2 = (seqNo2 > maxSeqNo2) ? seqNo2 : maxSeqNo2;
+			}
+			int offset = noOfFields * 4;
+			int suiteNameSize = Utils.byteArrayToIntLE(dataBytes, offset);
+			byte[] suiteNameArray = new byte[suiteNameSize];
+			System.arraycopy(dataBytes, offset + 8, suiteNameArray, 0,
+					suiteNameSize);
+			String suiteName = Utils.bytesToStringLE(suiteNameArray);
+			int vendorNameSize = Utils.byteArrayToIntLE(dataBytes, offset + 4);
+			byte[] vendorNameArray = new byte[vendorNameSize];
+			System.arraycopy(dataBytes, offset + 8 + suiteNameSize,
+					vendorNameArray, 0, vendorNameSize);
+			String vendorName = Utils.bytesToStringLE(vendorNameArray);
+			map.put(suiteNumber, new Object[] { seqNo1, seqNo2, suiteName,
+					vendorName });
+		}
+	}
+
 	/**
 	 * Get the maximum sequence number (1)
 	 * 
@@ -16,15 +16,20 @@
  */
 package net.tuxed.nokiroot;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.RandomAccessFile;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import net.tuxed.gjokii.DirectoryEntryInfo;
+import net.tuxed.gjokii.FileCache;
 import net.tuxed.gjokii.Gjokii;
 import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.misc.Utils;
 
 /**
  * This class deals with modifying and listing the MIDlet suites and their
@@ -37,6 +42,7 @@ import net.tuxed.gjokii.GjokiiException;
 public class NokiRoot {
 	private Gjokii g;
 	private PrintStream ps;
+	private FileCache cache;
 
 	private String attributeFileLocation = "/predefhiddenfolder/_jmr_suite_attrib_file__.jmr";
 	private String listFileLocation = "/predefhiddenfolder/_jmr_suite_list_file__.jmr";
@@ -72,12 +78,53 @@ public class NokiRoot {
 			throw new GjokiiException("unable to create temporary files");
 		}
 		ps.println("(I) using temporary file: " + fAttr.getAbsolutePath());
-		g.getFile(attributeFileLocation, fAttr);
+		getFile(attributeFileLocation, fAttr);
 		ps.println("(I) using temporary file: " + fList.getAbsolutePath());
-		g.getFile(listFileLocation, fList);
+		getFile(listFileLocation, fList);
 		return new File[] { fAttr, fList };
 	}
 
+	/**
+	 * Retrieve a file from the phone, through the cache if one is set.
+	 * 
+	 * @param filePathName
+	 *            the file with full path to get
+	 * @param targetFile
+	 *            the file to write to
+	 * @throws GjokiiException
+	 */
+	private void getFile(String filePathName, File targetFile)
+			throws GjokiiException {
+		if (cache != null)
+			cache.getFile(g, filePathName, targetFile);
+		else
+			g.getFile(filePathName, targetFile);
+	}
+
+	/**
+	 * Retrieve the contents of a file from the phone, through the cache if one
+	 * is set, without writing it to a temporary file.
+	 * 
+	 * @param filePathName
+	 *            the file with full path to get
+	 * @return the contents of the file
+	 * @throws GjokiiException
+	 */
+	private byte[] getFileContents(String filePathName)
+			throws GjokiiException {
+		InputStream is = openFile(filePathName);
+		try {
+			try {
+				return Utils.readStream(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read " + filePathName + ": "
+					+ e.getMessage());
+		}
+	}
+
 	/**
 	 * Retrieve a (formatted) list of installed MIDlet suites and their security
 	 * domain.
@@ -86,13 +133,9 @@ public class NokiRoot {
 	 * @throws GjokiiException
 	 */
 	public String listApplicationDomains() throws GjokiiException {
-		File[] appFiles = getApplicationDomainFiles();
-
-		AttributeAnalyzer aA = new AttributeAnalyzer(appFiles[0]);
-		TreeMap<Byte, TreeMap<Byte, Object[]>> tA = aA.getMap();
-
-		ListAnalyzer lA = new ListAnalyzer(appFiles[1]);
-		TreeMap<Byte, Object[]> tL = lA.getMap();
+		ps.println("(I) downloading application list from the phone...");
+		TreeMap<Byte, TreeMap<Byte, Object[]>> tA = readAttributes().getMap();
+		TreeMap<Byte, Object[]> tL = readList().getMap();
 
 		/*
 		 * go through attribute map and select the MIDlet suites that have a
@@ -128,13 +171,13 @@ public class NokiRoot {
 	public void modifyApplicationDomains(int suiteNumber, byte securityDomain)
 			throws GjokiiException {
 		/* has to be valid suiteNumber and securityDomain */
-		File[] appFiles = getApplicationDomainFiles();
-
-		AttributeAnalyzer aA = new AttributeAnalyzer(appFiles[0]);
+		ps.println("(I) downloading application list from the phone...");
+		/* the attribute file is modified and written back as a whole */
+		byte[] attributes = getFileContents(attributeFileLocation);
+		AttributeAnalyzer aA = new AttributeAnalyzer(new ByteArrayInputStream(
+				attributes), attributes.length);
 		TreeMap<Byte, TreeMap<Byte, Object[]>> tA = aA.getMap();
-
-		ListAnalyzer lA = new ListAnalyzer(appFiles[1]);
-		TreeMap<Byte, Object[]> tL = lA.getMap();
+		TreeMap<Byte, Object[]> tL = readList().getMap();
 
 		for (Entry<Byte, TreeMap<Byte, Object[]>> e : tA.entrySet()) {
 			for (Entry<Byte, Object[]> g : e.getValue().entrySet()) {
@@ -150,20 +193,105 @@ public class NokiRoot {
 							+ currentSecurityDomain + " --> "
 							+ newSecurityDomain + "] " + suiteName);
 					/* modify the file at the security domain offset */
-					try {
-						RandomAccessFile raf = new RandomAccessFile(
-								appFiles[0], "rw");
-						raf.seek(offsetInAttributeFile);
-						raf.writeByte(securityDomain);
-						raf.close();
-					} catch (IOException ioe) {
-						throw new GjokiiException(
-								"unable to modify the attribute file");
-					}
+					attributes[offsetInAttributeFile] = securityDomain;
 				}
 			}
 		}
 		ps.println("(I) Uploading attribute file...");
-		g.putFile(attributeFileLocation, appFiles[0]);
+		try {
+			OutputStream os = g.openOutputStream(attributeFileLocation);
+			os.write(attributes);
+			os.close();
+		} catch (IOException e) {
+			throw new GjokiiException("unable to upload the attribute file: "
+					+ e.getMessage());
+		}
+		if (cache != null)
+			cache.invalidate(g, attributeFileLocation);
+	}
+
+	/**
+	 * Get the size of a file on the phone
+	 * 
+	 * @param filePathName
+	 *            the file with full path
+	 * @return the size in bytes as reported by the phone
+	 * @throws GjokiiException
+	 *             if the file does not exist
+	 */
+	private long getFileSize(String filePathName) throws GjokiiException {
+		DirectoryEntryInfo fi = g.getEntryInfo(filePathName);
+		if (!fi.isFile())
+			throw new GjokiiException("file does not exist");
+		return fi.getEntrySize();
+	}
+
+	/**
+	 * Open a file on the phone, or in the cache if one is set. When reading
+	 * from the phone the blocks are only fetched as they are read, only one
+	 * file can be open at a time.
+	 * 
+	 * @param filePathName
+	 *            the file with full path to open
+	 * @return the stream
+	 * @throws GjokiiException
+	 */
+	private InputStream openFile(String filePathName) throws GjokiiException {
+		if (cache == null)
+			return g.openInputStream(filePathName);
+		return cache.openInputStream(g, filePathName);
+	}
+
+	/**
+	 * Analyze the MIDlet suite attribute file while it is read
+	 * 
+	 * @return the analyzed file
+	 * @throws GjokiiException
+	 */
+	private AttributeAnalyzer readAttributes() throws GjokiiException {
+		long length = getFileSize(attributeFileLocation);
+		InputStream is = openFile(attributeFileLocation);
+		try {
+			try {
+				return new AttributeAnalyzer(is, length);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read attribute file: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Analyze the MIDlet suite list file while it is read
+	 * 
+	 * @return the analyzed file
+	 * @throws GjokiiException
+	 */
+	private ListAnalyzer readList() throws GjokiiException {
+		long length = getFileSize(listFileLocation);
+		InputStream is = openFile(listFileLocation);
+		try {
+			try {
+				return new ListAnalyzer(is, length);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new GjokiiException("unable to read list file: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Use a cache for the files fetched from the phone. Files that did not
+	 * change on the phone since they were cached are not downloaded again.
+	 * 
+	 * @param cache
+	 *            the cache, or null to always download the files
+	 */
+	public void setFileCache(FileCache cache) {
+		this.cache = cache;
 	}
 }
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 
+import net.tuxed.gjokii.FileCache;
 import net.tuxed.gjokii.Gjokii;
 import net.tuxed.gjokii.GjokiiException;
 import net.tuxed.misc.Utils;
@@ -32,6 +33,9 @@ public class NokiRootMain {
 	private static final int IDENTIFY = 5;
 	private static final int REBOOT = 6;
 
+	/* maximum size of the file cache in bytes */
+	private static final long CACHE_SIZE = 16 * 1024 * 1024;
+
 	private static PrintStream ps = null;
 	private static Gjokii g = null;
 
@@ -59,6 +63,8 @@ public class NokiRootMain {
 		byte suiteNumber = -1;
 		byte securityDomain = -1;
 
+		boolean useCache = true;
+
 		int mode = -1;
 		/*
 		 * try to get the device hardware address and channel from configuration
@@ -110,6 +116,10 @@ public class NokiRootMain {
 				}
 			}
 
+			if (args[i].equals("--no-cache")) {
+				useCache = false;
+			}
+
 			if (args[i].equals("--identify") || args[i].equals("-i")) {
 				mode = IDENTIFY;
 			}
@@ -144,6 +154,12 @@ public class NokiRootMain {
 			/* FIXME: add verbose command line parsing */
 			g = new Gjokii(deviceAddress, channelNumber, false);
 			NokiRoot n = new NokiRoot(g, ps);
+			FileCache cache = null;
+			if (useCache) {
+				cache = new FileCache(new File(homeDir + File.separator
+						+ ".gjokii" + File.separator + "cache"), CACHE_SIZE);
+				n.setFileCache(cache);
+			}
 
 			switch (mode) {
 			case IDENTIFY:
@@ -165,6 +181,8 @@ public class NokiRootMain {
 				n.modifyApplicationDomains(suiteNumber, securityDomain);
 				break;
 			}
+			if (cache != null)
+				cache.close();
 			g.close();
 		} catch (GjokiiException e) {
 			e.printStackTrace();
@@ -183,6 +201,7 @@ public class NokiRootMain {
 		output += "  -l, --list-midlet-suites   List installed MIDlet suites\n";
 		output += "  -m, --modify-midlet-suite\n";
 		output += "           <#suite> <domain> Modify the security domain of MIDlet suite\n";
+		output += "      --no-cache             Always download files from the phone\n";
 		output += "  -v, --verbose              Increase verbosity\n";
 		output += "  -h, --help                 Show this help message\n";
 		ps.println(output);
@@ -0,0 +1,135 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Negotiates the block size with simulated phones and counts the GET_FILE
+ * requests needed to get a file.
+ *
+ * Every connection negotiates for itself unless it shares its block sizes
+ * with other connections. A shared block size that turns out to be too large
+ * for a phone is forgotten, so the next transfer negotiates again.
+ *
+ * The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class BlockSizeTest {
+	private static final int FILE_SIZE = 100000;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		File dir = File.createTempFile("gjokii-blocksize", null);
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("unable to create temporary directory");
+		try {
+			File phoneRoot = new File(dir, "phone");
+			phoneRoot.mkdir();
+			byte[] content = new byte[FILE_SIZE];
+			new Random(1).nextBytes(content);
+			FileOutputStream fos = new FileOutputStream(new File(phoneRoot,
+					"file.bin"));
+			fos.write(content);
+			fos.close();
+			File target = new File(dir, "file.bin");
+
+			/* every connection negotiates for itself */
+			for (int i = 0; i < 2; i++) {
+				Gjokii g = connect(phoneRoot, 4096);
+				check(g.getBlockSize() == 256, "connection " + i
+						+ " starts with a block size of " + g.getBlockSize());
+				g.getFile("/file.bin", target);
+				check(g.getBlockSize() == 4096, "connection " + i
+						+ " negotiated " + g.getBlockSize());
+				System.out.println("(I) negotiating: "
+						+ g.getMetrics().getRequestCount("get_file")
+						+ " GET_FILE requests for " + FILE_SIZE + " bytes");
+				g.close();
+			}
+
+			/* a connection sharing the block sizes does not negotiate */
+			Map<String, Integer> blockSizes = new ConcurrentHashMap<String, Integer>();
+			Gjokii g = connect(phoneRoot, 4096);
+			g.setBlockSizes(blockSizes);
+			g.getFile("/file.bin", target);
+			g.close();
+			g = connect(phoneRoot, 4096);
+			g.setBlockSizes(blockSizes);
+			check(g.getBlockSize() == 4096, "the shared block size is not used");
+			g.getFile("/file.bin", target);
+			long requests = g.getMetrics().getRequestCount("get_file");
+			check(requests == FILE_SIZE / 4096 + 1, requests
+					+ " GET_FILE requests with a shared block size");
+			System.out.println("(I) shared block size: " + requests
+					+ " GET_FILE requests for " + FILE_SIZE + " bytes");
+			g.close();
+
+			/* a phone of the same model that returns smaller blocks */
+			g = connect(phoneRoot, 1024);
+			g.setBlockSizes(blockSizes);
+			try {
+				g.getFile("/file.bin", target);
+				check(false, "a too large block size did not fail");
+			} catch (GjokiiException e) {
+				/* expected */
+			}
+			check(g.getBlockSize() == 256 && !blockSizes.containsKey("RM-SIM"),
+					"the too large block size is not forgotten");
+			g.getFile("/file.bin", target);
+			check(g.getBlockSize() == 1024 && blockSizes.get("RM-SIM") == 1024,
+					"the block size is not negotiated again");
+			g.close();
+		} finally {
+			delete(dir);
+		}
+		System.out.println("(I) block size: " + failures + " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		f.delete();
+	}
+
+	private static Gjokii connect(File phoneRoot, int maxBlockSize)
+			throws GjokiiException {
+		SimulatedPhone p = new SimulatedPhone(phoneRoot);
+		p.setMaxBlockSize(maxBlockSize);
+		p.setTimeout(10000);
+		return new Gjokii(p, false);
+	}
+}
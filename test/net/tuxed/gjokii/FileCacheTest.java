@@ -0,0 +1,246 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Fetches files from a simulated phone through a FileCache.
+ *
+ * Using a cached copy should not download the file again and should not
+ * write the index until the cache is closed. A file that is being read is not
+ * evicted when other files are added to a full cache. Two caches sharing a
+ * directory, like two processes would, should not lose each other's entries
+ * when writing the index.
+ *
+ * The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class FileCacheTest {
+	private static final int FILE_SIZE = 20000;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		File dir = File.createTempFile("gjokii-cache", null);
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("unable to create temporary directory");
+		try {
+			File phoneRoot = new File(dir, "phone");
+			byte[][] content = new byte[3][FILE_SIZE];
+			for (int i = 0; i < content.length; i++) {
+				new Random(i).nextBytes(content[i]);
+				write(new File(phoneRoot, "file" + i), content[i]);
+			}
+
+			testHit(phoneRoot, new File(dir, "hit"), content[0]);
+			testPinned(phoneRoot, new File(dir, "pinned"), content);
+			testShared(phoneRoot, new File(dir, "shared"));
+		} finally {
+			delete(dir);
+		}
+		System.out.println("(I) file cache: " + failures + " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	private static Gjokii connect(File phoneRoot) throws GjokiiException {
+		SimulatedPhone p = new SimulatedPhone(phoneRoot);
+		p.setTimeout(10000);
+		return new Gjokii(p, false);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		f.delete();
+	}
+
+	private static Properties loadIndex(File cacheDir) throws IOException {
+		Properties p = new Properties();
+		FileInputStream fis = new FileInputStream(new File(cacheDir,
+				"index.properties"));
+		try {
+			p.load(fis);
+		} finally {
+			fis.close();
+		}
+		return p;
+	}
+
+	private static byte[] read(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			return Utils.readStream(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static byte[] read(FileCache cache, Gjokii g, String filePathName)
+			throws Exception {
+		/* give every use its own time */
+		Thread.sleep(10);
+		InputStream is = cache.openInputStream(g, filePathName);
+		try {
+			return Utils.readStream(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Use a cached copy a number of times
+	 *
+	 * @param phoneRoot
+	 *            the file system of the phone
+	 * @param cacheDir
+	 *            the directory of the cache
+	 * @param content
+	 *            the content of file0 on the phone
+	 */
+	private static void testHit(File phoneRoot, File cacheDir, byte[] content)
+			throws Exception {
+		FileCache cache = new FileCache(cacheDir, FILE_SIZE * 10);
+		Gjokii g = connect(phoneRoot);
+		check(Arrays.equals(content, read(cache, g, "/file0")),
+				"hit: the first read returned different data");
+		long downloads = g.getMetrics().getRequestCount("get_file");
+		File indexFile = new File(cacheDir, "index.properties");
+		byte[] index = read(indexFile);
+
+		for (int i = 0; i < 4; i++) {
+			check(Arrays.equals(content, read(cache, g, "/file0")),
+					"hit: a cached read returned different data");
+			File copy = new File(cacheDir.getParentFile(), "copy");
+			cache.getFile(g, "/file0", copy);
+			check(Arrays.equals(content, read(copy)),
+					"hit: a cached copy is different");
+		}
+		check(g.getMetrics().getRequestCount("get_file") == downloads,
+				"hit: the cached file was downloaded again");
+		check(Arrays.equals(index, read(indexFile)),
+				"hit: the index was written on a cache hit");
+		cache.close();
+		g.close();
+		check(!Arrays.equals(index, read(indexFile)),
+				"hit: close did not write the index");
+	}
+
+	/**
+	 * Read a file from a cache that only fits two files while adding others
+	 *
+	 * @param phoneRoot
+	 *            the file system of the phone
+	 * @param cacheDir
+	 *            the directory of the cache
+	 * @param content
+	 *            the content of the files on the phone
+	 */
+	private static void testPinned(File phoneRoot, File cacheDir,
+			byte[][] content) throws Exception {
+		FileCache cache = new FileCache(cacheDir, FILE_SIZE * 2);
+		Gjokii g = connect(phoneRoot);
+		InputStream is = cache.openInputStream(g, "/file0");
+		try {
+			is.read(new byte[100]);
+			read(cache, g, "/file1");
+			read(cache, g, "/file2");
+			check(loadIndex(cacheDir).size() == 2,
+					"pinned: the cache holds more than two files");
+			long downloads = g.getMetrics().getRequestCount("get_file");
+			check(Arrays.equals(content[0], read(cache, g, "/file0")),
+					"pinned: the open file returned different data");
+			check(g.getMetrics().getRequestCount("get_file") == downloads,
+					"pinned: the open file was evicted");
+		} finally {
+			is.close();
+		}
+		/* now file0 is the least recently used file and can be evicted */
+		read(cache, g, "/file1");
+		read(cache, g, "/file2");
+		long downloads = g.getMetrics().getRequestCount("get_file");
+		read(cache, g, "/file0");
+		cache.close();
+		g.close();
+		check(g.getMetrics().getRequestCount("get_file") > downloads,
+				"pinned: a closed file was not evicted");
+	}
+
+	/**
+	 * Let two caches on the same directory add files
+	 *
+	 * @param phoneRoot
+	 *            the file system of the phone
+	 * @param cacheDir
+	 *            the directory of the caches
+	 */
+	private static void testShared(File phoneRoot, File cacheDir)
+			throws Exception {
+		FileCache first = new FileCache(cacheDir, FILE_SIZE * 10);
+		FileCache second = new FileCache(cacheDir, FILE_SIZE * 10);
+		Gjokii g = connect(phoneRoot);
+		read(first, g, "/file0");
+		read(second, g, "/file1");
+		first.close();
+		second.close();
+		check(loadIndex(cacheDir).size() == 2,
+				"shared: an entry of the other cache was lost");
+
+		long downloads = g.getMetrics().getRequestCount("get_file");
+		FileCache third = new FileCache(cacheDir, FILE_SIZE * 10);
+		read(third, g, "/file0");
+		read(third, g, "/file1");
+		third.close();
+		g.close();
+		check(g.getMetrics().getRequestCount("get_file") == downloads,
+				"shared: a file cached by another cache was downloaded again");
+		for (String name : cacheDir.list())
+			check(!name.endsWith(".tmp") && !name.endsWith(".part"),
+					"shared: " + name + " is left behind");
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		f.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+	}
+}
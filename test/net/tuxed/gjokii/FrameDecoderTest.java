@@ -0,0 +1,182 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.tuxed.misc.ByteArrayBuilder;
+
+/**
+ * Decodes frames from a stream that splits them in random places and
+ * delivers several of them in one read, and lists directories of a simulated
+ * phone.
+ *
+ * A directory listing is one frame per entry, it should be complete without
+ * waiting for the link to go quiet.
+ *
+ * The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class FrameDecoderTest {
+	/**
+	 * Returns the data in reads of random length, a read can end in the
+	 * middle of a frame or contain several frames
+	 */
+	private static class ChoppingInputStream extends InputStream {
+		private InputStream is;
+		private Random random;
+		private int maxRead;
+
+		private ChoppingInputStream(byte[] data, Random random, int maxRead) {
+			is = new ByteArrayInputStream(data);
+			this.random = random;
+			this.maxRead = maxRead;
+		}
+
+		public int read() throws IOException {
+			return is.read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return is.read(b, off, Math.min(len, 1 + random.nextInt(maxRead)));
+		}
+	}
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(1);
+		List<byte[]> frames = new ArrayList<byte[]>();
+		ByteArrayBuilder stream = new ByteArrayBuilder(65536);
+		for (int i = 0; i < 200; i++) {
+			/* empty frames and frames longer than a read */
+			byte[] payload = new byte[(i % 10 == 0) ? 0 : random.nextInt(600)];
+			random.nextBytes(payload);
+			ByteArrayBuilder frame = new ByteArrayBuilder(payload.length + 6);
+			frame.putByte(0x19).putByte(0x10).putByte(0x00).putByte(0x6d);
+			frame.putShort(payload.length);
+			frame.put(payload);
+			frames.add(frame.toByteArray());
+			stream.put(frame.toByteArray());
+		}
+		byte[] data = stream.toByteArray();
+
+		/* split frames (reads of up to 7 bytes) and coalesced frames */
+		int[] maxReads = { 1, 7, 2000, data.length };
+		for (int maxRead : maxReads) {
+			FrameDecoder decoder = new FrameDecoder(new ChoppingInputStream(
+					data, random, maxRead));
+			for (int i = 0; i < frames.size(); i++) {
+				if (!Arrays.equals(frames.get(i), decoder.readFrame())) {
+					check(false, "reads of up to " + maxRead
+							+ " bytes: frame " + i + " is different");
+					break;
+				}
+			}
+		}
+
+		/* a stream that ends in the middle of a frame */
+		FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(
+				Arrays.copyOf(data, frames.get(0).length + 10)));
+		decoder.readFrame();
+		try {
+			decoder.readFrame();
+			check(false, "incomplete frame accepted");
+		} catch (GjokiiException e) {
+			/* expected */
+		}
+		decoder = new FrameDecoder(new ByteArrayInputStream(new byte[] { 0x01,
+				0x02, 0x03, 0x04, 0x00, 0x00 }));
+		try {
+			decoder.readFrame();
+			check(false, "invalid header accepted");
+		} catch (GjokiiException e) {
+			/* expected */
+		}
+
+		testDirectoryList();
+		System.out.println("(I) frame decoder: " + failures + " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		f.delete();
+	}
+
+	/**
+	 * List directories of a simulated phone with a latency per reply, the
+	 * listing should not wait longer than the replies take
+	 */
+	private static void testDirectoryList() throws Exception {
+		File dir = File.createTempFile("gjokii-frames", null);
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("unable to create temporary directory");
+		try {
+			File full = new File(dir, "full");
+			full.mkdir();
+			for (int i = 0; i < 50; i++)
+				new FileOutputStream(new File(full, "file" + i)).close();
+			new File(dir, "empty").mkdir();
+
+			SimulatedPhone p = new SimulatedPhone(dir);
+			p.setLatency(5);
+			p.setTimeout(10000);
+			Gjokii g = new Gjokii(p, false);
+			try {
+				long start = System.currentTimeMillis();
+				for (int i = 0; i < 10; i++) {
+					check(g.getDirectoryList("/full/").size() == 50,
+							"wrong number of entries in /full/");
+					check(g.getDirectoryList("/").size() == 2,
+							"wrong number of entries in /");
+				}
+				long time = System.currentTimeMillis() - start;
+				/* every listing is one FILE_LIST and at most one FILE_INFO */
+				check(time < 20 * 2 * 5 + 500, "20 listings took " + time
+						+ " ms");
+				check(g.getDirectoryList("/empty/").size() == 1,
+						"wrong reply for an empty directory");
+			} finally {
+				g.close();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+}
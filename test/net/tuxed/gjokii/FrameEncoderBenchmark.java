@@ -0,0 +1,195 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Encodes frames of file blocks with FrameEncoder and, for comparison, the
+ * way send() did before: a header array with the data appended to it with
+ * Utils.appendToByteArray.
+ *
+ * Both ways should give the same frames. The bytes allocated per frame are
+ * read from the allocation counter of the thread if the JVM has one
+ * (com.sun.management.ThreadMXBean), FrameEncoder should not allocate at all
+ * once its buffer is large enough. Finally a file is put on a simulated phone
+ * in 256 byte blocks to show the throughput of the whole send path.
+ *
+ * Usage: FrameEncoderBenchmark [frames] [rounds], by default 200000 frames
+ * and 3 rounds. The exit status is 0 if the frames are the same and
+ * FrameEncoder does not allocate per frame.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class FrameEncoderBenchmark {
+	private static final int FRAMES = 200000;
+	private static final int ROUNDS = 3;
+	private static final int BLOCK_SIZE = 256;
+
+	/**
+	 * Consumes the frames, the checksum keeps the data alive
+	 */
+	private static class Sink extends OutputStream {
+		private long checksum = 0;
+
+		public void write(int b) {
+			checksum += b & 0xff;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			checksum += len + (b[off] & 0xff) + (b[off + len - 1] & 0xff);
+		}
+	}
+
+	private static Method allocatedBytes;
+
+	public static void main(String[] args) throws Exception {
+		int frames = (args.length > 0) ? Integer.parseInt(args[0]) : FRAMES;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : ROUNDS;
+		try {
+			Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+			if (c.isInstance(ManagementFactory.getThreadMXBean()))
+				allocatedBytes = c.getMethod("getThreadAllocatedBytes",
+						long.class);
+		} catch (ClassNotFoundException e) {
+			/* no allocation counter */
+		}
+		int failures = 0;
+
+		byte[] block = new byte[BLOCK_SIZE];
+		new Random(1).nextBytes(block);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		writeAppended(block, expected);
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		FrameEncoder encoder = new FrameEncoder(64);
+		writeEncoded(encoder, block, actual);
+		if (!Arrays.equals(expected.toByteArray(), actual.toByteArray())) {
+			System.err.println("(E) FrameEncoder gives a different frame");
+			failures++;
+		}
+
+		Sink sink = new Sink();
+		for (int round = 0; round < rounds; round++) {
+			long bytes = allocated();
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; i++)
+				writeEncoded(encoder, block, sink);
+			long time = System.nanoTime() - start;
+			bytes = allocated() - bytes;
+			report("round " + round + ": FrameEncoder", frames, time, bytes);
+			/* the first round warms up, later rounds should not allocate */
+			if (round > 0 && allocatedBytes != null && bytes >= frames) {
+				System.err.println("(E) FrameEncoder allocates per frame");
+				failures++;
+			}
+
+			bytes = allocated();
+			start = System.nanoTime();
+			for (int i = 0; i < frames; i++)
+				writeAppended(block, sink);
+			time = System.nanoTime() - start;
+			bytes = allocated() - bytes;
+			report("round " + round + ": appendToByteArray", frames, time,
+					bytes);
+		}
+
+		File source = File.createTempFile("gjokii-encoder", null);
+		File phoneRoot = File.createTempFile("gjokii-encoder", null);
+		try {
+			byte[] content = new byte[BLOCK_SIZE * 400];
+			new Random(2).nextBytes(content);
+			FileOutputStream fos = new FileOutputStream(source);
+			try {
+				fos.write(content);
+			} finally {
+				fos.close();
+			}
+			if (!phoneRoot.delete() || !phoneRoot.mkdir())
+				throw new IOException("unable to create temporary directory");
+			SimulatedPhone p = new SimulatedPhone(phoneRoot);
+			p.setTimeout(10000);
+			Gjokii g = new Gjokii(p, false);
+			for (int i = 0; i < 3; i++) {
+				long start = System.nanoTime();
+				g.putFile("/upload", source);
+				long time = System.nanoTime() - start;
+				System.out.println("(I) putFile: " + content.length
+						+ " bytes in " + (content.length / BLOCK_SIZE)
+						+ " blocks in " + time / 1000000 + " ms");
+			}
+			g.close();
+		} finally {
+			source.delete();
+			new File(phoneRoot, "upload").delete();
+			phoneRoot.delete();
+		}
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	/**
+	 * Get the number of bytes allocated by this thread so far
+	 *
+	 * @return the number of bytes, or 0 if the JVM does not count them
+	 */
+	private static long allocated() throws Exception {
+		if (allocatedBytes == null)
+			return 0;
+		return (Long) allocatedBytes.invoke(
+				ManagementFactory.getThreadMXBean(), Thread.currentThread()
+						.getId());
+	}
+
+	private static void report(String what, int frames, long time, long bytes) {
+		String allocation = (allocatedBytes != null) ? ", "
+				+ (bytes / frames) + " bytes allocated per frame" : "";
+		System.out.println("(I) " + what + ": " + frames + " frames in "
+				+ time / 1000000 + " ms" + allocation);
+	}
+
+	/**
+	 * Send a block the way putFile does
+	 */
+	private static void writeEncoded(FrameEncoder encoder, byte[] block,
+			OutputStream os) throws IOException {
+		encoder.begin((byte) 0x58);
+		encoder.put(block);
+		encoder.writeTo(os);
+	}
+
+	/**
+	 * Send a block the way send() did before FrameEncoder
+	 */
+	private static void writeAppended(byte[] block, OutputStream os)
+			throws IOException {
+		byte[] header = { 0x19, 0x00, 0x10, 0x58, 0x00, 0x00 };
+		header[4] = (byte) (block.length >> 8);
+		header[5] = (byte) block.length;
+		os.write(Utils.appendToByteArray(header, block));
+		os.flush();
+	}
+}
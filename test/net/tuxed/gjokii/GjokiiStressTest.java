@@ -0,0 +1,209 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Talks to many simulated phones at the same time, one Gjokii object and one
+ * thread per phone.
+ *
+ * Every phone gets its own file system with a random file. In every round the
+ * file is fetched with getFile and openInputStream, using a different window
+ * size each round, and a new random file is written with putFile. Everything
+ * is compared byte for byte. The phones use four models with different block
+ * size limits and share their negotiated block sizes, so the block sizes per
+ * model are exercised from many threads as well.
+ *
+ * Usage: GjokiiStressTest [phones] [rounds], by default 32 phones and 4
+ * rounds. The exit status is 0 if every phone succeeded.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class GjokiiStressTest {
+	private static final int PHONES = 32;
+	private static final int ROUNDS = 4;
+
+	public static void main(String[] args) throws Exception {
+		final int phones = (args.length > 0) ? Integer.parseInt(args[0])
+				: PHONES;
+		final int rounds = (args.length > 1) ? Integer.parseInt(args[1])
+				: ROUNDS;
+		final File dir = createTempDir();
+		final Map<String, Integer> blockSizes = new ConcurrentHashMap<String, Integer>();
+		/* let all phones start at the same moment */
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(phones);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int i = 0; i < phones; i++) {
+			final int phone = i;
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					start.await();
+					runPhone(phone, dir, rounds, blockSizes);
+					return null;
+				}
+			}));
+		}
+		long startTime = System.currentTimeMillis();
+		start.countDown();
+		int failures = 0;
+		for (int i = 0; i < phones; i++) {
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e) {
+				System.err.println("(E) phone " + i + ": " + e.getCause());
+				failures++;
+			}
+		}
+		executor.shutdown();
+		delete(dir);
+		System.out.println("(I) " + phones + " phones, " + rounds
+				+ " rounds: " + failures + " failed in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	/**
+	 * Compare the data that was transferred with the original
+	 */
+	private static void check(byte[] expected, byte[] actual, String what)
+			throws GjokiiException {
+		if (!Arrays.equals(expected, actual))
+			throw new GjokiiException(what + " returned different data");
+	}
+
+	private static File createTempDir() throws IOException {
+		File dir = File.createTempFile("gjokii-stress", null);
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("unable to create temporary directory");
+		return dir;
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		f.delete();
+	}
+
+	private static byte[] read(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			return Utils.readStream(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Run all rounds against one phone
+	 *
+	 * @param phone
+	 *            the number of the phone
+	 * @param dir
+	 *            the directory to create the files of the phone in
+	 * @param rounds
+	 *            the number of rounds
+	 * @param blockSizes
+	 *            the negotiated block sizes shared by all phones
+	 * @throws Exception
+	 *             if a transfer fails or returns different data
+	 */
+	private static void runPhone(int phone, File dir, int rounds,
+			Map<String, Integer> blockSizes) throws Exception {
+		Random random = new Random(phone);
+		File phoneRoot = new File(dir, "phone" + phone);
+		File localDir = new File(dir, "local" + phone);
+		localDir.mkdirs();
+		byte[] content = new byte[1000 + random.nextInt(200000)];
+		random.nextBytes(content);
+		write(new File(phoneRoot, "data" + File.separator + "file.bin"),
+				content);
+
+		SimulatedPhone p = new SimulatedPhone(phoneRoot);
+		/* phones of the same model share the negotiated block size */
+		p.setModel("RM-SIM" + (phone % 4));
+		p.setMaxBlockSize(1024 << (phone % 4));
+		p.setLatency(1);
+		p.setTimeout(30000);
+		Gjokii g = new Gjokii(p, false);
+		g.setBlockSizes(blockSizes);
+		try {
+			for (int round = 0; round < rounds; round++) {
+				g.setWindowSize(1 + (phone + round) % 8);
+				File copy = new File(localDir, "file" + round);
+				g.getFile("/data/file.bin", copy);
+				check(content, read(copy), "getFile in round " + round);
+
+				InputStream is = g.openInputStream("/data/file.bin");
+				try {
+					check(content, Utils.readStream(is),
+							"openInputStream in round " + round);
+				} finally {
+					is.close();
+				}
+
+				byte[] upload = new byte[random.nextInt(5000)];
+				random.nextBytes(upload);
+				File source = new File(localDir, "upload" + round);
+				write(source, upload);
+				g.putFile("/data/upload" + round, source);
+				check(upload, read(new File(phoneRoot, "data"
+						+ File.separator + "upload" + round)),
+						"putFile in round " + round);
+
+				if (g.getDirectoryList("/data/").size() != round + 2)
+					throw new GjokiiException("wrong directory list in round "
+							+ round);
+			}
+		} finally {
+			g.close();
+		}
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		f.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+	}
+}
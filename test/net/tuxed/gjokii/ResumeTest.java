@@ -0,0 +1,323 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Drops the link to a simulated phone in the middle of a transfer and checks
+ * that the transfer continues where it stopped.
+ *
+ * For getFile the partial file and the checkpoint next to it are checked
+ * after the link dropped: the checkpoint should hold the SHA-1 hash of the
+ * bytes in the partial file. Fetching the file again with resume should only
+ * transfer the rest of the file and give a file identical to the one on the
+ * phone, without the partial file and the checkpoint. This is done one block
+ * at a time and with a window of 8 blocks.
+ *
+ * For FileSystemMirror the link drops while the files of a directory are
+ * copied, the next sync should complete the copy.
+ *
+ * A transfer that fails for another reason than the link should close the
+ * file on the phone.
+ *
+ * The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class ResumeTest {
+	/**
+	 * A simulated phone whose link drops after a number of bytes were
+	 * received from it
+	 */
+	private static class DroppingTransport implements Transport {
+		private SimulatedPhone phone;
+		private long dropAfter;
+		private long received = 0;
+
+		private DroppingTransport(SimulatedPhone phone, long dropAfter) {
+			this.phone = phone;
+			this.dropAfter = dropAfter;
+		}
+
+		public void close() throws GjokiiException {
+			phone.close();
+		}
+
+		public InputStream getInputStream() {
+			final InputStream is = phone.getInputStream();
+			return new InputStream() {
+				public int available() throws IOException {
+					return is.available();
+				}
+
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xff;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (received >= dropAfter)
+						throw new IOException("link dropped");
+					int n = is.read(b, off, (int) Math.min(len, dropAfter
+							- received));
+					if (n > 0)
+						received += n;
+					return n;
+				}
+			};
+		}
+
+		public OutputStream getOutputStream() {
+			return phone.getOutputStream();
+		}
+
+		public void open() throws GjokiiException {
+			phone.open();
+		}
+
+		public void setTimeout(int timeout) {
+			phone.setTimeout(timeout);
+		}
+	}
+
+	private static final int FILE_SIZE = 300000;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		File dir = File.createTempFile("gjokii-resume", null);
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("unable to create temporary directory");
+		try {
+			File phoneRoot = new File(dir, "phone");
+			byte[] content = new byte[FILE_SIZE];
+			new Random(1).nextBytes(content);
+			write(new File(phoneRoot, "data" + File.separator + "file.bin"),
+					content);
+			for (int i = 0; i < 4; i++) {
+				byte[] small = new byte[50000 + i];
+				new Random(i).nextBytes(small);
+				write(new File(phoneRoot, "mirror" + File.separator + "file"
+						+ i), small);
+			}
+
+			testGetFile(phoneRoot, new File(dir, "window1"), content, 1);
+			testGetFile(phoneRoot, new File(dir, "window8"), content, 8);
+			testMirror(phoneRoot, new File(dir, "mirror"));
+			testClose(phoneRoot, dir);
+		} finally {
+			delete(dir);
+		}
+		System.out.println("(I) resume: " + failures + " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Let transfers fail on the local side and check that the files on the
+	 * phone are closed
+	 *
+	 * @param phoneRoot
+	 *            the file system of the phone
+	 * @param dir
+	 *            a local directory
+	 */
+	private static void testClose(File phoneRoot, File dir) throws Exception {
+		SimulatedPhone p = new SimulatedPhone(phoneRoot);
+		p.setTimeout(10000);
+		Gjokii g = new Gjokii(p, false);
+		try {
+			g.getFile("/data/file.bin", new File(dir, "missing"
+					+ File.separator + "file.bin"), true);
+			check(false, "close: getFile to a missing directory did not fail");
+		} catch (GjokiiException e) {
+			/* the target cannot be created */
+		}
+		check(p.getOpenFiles() == 0, "close: getFile left the file open");
+		try {
+			g.putFile("/data/upload", new File(dir, "missing"));
+			check(false, "close: putFile of a missing file did not fail");
+		} catch (GjokiiException e) {
+			/* the source cannot be read */
+		}
+		check(p.getOpenFiles() == 0, "close: putFile left the file open");
+		g.close();
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		f.delete();
+	}
+
+	/**
+	 * Connect to a simulated phone
+	 *
+	 * @param phoneRoot
+	 *            the file system of the phone
+	 * @param dropAfter
+	 *            the number of bytes after which the link drops
+	 * @return the connection
+	 * @throws GjokiiException
+	 *             if the phone cannot be initialized
+	 */
+	private static Gjokii connect(File phoneRoot, long dropAfter)
+			throws GjokiiException {
+		SimulatedPhone p = new SimulatedPhone(phoneRoot);
+		p.setMaxBlockSize(4096);
+		p.setTimeout(10000);
+		return new Gjokii(new DroppingTransport(p, dropAfter), false);
+	}
+
+	private static byte[] read(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			return Utils.readStream(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Drop the link while getting a file and get it again with resume
+	 *
+	 * @param phoneRoot
+	 *            the file system of the phone
+	 * @param localDir
+	 *            the directory to write the file to
+	 * @param content
+	 *            the content of the file on the phone
+	 * @param window
+	 *            the window size for the transfer
+	 */
+	private static void testGetFile(File phoneRoot, File localDir,
+			byte[] content, int window) throws Exception {
+		String name = "window " + window + ": ";
+		localDir.mkdirs();
+		File target = new File(localDir, "file.bin");
+		File part = new File(localDir, "file.bin.part");
+		File checkpoint = new File(localDir, "file.bin.checkpoint");
+
+		Gjokii g = connect(phoneRoot, FILE_SIZE * 2 / 3);
+		g.setWindowSize(window);
+		try {
+			g.getFile("/data/file.bin", target, true);
+			check(false, name + "the transfer did not fail");
+		} catch (GjokiiException e) {
+			/* the link dropped */
+		}
+		g.close();
+		check(!target.exists(), name + "an incomplete file has the real name");
+		check(part.exists() && checkpoint.exists(), name
+				+ "no partial file or checkpoint");
+		if (!checkpoint.exists())
+			return;
+
+		Properties p = new Properties();
+		FileInputStream fis = new FileInputStream(checkpoint);
+		try {
+			p.load(fis);
+		} finally {
+			fis.close();
+		}
+		int offset = Integer.parseInt(p.getProperty("offset"));
+		check(offset > 0 && offset < FILE_SIZE && offset <= part.length(),
+				name + "wrong offset " + offset + " in checkpoint");
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		md.update(content, 0, offset);
+		check(Utils.byteArrayToString(md.digest())
+				.equals(p.getProperty("sha1")), name
+				+ "wrong SHA-1 in checkpoint");
+
+		g = connect(phoneRoot, Long.MAX_VALUE);
+		g.setWindowSize(window);
+		g.getFile("/data/file.bin", target, true);
+		long received = g.getMetrics().getBytesReceived();
+		g.close();
+		check(Arrays.equals(content, read(target)), name
+				+ "the resumed file is different");
+		check(received < FILE_SIZE - offset + FILE_SIZE / 10, name
+				+ "the whole file was transferred again");
+		check(!part.exists() && !checkpoint.exists(), name
+				+ "the partial file or checkpoint is left behind");
+	}
+
+	/**
+	 * Drop the link while mirroring a directory and sync again
+	 *
+	 * @param phoneRoot
+	 *            the file system of the phone
+	 * @param localDir
+	 *            the directory to mirror to
+	 */
+	private static void testMirror(File phoneRoot, File localDir)
+			throws Exception {
+		Gjokii g = connect(phoneRoot, 120000);
+		try {
+			new FileSystemMirror(g, localDir).sync("/mirror/", false);
+			check(false, "mirror: the sync did not fail");
+		} catch (GjokiiException e) {
+			/* the link dropped */
+		}
+		g.close();
+
+		g = connect(phoneRoot, Long.MAX_VALUE);
+		FileSystemMirror m = new FileSystemMirror(g, localDir);
+		m.sync("/mirror/", false);
+		g.close();
+		check(m.getTransferred() < 4, "mirror: all files were transferred again");
+		for (int i = 0; i < 4; i++) {
+			check(Arrays.equals(read(new File(phoneRoot, "mirror"
+					+ File.separator + "file" + i)), read(new File(localDir,
+					"file" + i))), "mirror: file" + i + " is different");
+			check(!new File(localDir, "file" + i + ".part").exists(),
+					"mirror: a partial file is left behind");
+		}
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		f.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+	}
+}
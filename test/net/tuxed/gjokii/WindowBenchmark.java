@@ -0,0 +1,122 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Gets a file from a simulated phone that takes some time to answer every
+ * request, with different window sizes.
+ *
+ * With a window of 1 every block request waits for the reply to the one
+ * before it, with larger windows the latency of the requests in flight
+ * overlaps. The phone returns blocks of at most 1024 bytes.
+ *
+ * Usage: WindowBenchmark [size] [latency], by default a file of 100000 bytes
+ * and a latency of 5 ms. The exit status is 0 if every window gave the same
+ * file and a window of 8 took less than half the time of a window of 1.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class WindowBenchmark {
+	private static final int SIZE = 100000;
+	private static final int LATENCY = 5;
+	private static final int[] WINDOWS = { 1, 2, 4, 8, 16 };
+
+	public static void main(String[] args) throws Exception {
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : SIZE;
+		int latency = (args.length > 1) ? Integer.parseInt(args[1]) : LATENCY;
+		File dir = File.createTempFile("gjokii-window", null);
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("unable to create temporary directory");
+		int failures = 0;
+		long[] times = new long[WINDOWS.length];
+		try {
+			File phoneRoot = new File(dir, "phone");
+			phoneRoot.mkdir();
+			byte[] content = new byte[size];
+			new Random(1).nextBytes(content);
+			FileOutputStream fos = new FileOutputStream(new File(phoneRoot,
+					"file.bin"));
+			try {
+				fos.write(content);
+			} finally {
+				fos.close();
+			}
+
+			for (int i = 0; i < WINDOWS.length; i++) {
+				SimulatedPhone p = new SimulatedPhone(phoneRoot);
+				p.setMaxBlockSize(1024);
+				p.setLatency(latency);
+				p.setTimeout(30000);
+				Gjokii g = new Gjokii(p, false);
+				g.setWindowSize(WINDOWS[i]);
+				/* negotiate the block size before measuring */
+				g.getFile("/file.bin", new File(dir, "warmup"));
+				File target = new File(dir, "window" + WINDOWS[i]);
+				long start = System.nanoTime();
+				g.getFile("/file.bin", target);
+				times[i] = System.nanoTime() - start;
+				g.close();
+				if (!Arrays.equals(content, read(target))) {
+					System.err.println("(E) window " + WINDOWS[i]
+							+ " returned different data");
+					failures++;
+				}
+				System.out.println("(I) window " + WINDOWS[i] + ": " + size
+						+ " bytes in " + times[i] / 1000000 + " ms, "
+						+ (size * 1000000000L / times[i] / 1024) + " KB/s");
+			}
+		} finally {
+			delete(dir);
+		}
+		/* WINDOWS[3] is a window of 8 */
+		if (latency > 0 && times[3] * 2 > times[0]) {
+			System.err.println("(E) a window of 8 is not faster than a "
+					+ "window of 1");
+			failures++;
+		}
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		f.delete();
+	}
+
+	private static byte[] read(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			return Utils.readStream(is);
+		} finally {
+			is.close();
+		}
+	}
+}
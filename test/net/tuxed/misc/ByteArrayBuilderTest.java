@@ -0,0 +1,104 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+import java.util.Arrays;
+
+/**
+ * Builds byte arrays with ByteArrayBuilder.
+ *
+ * The put methods should grow the buffer as needed, the set methods should
+ * only overwrite bytes that were added before, even when the buffer is larger.
+ *
+ * The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class ByteArrayBuilderTest {
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		ByteArrayBuilder b = new ByteArrayBuilder(1);
+		b.putByte(0x01).putShort(0x0203).putShortLE(0x0504).putInt(0x06070809)
+				.putIntLE(0x0d0c0b0a).putZeros(2);
+		check(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
+				12, 13, 0, 0 }, b.toByteArray()), "put wrote different data");
+		for (int i = 0; i < 100; i++)
+			b.putInt(i);
+		check(b.length() == 415, "wrong length " + b.length() + " after growing");
+
+		b.clear();
+		b.putZeros(6);
+		b.setByte(0, 0x01);
+		b.setShort(1, 0x0203);
+		b.setShortLE(4, 0x0605);
+		check(Arrays.equals(new byte[] { 1, 2, 3, 0, 5, 6 }, b.toByteArray()),
+				"set wrote different data");
+		b.setInt(2, 0x03040506);
+		b.setIntLE(0, 0x04030201);
+		check(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6 }, b.toByteArray()),
+				"set wrote different data");
+
+		/* the buffer is larger than the data, but only the data can be set */
+		checkSetFails(b, 6, 1);
+		checkSetFails(b, 5, 2);
+		checkSetFails(b, 3, 4);
+		checkSetFails(b, -1, 1);
+		checkSetFails(b, Integer.MAX_VALUE, 4);
+
+		System.out.println("(I) byte array builder: " + failures
+				+ " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Check that setting a value outside the data fails and changes nothing
+	 *
+	 * @param b
+	 *            the builder
+	 * @param position
+	 *            the position of the value
+	 * @param size
+	 *            the size of the value in bytes
+	 */
+	private static void checkSetFails(ByteArrayBuilder b, int position,
+			int size) {
+		byte[] before = b.toByteArray();
+		try {
+			if (size == 1)
+				b.setByte(position, 0xff);
+			else if (size == 2)
+				b.setShort(position, 0xffff);
+			else
+				b.setInt(position, 0xffffffff);
+			check(false, "set at " + position + " with " + b.length()
+					+ " bytes did not fail");
+		} catch (ArrayIndexOutOfBoundsException e) {
+			/* outside the data */
+		}
+		check(Arrays.equals(before, b.toByteArray()), "a failed set at "
+				+ position + " changed the data");
+	}
+}
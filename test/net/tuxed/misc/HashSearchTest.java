@@ -0,0 +1,113 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares HashSearch with a search through every sub array, shortest first
+ * and then lowest offset.
+ *
+ * The data is DER with the same bytes both as the value of an element and
+ * inside an OCTET STRING that does not hold DER, so at an offset that is not
+ * an element boundary. Data that is not DER is searched as well.
+ *
+ * The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class HashSearchTest {
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(1);
+		byte[] value = new byte[20];
+		random.nextBytes(value);
+		value[0] = 0x30;
+
+		/* SEQUENCE { OCTET STRING { ff ff ff value }, OCTET STRING { value } } */
+		ByteArrayBuilder b = new ByteArrayBuilder(64);
+		b.putByte(0x30).putByte(2 + 3 + value.length + 2 + value.length);
+		b.putByte(0x04).putByte(3 + value.length).putByte(0xff).putByte(0xff)
+				.putByte(0xff).put(value);
+		b.putByte(0x04).putByte(value.length).put(value);
+		byte[] der = b.toByteArray();
+
+		MessageDigest md = MessageDigest.getInstance("SHA1");
+		compare("duplicate value", der, md.digest(value));
+		int[] result = HashSearch.find(der, md.digest(value));
+		check(result != null && result[0] == 7, "duplicate value: offset "
+				+ ((result == null) ? -1 : result[0]) + " instead of 7");
+		compare("whole data", der, md.digest(der));
+		compare("empty", der, md.digest());
+		compare("no match", der, md.digest(new byte[] { 1, 2, 3 }));
+
+		byte[] noise = new byte[64];
+		random.nextBytes(noise);
+		md.update(noise, 10, 30);
+		compare("not DER", noise, md.digest());
+
+		System.out.println("(I) hash search: " + failures + " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Compare the result of HashSearch with the one of a search through every
+	 * sub array
+	 *
+	 * @param what
+	 *            the name of the case
+	 * @param hayStack
+	 *            the data to analyze
+	 * @param needle
+	 *            the hash being looked for
+	 */
+	private static void compare(String what, byte[] hayStack, byte[] needle)
+			throws Exception {
+		int[] expected = searchAll(hayStack, needle);
+		int[] actual = HashSearch.find(hayStack, needle);
+		check(Arrays.equals(expected, actual), what + ": "
+				+ Arrays.toString(actual) + " instead of "
+				+ Arrays.toString(expected));
+	}
+
+	/**
+	 * Hash every sub array, shortest first and then lowest offset
+	 */
+	private static int[] searchAll(byte[] hayStack, byte[] needle)
+			throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA1");
+		for (int length = 0; length <= hayStack.length; length++) {
+			for (int offset = 0; offset <= hayStack.length - length; offset++) {
+				md.update(hayStack, offset, length);
+				if (Arrays.equals(md.digest(), needle))
+					return new int[] { offset, length };
+			}
+		}
+		return null;
+	}
+}
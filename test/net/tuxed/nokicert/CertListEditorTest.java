@@ -0,0 +1,98 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.tuxed.misc.ByteArrayBuilder;
+
+/**
+ * Edits synthetic certificate lists that end with bytes after the last entry
+ * and compares the result with the list that is expected, byte for byte.
+ * 
+ * The exit status is 0 if all checks passed.
+ * 
+ * @author F. Kooman <fkooman@tuxed.net>
+ * 
+ */
+public class CertListEditorTest {
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		testList(false);
+		testList(true);
+		System.out.println("(I) certificate list editor: " + failures
+				+ " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayBuilder b = new ByteArrayBuilder(1024);
+		for (byte[] part : parts)
+			b.put(part);
+		return b.toByteArray();
+	}
+
+	/**
+	 * Edit a list of three entries followed by a tail
+	 * 
+	 * @param littleEndian
+	 *            the byte order of the lengths
+	 */
+	private static void testList(boolean littleEndian) throws Exception {
+		String order = littleEndian ? "little endian: " : "big endian: ";
+		Random random = new Random(littleEndian ? 3 : 4);
+		byte[] a = CertListParserTest.entry(random, "a", littleEndian);
+		byte[] b = CertListParserTest.entry(random, "b", littleEndian);
+		byte[] c = CertListParserTest.entry(random, "c", littleEndian);
+		byte[] d = CertListParserTest.entry(random, "d", littleEndian);
+		byte[] tail = { 0x00, 0x00, 0x01, 0x02, 0x03, 0x04 };
+		byte[] list = concat(a, b, c, tail);
+
+		CertListEditor editor = new CertListEditor(new CertListParser(list));
+		check(!editor.isModified() && Arrays.equals(list, editor.toByteArray()),
+				order + "an unmodified list is not written as it was");
+
+		editor = new CertListEditor(new CertListParser(list));
+		editor.remove(1);
+		editor.replace(2, d);
+		editor.add(b);
+		check(Arrays.equals(concat(a, d, b, tail), editor.toByteArray()), order
+				+ "wrong list after remove, replace and add");
+
+		editor = new CertListEditor(new CertListParser(list));
+		for (int i = 0; i < 3; i++)
+			editor.remove(i);
+		check(Arrays.equals(tail, editor.toByteArray()), order
+				+ "removing every entry does not leave the tail");
+		check(new CertListParser(editor.toByteArray()).size() == 0, order
+				+ "the list without entries cannot be parsed");
+
+		editor = new CertListEditor(new CertListParser(concat(a, b, a, tail)));
+		check(editor.compact() == 1
+				&& Arrays.equals(concat(a, b, tail), editor.toByteArray()),
+				order + "wrong list after compact");
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.util.Random;
+
+import net.tuxed.misc.ByteArrayBuilder;
+
+/**
+ * Parses a synthetic certificate list and looks up every entry in it by
+ * fingerprint and by subject and issuer hash.
+ * 
+ * Usage: CertListParserBenchmark [entries] [rounds], by default 50000
+ * entries and 5 rounds. Every round prints the time needed to parse the list
+ * and to do the lookups. The exit status is 0 if all entries were found.
+ * 
+ * @author F. Kooman <fkooman@tuxed.net>
+ * 
+ */
+public class CertListParserBenchmark {
+	private static final int ENTRIES = 50000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int entries = (args.length > 0) ? Integer.parseInt(args[0]) : ENTRIES;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : ROUNDS;
+		Random random = new Random(1);
+		ByteArrayBuilder b = new ByteArrayBuilder(entries * 160);
+		for (int i = 0; i < entries; i++)
+			b.put(CertListParserTest.entry(random, "certificate" + i, false));
+		byte[] list = b.toByteArray();
+
+		int missing = 0;
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			CertListParser p = new CertListParser(list);
+			long parsed = System.nanoTime();
+			CertListParser.Entry e = p.getEntry(0);
+			for (int i = 0; i < p.size(); i++) {
+				e.moveTo(i);
+				if (p.indexOfFingerprint(e.getFingerprint()) != i)
+					missing++;
+				if (!p.containsSubjectAndIssuer(e.getSubjectHash(), e
+						.getIssuerHash()))
+					missing++;
+			}
+			long found = System.nanoTime();
+			if (p.size() != entries)
+				missing += entries - p.size();
+			System.out.println("(I) " + entries + " entries, " + list.length
+					+ " bytes: parse " + (parsed - start) / 1000000
+					+ " ms, 2x" + entries + " lookups " + (found - parsed)
+					/ 1000000 + " ms");
+		}
+		if (missing != 0)
+			System.err.println("(E) " + missing + " lookups failed");
+		System.exit((missing == 0) ? 0 : 1);
+	}
+}
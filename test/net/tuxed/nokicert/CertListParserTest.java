@@ -0,0 +1,154 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.misc.ByteArrayBuilder;
+
+/**
+ * Parses synthetic certificate lists in big and little endian order, with
+ * and without bytes after the last entry.
+ * 
+ * A list that ends with a few bytes of padding, or with bytes that are not a
+ * whole entry, should give the whole entries before them. Only data of which
+ * not even the first entry can be parsed is rejected.
+ * 
+ * The exit status is 0 if all checks passed.
+ * 
+ * @author F. Kooman <fkooman@tuxed.net>
+ * 
+ */
+public class CertListParserTest {
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		testList(false);
+		testList(true);
+
+		check(new CertListParser(new byte[0]).size() == 0, "empty list");
+		check(new CertListParser(new byte[4]).size() == 0,
+				"list of only padding");
+		byte[] garbage = new byte[300];
+		Arrays.fill(garbage, (byte) 0xff);
+		try {
+			new CertListParser(garbage);
+			check(false, "garbage accepted as certificate list");
+		} catch (GjokiiException e) {
+			/* expected */
+		}
+		System.out.println("(I) certificate list parser: " + failures
+				+ " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Create an entry like CertParser.getCDFEntry does, with random hashes
+	 * 
+	 * @param random
+	 *            the source of the hashes
+	 * @param name
+	 *            the file name of the certificate
+	 * @param littleEndian
+	 *            the byte order of the length
+	 * @return the entry
+	 */
+	static byte[] entry(Random random, String name, boolean littleEndian) {
+		byte[] hashes = new byte[100];
+		random.nextBytes(hashes);
+		/* the field between the modulus and subject hash is always zero */
+		Arrays.fill(hashes, 40, 60, (byte) 0);
+		ByteArrayBuilder b = new ByteArrayBuilder(256);
+		b.putZeros(4);
+		b.put(new byte[] { 0x01, 0x41, 0x02, 0x10, 0x14, 0x00, 0x14, 0x14 });
+		b.put(hashes);
+		b.putByte(name.length() + 1);
+		b.put(name.getBytes());
+		b.putZeros(2);
+		/* key usage: apps signing */
+		b.put(new byte[] { 0x0a, 0x06, 0x08, 0x2b, 0x06, 0x01, 0x05, 0x05,
+				0x07, 0x03, 0x03 });
+		b.putZeros(4 + (4 - b.length() % 4) % 4);
+		if (littleEndian)
+			b.setShortLE(0, b.length());
+		else
+			b.setShort(0, b.length());
+		return b.toByteArray();
+	}
+
+	/**
+	 * Parse a list of three entries with different endings
+	 * 
+	 * @param littleEndian
+	 *            the byte order of the lengths
+	 */
+	private static void testList(boolean littleEndian) throws Exception {
+		String order = littleEndian ? "little endian: " : "big endian: ";
+		Random random = new Random(littleEndian ? 1 : 2);
+		ByteArrayBuilder b = new ByteArrayBuilder(1024);
+		byte[][] entries = new byte[3][];
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = entry(random, "cert" + i, littleEndian);
+			b.put(entries[i]);
+		}
+		byte[] list = b.toByteArray();
+
+		/* no tail, up to 4 bytes of padding, a piece of an entry */
+		int[] tails = { 0, 4, 50 };
+		for (int tail : tails) {
+			String name = order + tail + " bytes at the end: ";
+			byte[] data = new byte[list.length + tail];
+			System.arraycopy(list, 0, data, 0, list.length);
+			System.arraycopy(entries[0], 0, data, list.length, tail);
+			CertListParser p = new CertListParser(data);
+			check(p.hasLittleEndianSizeBytes() == littleEndian, name
+					+ "wrong byte order");
+			check(p.size() == entries.length, name + p.size()
+					+ " entries instead of " + entries.length);
+			check(p.getTailLength() == tail, name + "tail of "
+					+ p.getTailLength() + " bytes");
+			for (int i = 0; i < p.size() && i < entries.length; i++) {
+				CertListParser.Entry e = p.getEntry(i);
+				check(e.getFileName().equals("cert" + i), name
+						+ "wrong file name " + e.getFileName());
+				check(e.getKeyUsage() == NokiCertUtils.APPS_SIGNING, name
+						+ "wrong key usage of " + e.getFileName());
+				check(p.indexOfFingerprint(e.getFingerprint()) == i, name
+						+ "fingerprint of " + e.getFileName() + " not found");
+				check(p.containsSubjectAndIssuer(e.getSubjectHash(), e
+						.getIssuerHash()), name + "subject and issuer of "
+						+ e.getFileName() + " not found");
+			}
+		}
+
+		/* a list of which only the first entry is whole */
+		byte[] data = new byte[entries[0].length + 50];
+		System.arraycopy(list, 0, data, 0, data.length);
+		CertListParser p = new CertListParser(data);
+		check(p.size() == 1 && p.hasLittleEndianSizeBytes() == littleEndian,
+				order + "first entry of a cut off list not found");
+	}
+}
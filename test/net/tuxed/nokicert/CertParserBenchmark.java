@@ -0,0 +1,100 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+/**
+ * Creates the CDF entries and reads the hashes of a corpus of certificates,
+ * the way NokiCert does when it installs them.
+ * 
+ * The first round calculates the hashes, the next rounds use the hashes that
+ * were kept. For comparison the four hashes are also calculated from scratch
+ * for every certificate with a new MessageDigest each time.
+ * 
+ * Usage: CertParserBenchmark [certificates] [rounds], by default 10000
+ * certificates and 3 rounds. The exit status is 0 if every round gave the
+ * same CDF entries.
+ * 
+ * @author F. Kooman <fkooman@tuxed.net>
+ * 
+ */
+public class CertParserBenchmark {
+	private static final int CERTIFICATES = 10000;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int certificates = (args.length > 0) ? Integer.parseInt(args[0])
+				: CERTIFICATES;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : ROUNDS;
+		byte[] der = CertParserTest.der(CertParserTest.RSA_PEM);
+
+		long start = System.nanoTime();
+		CertParser[] corpus = new CertParser[certificates];
+		for (int i = 0; i < certificates; i++)
+			corpus[i] = new CertParser(der);
+		System.out.println("(I) parsing " + certificates + " certificates: "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		byte[] expected = corpus[0].getCDFEntry(false,
+				NokiCertUtils.APPS_SIGNING);
+		int different = 0;
+		for (int round = 0; round < rounds; round++) {
+			start = System.nanoTime();
+			for (CertParser c : corpus) {
+				byte[] entry = c.getCDFEntry(false, NokiCertUtils.APPS_SIGNING);
+				c.getFingerprint();
+				c.getSubjectHash();
+				c.getIssuerHash();
+				if (!Arrays.equals(expected, entry))
+					different++;
+			}
+			System.out.println("(I) round " + round + ": " + certificates
+					+ " CDF entries and hashes in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
+
+		X509Certificate cert = (X509Certificate) CertificateFactory
+				.getInstance("X.509").generateCertificate(
+						new ByteArrayInputStream(der));
+		start = System.nanoTime();
+		for (int i = 0; i < certificates; i++) {
+			MessageDigest.getInstance("SHA1").digest(
+					cert.getIssuerX500Principal().getEncoded());
+			MessageDigest.getInstance("SHA1").digest(
+					cert.getSubjectX500Principal().getEncoded());
+			byte[] m = ((RSAPublicKey) cert.getPublicKey()).getModulus()
+					.toByteArray();
+			MessageDigest md = MessageDigest.getInstance("SHA1");
+			md.update(m, 1, m.length - 1);
+			md.digest();
+			MessageDigest.getInstance("SHA1").digest(cert.getEncoded());
+		}
+		System.out.println("(I) " + certificates
+				+ " times the hashes from scratch in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		if (different != 0)
+			System.err.println("(E) " + different + " different CDF entries");
+		System.exit((different == 0) ? 0 : 1);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import net.tuxed.gjokii.GjokiiException;
+
+/**
+ * Checks the hashes CertParser calculates against hashes calculated here,
+ * for a certificate with an RSA key and one with an EC key.
+ * 
+ * The fingerprint and the subject and issuer hashes do not depend on the key,
+ * so they should be there for both certificates. Only the RSA certificate
+ * has a modulus and a CDF entry.
+ * 
+ * The exit status is 0 if all checks passed.
+ * 
+ * @author F. Kooman <fkooman@tuxed.net>
+ * 
+ */
+public class CertParserTest {
+	/* self-signed, RSA 1024 bit */
+	static final String RSA_PEM = "-----BEGIN CERTIFICATE-----\n"
+			+ "MIICUjCCAbugAwIBAgIUOayr7hR1LC6s+LAjvPRKGKbwmYUwDQYJKoZIhvcNAQEL\n"
+			+ "BQAwOjELMAkGA1UEBhMCTkwxETAPBgNVBAoMCE5va2lDZXJ0MRgwFgYDVQQDDA9U\n"
+			+ "ZXN0IFJTQSBTaWduZXIwIBcNMjYxMDE4MDAxMDIyWhgPMjEyNjA5MjQwMDEwMjJa\n"
+			+ "MDoxCzAJBgNVBAYTAk5MMREwDwYDVQQKDAhOb2tpQ2VydDEYMBYGA1UEAwwPVGVz\n"
+			+ "dCBSU0EgU2lnbmVyMIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQCpoCAioS5h\n"
+			+ "nSiW0F5YXE1bNWJfdFX+pZTsjUQ+McJ9Y58qubpLUBCUtWP2YVsdZYilhFY148EX\n"
+			+ "GlfaUrsqsDQsklqZR97ne+ntIIxwElzx8VQwXloG1d8/siOd+u5GaeqRPzx/VdZL\n"
+			+ "HWYYEFQmQ0wUjKpuJK06u7EYFqJlV0syyQIDAQABo1MwUTAdBgNVHQ4EFgQUZEKZ\n"
+			+ "uw4P0GOCq5TZyQUqRiCo/fkwHwYDVR0jBBgwFoAUZEKZuw4P0GOCq5TZyQUqRiCo\n"
+			+ "/fkwDwYDVR0TAQH/BAUwAwEB/zANBgkqhkiG9w0BAQsFAAOBgQA3Ql6ei5EeGpgA\n"
+			+ "6e4Lx56bOuEuE+Ss02hogDUL9vpVOjt+IalcGoPb/EcSyv+htTa8AW9sd4hAUJkr\n"
+			+ "JRfklH6kW2D06AagOLy2xCeBKj5gfalRieiwwAX/ccQeg/KirK3W4/47XZDYU8zl\n"
+			+ "6UQ9zfHZqT7J7D/+1lPnvp/ZSwM+Ug==\n"
+			+ "-----END CERTIFICATE-----\n";
+
+	/* self-signed, EC P-256 */
+	static final String EC_PEM = "-----BEGIN CERTIFICATE-----\n"
+			+ "MIIByDCCAW+gAwIBAgIULLAndn3GSXdd2CZ5GzL5Sq9QwKkwCgYIKoZIzj0EAwIw\n"
+			+ "OTELMAkGA1UEBhMCTkwxETAPBgNVBAoMCE5va2lDZXJ0MRcwFQYDVQQDDA5UZXN0\n"
+			+ "IEVDIFNpZ25lcjAgFw0yNjEwMTgwMDEwMjJaGA8yMTI2MDkyNDAwMTAyMlowOTEL\n"
+			+ "MAkGA1UEBhMCTkwxETAPBgNVBAoMCE5va2lDZXJ0MRcwFQYDVQQDDA5UZXN0IEVD\n"
+			+ "IFNpZ25lcjBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABK0AgXh1DN6+dzifJHM2\n"
+			+ "1OkhkvdJLgG4zJs5SUYNWOgk3n07ki2l8vZwQzYt4y3ci5VVkvCn+fEYddNwbxz+\n"
+			+ "012jUzBRMB0GA1UdDgQWBBQncNpMrFe0Q3ulskyXtQDzj3mxUjAfBgNVHSMEGDAW\n"
+			+ "gBQncNpMrFe0Q3ulskyXtQDzj3mxUjAPBgNVHRMBAf8EBTADAQH/MAoGCCqGSM49\n"
+			+ "BAMCA0cAMEQCIE1sf88h6gKoe5ho/NqJVDMrhLEnC3pfPyO5/Awg7R5VAiAmewx3\n"
+			+ "sZAAkgqNw0PkJV3whgwqbX77nulHSYR2emQbeQ==\n"
+			+ "-----END CERTIFICATE-----\n";
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		testCertificate("RSA", RSA_PEM, true);
+		testCertificate("EC", EC_PEM, false);
+		System.out.println("(I) certificate parser: " + failures
+				+ " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Decode a certificate in PEM format
+	 * 
+	 * @param pem
+	 *            the certificate
+	 * @return the DER encoded certificate
+	 */
+	static byte[] der(String pem) throws Exception {
+		PemReader r = new PemReader(new ByteArrayInputStream(pem.getBytes()));
+		try {
+			return r.readCertificate();
+		} finally {
+			r.close();
+		}
+	}
+
+	private static void testCertificate(String name, String pem, boolean rsa)
+			throws Exception {
+		byte[] der = der(pem);
+		X509Certificate cert = (X509Certificate) CertificateFactory
+				.getInstance("X.509").generateCertificate(
+						new ByteArrayInputStream(der));
+		MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+		CertParser c = new CertParser(der);
+		check(Arrays.equals(sha1.digest(der), c.getFingerprint()), name
+				+ ": wrong fingerprint");
+		check(Arrays.equals(sha1.digest(cert.getSubjectX500Principal()
+				.getEncoded()), c.getSubjectHash()), name
+				+ ": wrong subject hash");
+		check(Arrays.equals(sha1.digest(cert.getIssuerX500Principal()
+				.getEncoded()), c.getIssuerHash()), name
+				+ ": wrong issuer hash");
+		/* the hashes are kept, but every call returns a copy */
+		byte[] fingerprint = c.getFingerprint();
+		fingerprint[0]++;
+		check(!Arrays.equals(fingerprint, c.getFingerprint()), name
+				+ ": the fingerprint can be changed by the caller");
+
+		if (rsa) {
+			byte[] m = ((RSAPublicKey) cert.getPublicKey()).getModulus()
+					.toByteArray();
+			sha1.update(m, 1, m.length - 1);
+			check(Arrays.equals(sha1.digest(), c.getModulusHash()), name
+					+ ": wrong modulus hash");
+			byte[] entry = c.getCDFEntry(false, NokiCertUtils.APPS_SIGNING);
+			check(Arrays.equals(c.getFingerprint(), Arrays.copyOfRange(entry,
+					12, 32)), name + ": no fingerprint in the CDF entry");
+			check(Arrays.equals(c.getModulusHash(), Arrays.copyOfRange(entry,
+					32, 52)), name + ": no modulus hash in the CDF entry");
+		} else {
+			check(c.getModulusHash() == null, name + ": modulus hash");
+			try {
+				c.getCDFEntry(false, NokiCertUtils.APPS_SIGNING);
+				check(false, name + ": CDF entry without modulus");
+			} catch (GjokiiException e) {
+				/* expected */
+			}
+		}
+	}
+}
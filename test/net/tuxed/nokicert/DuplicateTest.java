@@ -0,0 +1,168 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import net.tuxed.gjokii.Gjokii;
+import net.tuxed.gjokii.GjokiiMetrics;
+import net.tuxed.gjokii.SimulatedPhone;
+
+/**
+ * Installs certificates that are already on a simulated phone with NokiCert.
+ *
+ * A certificate that is already in the certificate list (CDF), or that occurs
+ * twice in the files to install, should be skipped. If nothing is left the CDF
+ * should not be uploaded at all. A different certificate with the same subject
+ * and issuer as an installed one should be installed with a warning.
+ *
+ * The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class DuplicateTest {
+	/* same subject and issuer as CertParserTest.RSA_PEM, but another key */
+	private static final String TWIN_PEM = "-----BEGIN CERTIFICATE-----\n"
+			+ "MIICUjCCAbugAwIBAgIUFTb4bpOhbSybHlapyJC/N2EWPXswDQYJKoZIhvcNAQEL\n"
+			+ "BQAwOjELMAkGA1UEBhMCTkwxETAPBgNVBAoMCE5va2lDZXJ0MRgwFgYDVQQDDA9U\n"
+			+ "ZXN0IFJTQSBTaWduZXIwIBcNMjYxMDE4MDAyODE5WhgPMjEyNjA5MjQwMDI4MTla\n"
+			+ "MDoxCzAJBgNVBAYTAk5MMREwDwYDVQQKDAhOb2tpQ2VydDEYMBYGA1UEAwwPVGVz\n"
+			+ "dCBSU0EgU2lnbmVyMIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQD0IFxbCsN0\n"
+			+ "J++tXGhkjABCDblS44ORXfOCYZFjA2DTXMgZkioKftJbcS9GE5cL27PG4Ga8kmDT\n"
+			+ "NvkBM8i80v+mNg8vVjsV5NfZdxn9MQ5Rjq0vgS63XzLjcyW+cPXK/yp70njbZQ0U\n"
+			+ "xqvgLJnPxD+DJNlK74Zg2X+fdeUjxYOjFQIDAQABo1MwUTAdBgNVHQ4EFgQUGS73\n"
+			+ "cC86kp6CmNGVq4TZkSUw4y0wHwYDVR0jBBgwFoAUGS73cC86kp6CmNGVq4TZkSUw\n"
+			+ "4y0wDwYDVR0TAQH/BAUwAwEB/zANBgkqhkiG9w0BAQsFAAOBgQB9oln8e8zjr2iM\n"
+			+ "tUdHt2uDP2rsctO36I92lntypSPJ8KCuuxOjDeVT222Qsai9QGaJRsSHkxAIgsh9\n"
+			+ "nymeHpXQ6Uq8uo3u3PaPhGuxss8/MoATHQl/Owg6FjpL1ETKfILo2LA4OYCtbfat\n"
+			+ "VbAPQwif+nkCdlKmFYgCmr4N0U6kdw==\n"
+			+ "-----END CERTIFICATE-----\n";
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		File dir = InstallTest.createTempDir("nokicert-duplicate");
+		try {
+			String rsa = InstallTest.write(new File(dir, "rsa.pem"),
+					CertParserTest.RSA_PEM.getBytes("US-ASCII")).getPath();
+			String chain = InstallTest.write(new File(dir, "chain.pem"),
+					(InstallTest.CA_PEM + InstallTest.CODE_SIGNER_PEM)
+							.getBytes("US-ASCII")).getPath();
+			String twin = InstallTest.write(new File(dir, "twin.pem"),
+					TWIN_PEM.getBytes("US-ASCII")).getPath();
+			File root = InstallTest.createPhone(new File(dir, "phone"));
+			File cdf = new File(root, InstallTest.CDF_LOCATION
+					+ File.separator + "ext_info.sys");
+
+			install(root, Arrays.asList(rsa));
+
+			/* rsa is installed, the second chain is in the batch already */
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			GjokiiMetrics m = install(root, Arrays.asList(rsa, chain, chain),
+					output);
+			check(m.getRequestCount("put_file_id") == 3, "duplicates: "
+					+ m.getRequestCount("put_file_id")
+					+ " uploads for 2 certificates and the CDF");
+			check(count(output, "is already installed, skipping") == 3,
+					"duplicates: " + count(output, "is already installed, "
+							+ "skipping") + " certificates skipped instead of 3");
+			CertListParser list = new CertListParser(InstallTest.read(cdf));
+			check(list.size() == 3, "duplicates: " + list.size()
+					+ " certificates in the CDF");
+
+			/* nothing is left, so nothing is uploaded */
+			byte[] before = InstallTest.read(cdf);
+			output = new ByteArrayOutputStream();
+			m = install(root, Arrays.asList(rsa, chain), output);
+			check(m.getRequestCount("put_file_id") == 0, "nothing left: "
+					+ m.getRequestCount("put_file_id") + " uploads");
+			check(count(output, "(I) nothing to install") == 1,
+					"nothing left: \"nothing to install\" is not shown");
+			check(Arrays.equals(before, InstallTest.read(cdf)),
+					"nothing left: the CDF changed");
+
+			/* another certificate for the same subject by the same issuer */
+			output = new ByteArrayOutputStream();
+			install(root, Arrays.asList(twin), output);
+			check(count(output, "(W) another certificate for Test RSA Signer "
+					+ "by the same issuer is already installed") == 1,
+					"same subject and issuer: no warning");
+			list = new CertListParser(InstallTest.read(cdf));
+			check(list.size() == 4, "same subject and issuer: " + list.size()
+					+ " certificates in the CDF");
+			check(list.containsFingerprint(new CertParser(CertParserTest
+					.der(TWIN_PEM)).getFingerprint()),
+					"same subject and issuer: the certificate is not in the CDF");
+		} finally {
+			InstallTest.delete(dir);
+		}
+		System.out.println("(I) duplicate: " + failures + " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Count the lines of the output that contain a text
+	 */
+	private static int count(ByteArrayOutputStream output, String text) {
+		int count = 0;
+		for (String line : output.toString().split("\n")) {
+			if (line.indexOf(text) != -1)
+				count++;
+		}
+		return count;
+	}
+
+	private static GjokiiMetrics install(File root, List<String> files)
+			throws Exception {
+		return install(root, files, new ByteArrayOutputStream());
+	}
+
+	/**
+	 * Install certificate files in one call on the phone
+	 *
+	 * @param root
+	 *            the root of the file system of the phone
+	 * @param files
+	 *            the certificate files
+	 * @param output
+	 *            receives the output of NokiCert
+	 * @return the requests made to the phone
+	 */
+	private static GjokiiMetrics install(File root, List<String> files,
+			ByteArrayOutputStream output) throws Exception {
+		Gjokii g = new Gjokii(new SimulatedPhone(root), false);
+		try {
+			new NokiCert(g, new PrintStream(output, true))
+					.installCertificates(files, NokiCertUtils.APPS_SIGNING);
+			return g.getMetrics();
+		} finally {
+			g.close();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.tuxed.gjokii.Gjokii;
+import net.tuxed.gjokii.GjokiiMetrics;
+import net.tuxed.gjokii.SimulatedPhone;
+import net.tuxed.misc.Utils;
+
+/**
+ * Installs certificates on a simulated phone with NokiCert.
+ *
+ * A certificate file and a PEM file with a CA chain are installed in one
+ * call, which should download and upload the certificate list (CDF) once and
+ * upload every certificate once. The same certificates are then installed one
+ * call per certificate on a second phone for comparison, like installing
+ * them used to work. Both phones should end up with the same certificate list
+ * and certificate files.
+ *
+ * Usage: InstallTest [latency], the time in ms the phones take to answer,
+ * by default 5 ms. The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class InstallTest {
+	private static final int LATENCY = 5;
+
+	static final String CA_PEM = "-----BEGIN CERTIFICATE-----\n"
+			+ "MIICSjCCAbOgAwIBAgIUAkgh4hjTYREDUu6HT1LK8hQpGfgwDQYJKoZIhvcNAQEL\n"
+			+ "BQAwNjELMAkGA1UEBhMCTkwxETAPBgNVBAoMCE5va2lDZXJ0MRQwEgYDVQQDDAtU\n"
+			+ "ZXN0IFJTQSBDQTAgFw0yNjEwMTgwMDI4MTlaGA8yMTI2MDkyNDAwMjgxOVowNjEL\n"
+			+ "MAkGA1UEBhMCTkwxETAPBgNVBAoMCE5va2lDZXJ0MRQwEgYDVQQDDAtUZXN0IFJT\n"
+			+ "QSBDQTCBnzANBgkqhkiG9w0BAQEFAAOBjQAwgYkCgYEAug/tqOALqviOlSHzxW93\n"
+			+ "/jvJV7bHfEVyoaFNnY/8HLWihOe+8v9JP24SpgIXMHf9fDoQMRf1gu9r9hhRfEBd\n"
+			+ "OTfSxAK/SqZi3yGo9Fw09w771TASaA2j0Oi6ihccYN6eYGF3ChOBrG02pO7fVqvT\n"
+			+ "oZnJsc52kcBIxRLPGwcgOqMCAwEAAaNTMFEwHQYDVR0OBBYEFNtm9Xe/483v3Cft\n"
+			+ "xFBaNHGcm024MB8GA1UdIwQYMBaAFNtm9Xe/483v3CftxFBaNHGcm024MA8GA1Ud\n"
+			+ "EwEB/wQFMAMBAf8wDQYJKoZIhvcNAQELBQADgYEABWLLBp8YHdn3XMqAR7gJ2lPI\n"
+			+ "wBmLxn8zJ/zWWCJuk30o+6G4l/2doxzz5I1GQoyzE9lcC1XavtMrfTbjRzTK+0vz\n"
+			+ "tR7UohJvnr8P6xKqBw1YTPKG4pzg19WuxpU8o2JthBz7WLaLS9W2caeOhfPuyu+e\n"
+			+ "BpTN8Re0MASRsZVc+rg=\n" + "-----END CERTIFICATE-----\n";
+
+	/* issued by the CA above */
+	static final String CODE_SIGNER_PEM = "-----BEGIN CERTIFICATE-----\n"
+			+ "MIIB+TCCAWICFEGls+/FN4Iag5gud5Ka3/3ja172MA0GCSqGSIb3DQEBCwUAMDYx\n"
+			+ "CzAJBgNVBAYTAk5MMREwDwYDVQQKDAhOb2tpQ2VydDEUMBIGA1UEAwwLVGVzdCBS\n"
+			+ "U0EgQ0EwIBcNMjYxMDE4MDAyODE5WhgPMjEyNjA5MjQwMDI4MTlaMD8xCzAJBgNV\n"
+			+ "BAYTAk5MMREwDwYDVQQKDAhOb2tpQ2VydDEdMBsGA1UEAwwUVGVzdCBSU0EgQ29k\n"
+			+ "ZSBTaWduZXIwgZ8wDQYJKoZIhvcNAQEBBQADgY0AMIGJAoGBAKb5uynjiTuqTn3e\n"
+			+ "Gozh5Jj2kJbnM2xVCGXqEDJ6yLslXUbd0mvEV+MLR/AzHLLb04sHCfidbsJWHJIB\n"
+			+ "5fnWwOyTTM43HaJz7bS78bJdIkJwat1spm3/2gBwOuW9VK4I6P025AD/cyg2M7oc\n"
+			+ "DU1z8JiCqIKvqSI1ICmhEKUaE+6RAgMBAAEwDQYJKoZIhvcNAQELBQADgYEAXjDe\n"
+			+ "WVNgxvZBuJWlORv9OLqG70KJFwQRpcdaNZo7jH1YJBemy+YAe4hjsXucSHWaOEYy\n"
+			+ "UL5fI3IwZ5avpopPqP3Sle+3uPceiQsJeX9hfNUQEhTh0/exQYhe26ESHG9qsp+G\n"
+			+ "D/6RzMnAbZJc8a8d/K+CW6WT+igRj5FssN3r5Jg=\n"
+			+ "-----END CERTIFICATE-----\n";
+
+	static final String CDF_LOCATION = "predefhiddenfolder" + File.separator
+			+ "certificates" + File.separator + "auth";
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		int latency = (args.length > 0) ? Integer.parseInt(args[0])
+				: LATENCY;
+		File dir = createTempDir("nokicert-install");
+		try {
+			File rsa = write(new File(dir, "rsa.pem"), CertParserTest.RSA_PEM
+					.getBytes("US-ASCII"));
+			File chain = write(new File(dir, "chain.pem"), (CA_PEM
+					+ CODE_SIGNER_PEM).getBytes("US-ASCII"));
+			List<String> files = Arrays.asList(rsa.getPath(), chain
+					.getPath());
+			List<String> singleFiles = Arrays.asList(rsa.getPath(), write(
+					new File(dir, "ca.pem"), CA_PEM.getBytes("US-ASCII"))
+					.getPath(), write(new File(dir, "signer.pem"),
+					CODE_SIGNER_PEM.getBytes("US-ASCII")).getPath());
+
+			/* warm up, so the first measurement is not slower */
+			Gjokii g = new Gjokii(new SimulatedPhone(createPhone(new File(
+					dir, "warmup"))), false);
+			new NokiCert(g, quiet()).installCertificates(files,
+					NokiCertUtils.APPS_SIGNING);
+			g.close();
+
+			File batchRoot = createPhone(new File(dir, "batch"));
+			SimulatedPhone p = new SimulatedPhone(batchRoot);
+			p.setLatency(latency);
+			g = new Gjokii(p, false);
+			long start = System.nanoTime();
+			new NokiCert(g, quiet()).installCertificates(files,
+					NokiCertUtils.APPS_SIGNING);
+			long time = System.nanoTime() - start;
+			GjokiiMetrics batch = g.getMetrics();
+			g.close();
+			report("one call", batch, time);
+			check(batch.getRequestCount("get_file_id") == 1,
+					"one call: the CDF was downloaded "
+							+ batch.getRequestCount("get_file_id") + " times");
+			check(batch.getRequestCount("put_file_id") == 4,
+					"one call: " + batch.getRequestCount("put_file_id")
+							+ " uploads for 3 certificates and the CDF");
+
+			File singleRoot = createPhone(new File(dir, "single"));
+			p = new SimulatedPhone(singleRoot);
+			p.setLatency(latency);
+			g = new Gjokii(p, false);
+			start = System.nanoTime();
+			NokiCert n = new NokiCert(g, quiet());
+			for (String file : singleFiles)
+				n.installCertificate(file, NokiCertUtils.APPS_SIGNING);
+			time = System.nanoTime() - start;
+			report("one call per certificate", g.getMetrics(), time);
+			g.close();
+
+			File batchCdf = new File(batchRoot, CDF_LOCATION + File.separator
+					+ "ext_info.sys");
+			CertListParser list = new CertListParser(read(batchCdf));
+			check(list.size() == 3, "one call: " + list.size()
+					+ " certificates in the CDF");
+			for (String pem : new String[] { CertParserTest.RSA_PEM, CA_PEM,
+					CODE_SIGNER_PEM }) {
+				CertParser c = new CertParser(CertParserTest.der(pem));
+				check(list.containsFingerprint(c.getFingerprint()),
+						"one call: " + c.getSubjectCommonName()
+								+ " is not in the CDF");
+				check(Arrays.equals(CertParserTest.der(pem), read(new File(
+						batchRoot, CDF_LOCATION + File.separator
+								+ c.getSubjectCommonName()))), "one call: "
+						+ c.getSubjectCommonName() + " has different content");
+			}
+			check(Arrays.equals(read(batchCdf), read(new File(singleRoot,
+					CDF_LOCATION + File.separator + "ext_info.sys"))),
+					"one call and one call per certificate give different "
+							+ "CDFs");
+		} finally {
+			delete(dir);
+		}
+		System.out.println("(I) install: " + failures + " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Create the file system of a phone with an empty certificate list
+	 *
+	 * @param root
+	 *            the root of the file system
+	 * @return the root
+	 */
+	static File createPhone(File root) throws IOException {
+		write(new File(root, CDF_LOCATION + File.separator + "ext_info.sys"),
+				new byte[0]);
+		return root;
+	}
+
+	static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, null);
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("unable to create temporary directory");
+		return dir;
+	}
+
+	static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		f.delete();
+	}
+
+	/**
+	 * A stream for the output of NokiCert that is not shown
+	 */
+	static PrintStream quiet() {
+		return new PrintStream(new ByteArrayOutputStream());
+	}
+
+	static byte[] read(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			return Utils.readStream(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static void report(String what, GjokiiMetrics m, long time) {
+		List<String> counts = new ArrayList<String>();
+		for (String operation : new String[] { "get_file_id", "get_file",
+				"put_file_id", "put_file" })
+			counts.add(m.getRequestCount(operation) + " " + operation);
+		System.out.println("(I) " + what + ": " + time / 1000000 + " ms, "
+				+ counts.toString().replaceAll("[\\[\\]]", ""));
+	}
+
+	static File write(File f, byte[] data) throws IOException {
+		f.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+		return f;
+	}
+}
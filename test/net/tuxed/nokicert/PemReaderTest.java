@@ -0,0 +1,219 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Reads PEM data with PemReader and compares the certificates with the ones
+ * decoded by the certificate factory of the JVM.
+ *
+ * The PEM data holds multiple certificates with text around them, CRLF line
+ * ends, leading and trailing white space, and is read one byte at a time as
+ * well. Invalid Base64 data and a missing END line should fail. The deprecated
+ * NokiCertUtils.convertToDER should still convert the first certificate.
+ *
+ * The exit status is 0 if all checks passed.
+ *
+ * @author F. Kooman <fkooman@tuxed.net>
+ *
+ */
+public class PemReaderTest {
+	private static int failures = 0;
+
+	/**
+	 * Returns at most one byte per read, like a slow stream
+	 */
+	private static class TrickleInputStream extends InputStream {
+		private ByteArrayInputStream is;
+
+		private TrickleInputStream(byte[] data) {
+			is = new ByteArrayInputStream(data);
+		}
+
+		public int read() {
+			return is.read();
+		}
+
+		public int read(byte[] b, int off, int len) {
+			return is.read(b, off, Math.min(len, 1));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		byte[] rsa = decode(CertParserTest.RSA_PEM);
+		byte[] ec = decode(CertParserTest.EC_PEM);
+
+		String bundle = "Bag Attributes\n" + CertParserTest.RSA_PEM
+				+ "some text between\n" + CertParserTest.EC_PEM
+				+ CertParserTest.RSA_PEM;
+		testBundle("LF", bundle, rsa, ec);
+		testBundle("CRLF", bundle.replace("\n", "\r\n"), rsa, ec);
+		testBundle("white space", indent(bundle), rsa, ec);
+		testBundle("CRLF and white space", indent(bundle).replace("\n",
+				"\r\n"), rsa, ec);
+
+		testInvalid("no end", CertParserTest.RSA_PEM.substring(0,
+				CertParserTest.RSA_PEM.indexOf("-----END")));
+		testInvalid("invalid Base64", CertParserTest.RSA_PEM.replaceFirst(
+				"\n[A-Za-z0-9]", "\n!"));
+		testInvalid("data after padding", CertParserTest.EC_PEM.replaceFirst(
+				"\n([A-Za-z0-9+/])", "\n=$1"));
+		testConvertToDER(bundle, rsa);
+
+		System.out.println("(I) PEM reader: " + failures + " checks failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("(E) " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Decode a single PEM certificate with the certificate factory of the JVM
+	 */
+	private static byte[] decode(String pem) throws Exception {
+		Certificate c = CertificateFactory.getInstance("X.509")
+				.generateCertificate(new ByteArrayInputStream(pem.getBytes()));
+		return c.getEncoded();
+	}
+
+	/**
+	 * Indent every line and add white space at the end of it
+	 */
+	private static String indent(String pem) {
+		return "  " + pem.replace("\n", " \t\n\t ");
+	}
+
+	/**
+	 * Read all certificates from the PEM data
+	 */
+	private static byte[][] readAll(InputStream is) throws IOException {
+		PemReader r = new PemReader(is);
+		List<byte[]> result = new ArrayList<byte[]>();
+		byte[] der;
+		while ((der = r.readCertificate()) != null)
+			result.add(der);
+		check(r.getCertificates() == result.size(),
+				"getCertificates does not count the certificates read");
+		r.close();
+		return result.toArray(new byte[result.size()][]);
+	}
+
+	/**
+	 * Read a PEM bundle of an RSA, an EC and an RSA certificate at once and one
+	 * byte at a time
+	 *
+	 * @param what
+	 *            the name of the case
+	 * @param pem
+	 *            the PEM data
+	 * @param rsa
+	 *            the DER encoded RSA certificate
+	 * @param ec
+	 *            the DER encoded EC certificate
+	 */
+	private static void testBundle(String what, String pem, byte[] rsa,
+			byte[] ec) throws Exception {
+		byte[][] expected = { rsa, ec, rsa };
+		byte[] data = pem.getBytes("US-ASCII");
+		check(Arrays.deepEquals(expected, readAll(new ByteArrayInputStream(
+				data))), what + ": different certificates");
+		check(Arrays.deepEquals(expected, readAll(new TrickleInputStream(
+				data))), what + ": different certificates one byte at a time");
+	}
+
+	/**
+	 * Let the deprecated convertToDER convert a PEM bundle and a DER file
+	 *
+	 * @param pem
+	 *            the PEM data, the first certificate is converted
+	 * @param first
+	 *            the DER encoded first certificate
+	 */
+	@SuppressWarnings("deprecation")
+	private static void testConvertToDER(String pem, byte[] first)
+			throws Exception {
+		File f = File.createTempFile("pem", null);
+		File der = null;
+		try {
+			write(f, pem.getBytes("US-ASCII"));
+			der = NokiCertUtils.convertToDER(f);
+			check(!der.equals(f) && Arrays.equals(first, read(der)),
+					"convertToDER: different certificate");
+			write(f, first);
+			check(NokiCertUtils.convertToDER(f).equals(f),
+					"convertToDER: a DER file was converted");
+		} finally {
+			f.delete();
+			if (der != null)
+				der.delete();
+		}
+	}
+
+	/**
+	 * Read invalid PEM data, which should fail
+	 *
+	 * @param what
+	 *            the name of the case
+	 * @param pem
+	 *            the PEM data
+	 */
+	private static void testInvalid(String what, String pem) throws Exception {
+		try {
+			readAll(new ByteArrayInputStream(pem.getBytes("US-ASCII")));
+			check(false, what + ": reading did not fail");
+		} catch (IOException e) {
+			check(e.getMessage().indexOf("certificate 1") != -1, what
+					+ ": the certificate is not named in \"" + e.getMessage()
+					+ "\"");
+		}
+	}
+
+	private static byte[] read(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			return Utils.readStream(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+	}
+}